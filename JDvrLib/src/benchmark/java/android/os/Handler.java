@@ -0,0 +1,31 @@
+package android.os;
+
+/**
+ * Host stand-in for android.os.Handler, supporting Runnable callbacks only. It is only on the
+ * benchmark classpath.
+ */
+public class Handler {
+    private final Looper mLooper;
+
+    public Handler(Looper looper) {
+        mLooper = looper;
+    }
+    public final boolean post(Runnable r) {
+        return postDelayed(r, 0L);
+    }
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return mLooper.mQueue.add(new Looper.Message(r, System.nanoTime() + delayMillis * 1000000L));
+    }
+    public final void removeCallbacks(Runnable r) {
+        mLooper.mQueue.removeIf(msg -> msg.mCallback == r);
+    }
+    public final boolean hasCallbacks(Runnable r) {
+        return mLooper.mQueue.stream().anyMatch(msg -> msg.mCallback == r);
+    }
+    public final void removeCallbacksAndMessages(Object token) {
+        mLooper.mQueue.removeIf(msg -> msg.mCallback != null);
+    }
+    public final Looper getLooper() {
+        return mLooper;
+    }
+}
@@ -0,0 +1,28 @@
+package android.os;
+
+/**
+ * Host stand-in for android.os.HandlerThread. It is only on the benchmark classpath.
+ */
+public class HandlerThread extends Thread {
+    private final Looper mLooper = new Looper();
+
+    public HandlerThread(String name) {
+        super(name);
+        setDaemon(true);
+    }
+    @Override
+    public void run() {
+        mLooper.loop();
+    }
+    public Looper getLooper() {
+        return mLooper;
+    }
+    public boolean quitSafely() {
+        mLooper.quitSafely();
+        return true;
+    }
+    public boolean quit() {
+        mLooper.quitSafely();
+        return true;
+    }
+}
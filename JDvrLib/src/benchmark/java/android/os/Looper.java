@@ -0,0 +1,51 @@
+package android.os;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host stand-in for android.os.Looper, holding the message queue of a HandlerThread. It is only on
+ * the benchmark classpath.
+ */
+public final class Looper {
+    final DelayQueue<Message> mQueue = new DelayQueue<>();
+
+    static final class Message implements Delayed {
+        final Runnable mCallback;
+        final long mWhen;       // in ns of System.nanoTime()
+
+        Message(Runnable callback, long when) {
+            mCallback = callback;
+            mWhen = when;
+        }
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mWhen - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(mWhen, ((Message)other).mWhen);
+        }
+    }
+
+    Looper() {
+    }
+    void loop() {
+        try {
+            while (true) {
+                final Message msg = mQueue.take();
+                if (msg.mCallback == null) {
+                    return;
+                }
+                msg.mCallback.run();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    // Messages already due are run first, as quitSafely() of android.os.Looper does
+    void quitSafely() {
+        mQueue.add(new Message(null, System.nanoTime()));
+    }
+}
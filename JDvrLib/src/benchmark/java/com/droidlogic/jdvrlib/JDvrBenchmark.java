@@ -0,0 +1,70 @@
+package com.droidlogic.jdvrlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Helpers shared by host benchmarks. As with JMH, every case runs a few warmup iterations before
+ * the measured ones, and results are folded into a sink so that the JIT cannot drop the work.
+ */
+final class JDvrBenchmark {
+    final static int WARMUP_ITERATIONS = 3;
+    final static int MEASURED_ITERATIONS = 5;
+    final private static ThreadMXBean mThreadMXBean = ManagementFactory.getThreadMXBean();
+    static long mSink = 0L;
+
+    private JDvrBenchmark() {
+    }
+    // CPU time of calling thread in ns, time spent in kernel on its behalf included
+    static long threadCpuTime() {
+        return mThreadMXBean.getCurrentThreadCpuTime();
+    }
+    // Bytes allocated by calling thread so far, or -1 if the JVM cannot tell
+    static long threadAllocatedBytes() {
+        if (mThreadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)mThreadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1L;
+    }
+    // Bytes allocated so far by all live threads, or -1 if the JVM cannot tell. Threads which end
+    // in between are not accounted, so callers keep their threads alive across measurement.
+    static long allThreadsAllocatedBytes() {
+        if (mThreadMXBean instanceof com.sun.management.ThreadMXBean) {
+            long total = 0L;
+            for (long bytes : ((com.sun.management.ThreadMXBean)mThreadMXBean).getThreadAllocatedBytes(mThreadMXBean.getAllThreadIds())) {
+                total += Math.max(bytes, 0L);
+            }
+            return total;
+        }
+        return -1L;
+    }
+    // The p-th percentile of the first n samples. Samples are sorted in place.
+    static long percentile(long[] samples, int n, double p) {
+        if (n == 0) {
+            return 0L;
+        }
+        Arrays.sort(samples, 0, n);
+        final int i = (int)Math.ceil(p / 100.0d * n) - 1;
+        return samples[Math.min(Math.max(i, 0), n - 1)];
+    }
+    static File createWorkDir(String name) throws IOException {
+        return Files.createTempDirectory(name).toFile();
+    }
+    static void deleteWorkDir(File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+    static void report(String format, Object... args) {
+        System.out.println(String.format(Locale.US, format, args));
+    }
+}
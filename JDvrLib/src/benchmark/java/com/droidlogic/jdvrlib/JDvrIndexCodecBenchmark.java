@@ -0,0 +1,200 @@
+package com.droidlogic.jdvrlib;
+
+import com.droidlogic.jdvrlib.JDvrCommon.JDvrStreamType;
+import com.droidlogic.jdvrlib.JDvrRecorder.JDvrStreamInfo;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * JDvrIndexCodec against the former JSON index path, i.e. String.matches() and a JsonReader per
+ * line for parsing, and String.format() plus getBytes() for emitting. The former path is
+ * reproduced here with gson's JsonReader, which android.util.JsonReader derives from and shares
+ * its API with. Parsing goes through a whole index the way load(4) does, and emitting writes the
+ * same number of lines the way the recorder does. Time and allocation are reported per line.
+ */
+public class JDvrIndexCodecBenchmark {
+    final private static int LINES = 20000;     // about an hour of entries
+    final private static int OPERATIONS = 20;   // passes over all lines per iteration
+    final private static String regex1 = ".*\"offset\":.*";
+    final private static String regex2 = ".*nb_pids.*";
+
+    public static void main(String[] args) throws IOException {
+        final ArrayList<JDvrStreamInfo> streams = new ArrayList<>();
+        streams.add(new JDvrStreamInfo(0x100, JDvrStreamType.STREAM_TYPE_VIDEO, 2));
+        streams.add(new JDvrStreamInfo(0x101, JDvrStreamType.STREAM_TYPE_AUDIO, 3));
+        final byte[] index = buildIndex(streams);
+        JDvrBenchmark.report("%-28s %12s %12s", "case", "ns/line", "B/line");
+        run("parse, JsonReader", () -> parseWithJsonReader(index));
+        run("parse, JDvrIndexCodec", () -> parseWithCodec(index));
+        run("emit, String.format", () -> emitWithFormat(streams));
+        run("emit, JDvrIndexCodec", () -> emitWithCodec(streams));
+        System.out.println("sink: " + JDvrBenchmark.mSink);
+    }
+
+    // Private functions
+    private interface Operation {
+        int run() throws IOException;
+    }
+    private static void run(String name, Operation operation) throws IOException {
+        for (int i = 0; i < JDvrBenchmark.WARMUP_ITERATIONS * OPERATIONS; i++) {
+            operation.run();
+        }
+        long lines = 0L;
+        final long allocated0 = JDvrBenchmark.threadAllocatedBytes();
+        final long ts0 = System.nanoTime();
+        for (int i = 0; i < JDvrBenchmark.MEASURED_ITERATIONS * OPERATIONS; i++) {
+            lines += operation.run();
+        }
+        final long elapsed = System.nanoTime() - ts0;
+        final long allocated = JDvrBenchmark.threadAllocatedBytes() - allocated0;
+        JDvrBenchmark.report("%-28s %12.1f %12.1f", name, (double)elapsed / lines,
+                (allocated0 >= 0) ? (double)allocated / lines : -1.0d);
+    }
+    private static byte[] buildIndex(ArrayList<JDvrStreamInfo> streams) {
+        final JDvrIndexCodec codec = new JDvrIndexCodec();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Line buffer may be replaced while encoding, so it is taken afterwards
+        int len = codec.encodeTimeStreamIndex(0L, 1700000000000L, 0, streams);
+        out.write(codec.line(), 0, len);
+        for (int i = 1; i < LINES; i++) {
+            len = codec.encodeTimeOffsetIndex(i * 200L, i * 376000L, 90000L + i * 18000L);
+            out.write(codec.line(), 0, len);
+        }
+        return out.toByteArray();
+    }
+    private static int parseWithCodec(byte[] buf) {
+        final JDvrIndexCodec codec = new JDvrIndexCodec();
+        final ArrayList<JDvrStreamInfo> pids = new ArrayList<>();
+        int lines = 0;
+        int start = 0;
+        for (int i = 0; i < buf.length; i++) {
+            if (buf[i] != '\n') {
+                continue;
+            }
+            if (JDvrIndexCodec.isTimeOffsetIndex(buf, start, i)) {
+                if (codec.parseTimeOffsetIndex(buf, start, i)) {
+                    JDvrBenchmark.mSink += codec.mTime + codec.mOffset + codec.mPts;
+                }
+            } else if (JDvrIndexCodec.isTimeStreamIndex(buf, start, i)) {
+                pids.clear();
+                if (codec.parseTimeStreamIndex(buf, start, i, pids)) {
+                    JDvrBenchmark.mSink += pids.size();
+                }
+            }
+            start = i + 1;
+            lines++;
+        }
+        return lines;
+    }
+    private static int parseWithJsonReader(byte[] buf) throws IOException {
+        int lines = 0;
+        int start = 0;
+        for (int i = 0; i < buf.length; i++) {
+            if (buf[i] != '\n') {
+                continue;
+            }
+            final String line = new String(buf, start, i - start);
+            start = i + 1;
+            if (line.matches(regex1)) {
+                parseTimeOffsetIndex(line);
+            } else if (line.matches(regex2)) {
+                parseTimeStreamIndex(line);
+            }
+            lines++;
+        }
+        return lines;
+    }
+    private static void parseTimeOffsetIndex(String line) throws IOException {
+        final JsonReader reader = new JsonReader(new StringReader(line));
+        long time = -1;
+        long offset = -1;
+        long pts = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "time":
+                    time = reader.nextLong();
+                    break;
+                case "offset":
+                    offset = reader.nextLong();
+                    break;
+                case "pts":
+                    pts = reader.nextLong();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        JDvrBenchmark.mSink += time + offset + pts;
+    }
+    private static void parseTimeStreamIndex(String line) throws IOException {
+        final JsonReader reader = new JsonReader(new StringReader(line));
+        final ArrayList<JDvrStreamInfo> pids = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("pids")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                int pid = -1;
+                int type = -1;
+                int format = -1;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "pid":
+                            pid = reader.nextInt();
+                            break;
+                        case "type":
+                            type = reader.nextInt();
+                            break;
+                        case "format":
+                            format = reader.nextInt();
+                            break;
+                        default:
+                            reader.skipValue();
+                            break;
+                    }
+                }
+                reader.endObject();
+                pids.add(new JDvrStreamInfo(pid, type, format));
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        JDvrBenchmark.mSink += pids.size();
+    }
+    private static int emitWithCodec(ArrayList<JDvrStreamInfo> streams) {
+        final JDvrIndexCodec codec = new JDvrIndexCodec();
+        JDvrBenchmark.mSink += codec.encodeTimeStreamIndex(0L, 1700000000000L, 0, streams);
+        for (int i = 1; i < LINES; i++) {
+            JDvrBenchmark.mSink += codec.encodeTimeOffsetIndex(i * 200L, i * 376000L, 90000L + i * 18000L);
+        }
+        return LINES;
+    }
+    private static int emitWithFormat(ArrayList<JDvrStreamInfo> streams) {
+        final String streamStr = streams.stream().map(Object::toString).collect(Collectors.joining(","));
+        final String header = String.format(Locale.US,
+                "{\"time\":%d, \"time_offset_from_origin\":%d, \"id\":%d, \"nb_pids\":%d, \"pids\":[%s]}\n",
+                0L, 1700000000000L, 0, streams.size(), streamStr);
+        JDvrBenchmark.mSink += header.getBytes(StandardCharsets.US_ASCII).length;
+        for (int i = 1; i < LINES; i++) {
+            final String line = String.format(Locale.US, "{\"time\":%d, \"offset\":%d, \"pts\":%d}\n",
+                    i * 200L, i * 376000L, 90000L + i * 18000L);
+            JDvrBenchmark.mSink += line.getBytes(StandardCharsets.US_ASCII).length;
+        }
+        return LINES;
+    }
+}
@@ -0,0 +1,88 @@
+package com.droidlogic.jdvrlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Heap allocation and throughput of the playback data path, i.e. JDvrReadAhead filling its queue
+ * from JDvrFile across segment boundaries while the caller polls and recycles chunks the way
+ * JDvrPlayer does. Allocation is that of all threads involved, the I/O thread of JDvrReadAhead and
+ * the prefetch thread of JDvrFile included, so the figure per MB shows whether the steady state of
+ * playback is free of garbage. Playback passes start over by seeking to the origin, which keeps
+ * the same threads alive through the measurement.
+ */
+public class JDvrReadAheadBenchmark {
+    final private static int CHUNK_SIZE = 188 * 1024;            // as JDvrPlayer reads
+    final private static long QUEUE_SIZE = 8 * 188 * 1024;       // as JDvrPlayerSettings default
+    final private static int CHUNKS = 512;                      // about 94 MB of ts data
+    final private static int SEGMENT_SIZE = 188 * 4096 * 16;    // about 12 MB, i.e. 7 rollovers
+    final private static int OPERATIONS = 4;                    // passes over recording per iteration
+
+    public static void main(String[] args) throws IOException {
+        final File dir = JDvrBenchmark.createWorkDir("JDvrReadAheadBenchmark");
+        final int maxSegmentSize = JDvrSegment.getMaxSegmentSize();
+        JDvrSegment.setMaxSegmentSize(SEGMENT_SIZE);
+        try {
+            final String prefix = dir.getPath() + "/rec";
+            record(prefix);
+            final JDvrFile file = new JDvrFile(prefix);
+            final JDvrReadAhead readAhead = new JDvrReadAhead(file, CHUNK_SIZE, QUEUE_SIZE);
+            readAhead.start();
+            for (int i = 0; i < JDvrBenchmark.WARMUP_ITERATIONS * OPERATIONS; i++) {
+                play(readAhead);
+            }
+            long bytes = 0L;
+            final long allocated0 = JDvrBenchmark.allThreadsAllocatedBytes();
+            final long ts0 = System.nanoTime();
+            for (int i = 0; i < JDvrBenchmark.MEASURED_ITERATIONS * OPERATIONS; i++) {
+                bytes += play(readAhead);
+            }
+            final long elapsed = System.nanoTime() - ts0;
+            final long allocated = JDvrBenchmark.allThreadsAllocatedBytes() - allocated0;
+            readAhead.stop();
+            file.close();
+            final double mb = bytes / 1048576.0d;
+            JDvrBenchmark.report("%10s %12s %10s", "MB/s", "B/MB", "underruns");
+            JDvrBenchmark.report("%10.1f %12.1f %10d", mb / (elapsed / 1e9d),
+                    (allocated0 >= 0) ? allocated / mb : -1.0d, readAhead.getUnderruns());
+            System.out.println("sink: " + JDvrBenchmark.mSink);
+        } finally {
+            JDvrSegment.setMaxSegmentSize(maxSegmentSize);
+            JDvrBenchmark.deleteWorkDir(dir);
+        }
+    }
+
+    // Private functions
+    private static void record(String prefix) throws IOException {
+        final JDvrFile file = new JDvrFile(prefix, true);
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        for (int i = 0; i < CHUNK_SIZE; i += 188) {
+            chunk[i] = 0x47;
+        }
+        for (int i = 0; i < CHUNKS; i++) {
+            if (file.write(chunk, 0, chunk.length, i * 3600L) != chunk.length) {
+                throw new IOException("Failed to write recording");
+            }
+        }
+        file.close();
+    }
+    // Play the recording through from the origin. It returns the number of bytes delivered.
+    private static long play(JDvrReadAhead readAhead) throws IOException {
+        if (!readAhead.seek(0)) {
+            throw new IOException("Failed to seek to origin");
+        }
+        long total = 0L;
+        while (!readAhead.isEndOfData()) {
+            final JDvrReadAhead.JDvrReadAheadChunk chunk = readAhead.poll();
+            if (chunk == null) {
+                LockSupport.parkNanos(100000L);
+                continue;
+            }
+            total += chunk.mLength;
+            JDvrBenchmark.mSink += chunk.mBuffer[chunk.mLength - 1];
+            readAhead.recycle(chunk);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,105 @@
+package com.droidlogic.jdvrlib;
+
+import com.droidlogic.jdvrlib.JDvrCommon.JDvrIndexFormat;
+import com.droidlogic.jdvrlib.JDvrCommon.JDvrReadMode;
+import com.droidlogic.jdvrlib.JDvrCommon.JDvrStreamType;
+import com.droidlogic.jdvrlib.JDvrRecorder.JDvrStreamInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/**
+ * Sustained read throughput and CPU cost per MB of JDvrSegment read modes. A sealed segment is read
+ * through in chunks of the size JDvrPlayer reads, in each read mode and, for reference, with the
+ * seek-then-read path used before read modes were introduced. Ts data is in page cache after the
+ * warmup iterations, so the figures are of the read path rather than of storage.
+ */
+public class JDvrReadModeBenchmark {
+    final private static int CHUNK_SIZE = 188 * 1024;
+    final private static int CHUNKS = 512;      // about 94 MB of ts data
+
+    public static void main(String[] args) throws IOException {
+        final File dir = JDvrBenchmark.createWorkDir("JDvrReadModeBenchmark");
+        try {
+            final String prefix = dir.getPath() + "/rec";
+            writeSegment(prefix);
+            final byte[] buffer = new byte[CHUNK_SIZE];
+            JDvrBenchmark.report("%-12s %10s %12s", "mode", "MB/s", "CPU ms/MB");
+            run("seek+read", () -> readWithSeek(prefix, buffer));
+            run("positional", () -> readSegment(prefix, JDvrReadMode.READ_MODE_POSITIONAL, buffer));
+            run("mmap", () -> readSegment(prefix, JDvrReadMode.READ_MODE_MMAP, buffer));
+            System.out.println("sink: " + JDvrBenchmark.mSink);
+        } finally {
+            JDvrBenchmark.deleteWorkDir(dir);
+        }
+    }
+
+    // Private functions
+    private interface Pass {
+        long run() throws IOException;
+    }
+    private static void run(String name, Pass pass) throws IOException {
+        for (int i = 0; i < JDvrBenchmark.WARMUP_ITERATIONS; i++) {
+            pass.run();
+        }
+        long bytes = 0L;
+        final long cpu0 = JDvrBenchmark.threadCpuTime();
+        final long ts0 = System.nanoTime();
+        for (int i = 0; i < JDvrBenchmark.MEASURED_ITERATIONS; i++) {
+            bytes += pass.run();
+        }
+        final long elapsed = System.nanoTime() - ts0;
+        final long cpu = JDvrBenchmark.threadCpuTime() - cpu0;
+        final double mb = bytes / 1048576.0d;
+        JDvrBenchmark.report("%-12s %10.1f %12.3f", name, mb / (elapsed / 1e9d), cpu / 1e6d / mb);
+    }
+    private static void writeSegment(String prefix) {
+        final JDvrSegment writer = new JDvrSegment(prefix, 0, 0, 0);
+        writer.setSyncOnWrite(false);
+        writer.setIndexFormat(JDvrIndexFormat.INDEX_FORMAT_BINARY);
+        final ArrayList<JDvrStreamInfo> streams = new ArrayList<>();
+        streams.add(new JDvrStreamInfo(0x100, JDvrStreamType.STREAM_TYPE_VIDEO, 2));
+        writer.writeTimeStreamIndex(0, 0, streams);
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        for (int i = 0; i < CHUNK_SIZE; i += 188) {
+            chunk[i] = 0x47;
+        }
+        for (int i = 0; i < CHUNKS; i++) {
+            writer.writeTimeOffsetIndex(i * 40L, (long)i * CHUNK_SIZE, 90000 + i * 3600L);
+            writer.write(chunk, 0, CHUNK_SIZE);
+        }
+        writer.close();
+    }
+    private static long readSegment(String prefix, int mode, byte[] buffer) throws IOException {
+        final JDvrSegment reader = new JDvrSegment(prefix, 0, 1, 0);
+        reader.setReadMode(mode);
+        // Only segments which are no longer written are mapped
+        reader.setLastSegment(false);
+        reader.seal();
+        long total = 0L;
+        int len;
+        while ((len = reader.read(buffer, 0, buffer.length)) > 0) {
+            total += len;
+            JDvrBenchmark.mSink += buffer[len - 1];
+        }
+        reader.close();
+        return total;
+    }
+    private static long readWithSeek(String prefix, byte[] buffer) throws IOException {
+        long total = 0L;
+        try (RandomAccessFile file = new RandomAccessFile(prefix + "-0000.ts", "r")) {
+            int len;
+            while (true) {
+                file.seek(total);
+                if ((len = file.read(buffer, 0, buffer.length)) <= 0) {
+                    break;
+                }
+                total += len;
+                JDvrBenchmark.mSink += buffer[len - 1];
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,86 @@
+package com.droidlogic.jdvrlib;
+
+import com.droidlogic.jdvrlib.JDvrCommon.JDvrSyncPolicy;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Write latency and sustained write throughput of JDvrFile under each sync policy. Recording data
+ * is written as fast as possible in chunks of the size a recorder typically writes, across several
+ * segment rollovers, and the latency of every write() is taken. Background forcing of data runs
+ * on the sync thread of JDvrFile as it does on device.
+ * Storage is that of the system temporary directory, unless a directory is given as argument.
+ */
+public class JDvrSyncPolicyBenchmark {
+    final private static int CHUNK_SIZE = 188 * 256;
+    final private static int CHUNKS = 2048;                 // about 94 MB per iteration
+    final private static int SEGMENT_SIZE = 188 * 4096 * 16; // about 12 MB, i.e. 7 rollovers
+    final private static int SYNC_INTERVAL = 1000;          // in ms
+    final private static long SYNC_INTERVAL_BYTES = 8L * 1024 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        final File dir = (args.length > 0) ? new File(args[0]) : JDvrBenchmark.createWorkDir("JDvrSyncPolicyBenchmark");
+        final int maxSegmentSize = JDvrSegment.getMaxSegmentSize();
+        JDvrSegment.setMaxSegmentSize(SEGMENT_SIZE);
+        try {
+            JDvrBenchmark.report("%-12s %10s %10s %10s %10s", "policy", "MB/s", "p50 us", "p99 us", "max us");
+            run(dir, "NONE", JDvrSyncPolicy.SYNC_POLICY_NONE);
+            run(dir, "PERIODIC", JDvrSyncPolicy.SYNC_POLICY_PERIODIC);
+            run(dir, "ON_ROLLOVER", JDvrSyncPolicy.SYNC_POLICY_ON_ROLLOVER);
+            run(dir, "EVERY_WRITE", JDvrSyncPolicy.SYNC_POLICY_EVERY_WRITE);
+        } finally {
+            JDvrSegment.setMaxSegmentSize(maxSegmentSize);
+            if (args.length == 0) {
+                JDvrBenchmark.deleteWorkDir(dir);
+            }
+        }
+    }
+
+    // Private functions
+    private static void run(File dir, String name, int policy) throws IOException {
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        for (int i = 0; i < CHUNK_SIZE; i += 188) {
+            chunk[i] = 0x47;
+        }
+        for (int i = 0; i < JDvrBenchmark.WARMUP_ITERATIONS; i++) {
+            record(dir, policy, chunk, null);
+        }
+        final long[] latencies = new long[CHUNKS * JDvrBenchmark.MEASURED_ITERATIONS];
+        long elapsed = 0L;
+        for (int i = 0; i < JDvrBenchmark.MEASURED_ITERATIONS; i++) {
+            elapsed += record(dir, policy, chunk, latencies, i * CHUNKS);
+        }
+        final long bytes = (long)CHUNK_SIZE * CHUNKS * JDvrBenchmark.MEASURED_ITERATIONS;
+        final int n = latencies.length;
+        JDvrBenchmark.report("%-12s %10.1f %10d %10d %10d", name, bytes / 1048576.0d / (elapsed / 1e9d),
+                JDvrBenchmark.percentile(latencies, n, 50) / 1000,
+                JDvrBenchmark.percentile(latencies, n, 99) / 1000,
+                JDvrBenchmark.percentile(latencies, n, 100) / 1000);
+    }
+    private static long record(File dir, int policy, byte[] chunk, long[] latencies) throws IOException {
+        return record(dir, policy, chunk, latencies, 0);
+    }
+    // Record a new recording and remove it afterwards. It returns the time taken from the first
+    // write to the end of close(), which includes the final forcing of data.
+    private static long record(File dir, int policy, byte[] chunk, long[] latencies, int from) throws IOException {
+        final String prefix = dir.getPath() + "/rec";
+        final JDvrFile file = new JDvrFile(prefix, true);
+        file.setSyncPolicy(policy, SYNC_INTERVAL, SYNC_INTERVAL_BYTES);
+        final long start = System.nanoTime();
+        for (int i = 0; i < CHUNKS; i++) {
+            final long ts0 = System.nanoTime();
+            final int len = file.write(chunk, 0, chunk.length, i * 1800L);
+            if (latencies != null) {
+                latencies[from + i] = System.nanoTime() - ts0;
+            }
+            if (len != chunk.length) {
+                throw new IOException("Only " + len + " bytes are written");
+            }
+        }
+        file.close();
+        final long elapsed = System.nanoTime() - start;
+        JDvrFile.delete2(prefix);
+        return elapsed;
+    }
+}
@@ -0,0 +1,268 @@
+package com.droidlogic.jdvrlib;
+
+import android.util.JsonReader;
+import android.util.Log;
+
+import com.droidlogic.jdvrlib.JDvrRecorder.JDvrStreamInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Catalog of recordings in a directory. It is designed for listing many recordings at once, e.g.
+ * by a recordings menu, without opening any of them.
+ * Metadata of recordings are read in parallel and cached in memory. A cached entry is taken as
+ * valid as long as the sequence of its .hdr header stays the same, which goes up on every update.
+ * Only recordings without usable header, e.g. repaired ones, fall back to modification time and
+ * length of .stat file, which can miss an update within the time granularity of the filesystem.
+ */
+public class JDvrCatalog {
+    /**
+     * Metadata of a recording.
+     */
+    public static class JDvrRecordingInfo {
+        public final String pathPrefix;
+        public final long size;             // in bytes
+        public final long duration;         // in ms
+        public final int firstSegmentId;
+        public final int lastSegmentId;
+        public final long limitSize;        // in bytes, 0 if not limited
+        public final int limitDuration;     // in seconds, 0 if not limited
+        public final ArrayList<JDvrStreamInfo> streams;  // streams the recording starts with
+        // Sequence of .hdr header the metadata come from, or -1 if they come from .stat file
+        private final long mHeaderSequence;
+        // Attributes of .stat file, to tell whether metadata without header are out of date
+        private final long mStatModified;
+        private final long mStatLength;
+
+        private JDvrRecordingInfo(String _pathPrefix, long _size, long _duration, int _firstSegmentId,
+                int _lastSegmentId, long _limitSize, int _limitDuration, ArrayList<JDvrStreamInfo> _streams,
+                long headerSequence, long statModified, long statLength) {
+            pathPrefix = _pathPrefix;
+            size = _size;
+            duration = _duration;
+            firstSegmentId = _firstSegmentId;
+            lastSegmentId = _lastSegmentId;
+            limitSize = _limitSize;
+            limitDuration = _limitDuration;
+            streams = _streams;
+            mHeaderSequence = headerSequence;
+            mStatModified = statModified;
+            mStatLength = statLength;
+        }
+        public boolean isTimeshift() {
+            return JDvrFile.isEffectiveLimitSize(limitSize) || JDvrFile.isEffectiveLimitDuration(limitDuration);
+        }
+        @Override
+        public String toString() {
+            return "{pathPrefix:"+pathPrefix+",size:"+size+",duration:"+duration+",segments:"+firstSegmentId
+                    +"-"+lastSegmentId+",limitSize:"+limitSize+",limitDuration:"+limitDuration+",streams:"+streams+"}";
+        }
+    }
+
+    final private static String TAG = JDvrCatalog.class.getSimpleName();
+    final private static int SCAN_THREADS = 4;
+    // A recording is recognized by its .stat file, or by its index files if .stat is missing
+    final private static Pattern mRecordingFilePattern = Pattern.compile("(.+?)(\\.stat|-\\d+\\.idx)");
+    private static JDvrCatalog mInstance = null;
+
+    private final ExecutorService mScanExecutor = Executors.newFixedThreadPool(SCAN_THREADS, r -> {
+        Thread thread = new Thread(r, "JDvrCatalog scan task");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ConcurrentHashMap<String,JDvrRecordingInfo> mCache = new ConcurrentHashMap<>();
+
+    public static synchronized JDvrCatalog getInstance() {
+        if (mInstance == null) {
+            mInstance = new JDvrCatalog();
+        }
+        return mInstance;
+    }
+    private JDvrCatalog() {
+    }
+    /**
+     * List all recordings in a directory. Recordings whose cached metadata are out of date are
+     * read again in parallel, and a recording without .stat file is repaired on the way unless it
+     * is being recorded.
+     *
+     * @param dirPath the directory where recordings are.
+     * @return metadata of recordings sorted by path prefix, or an empty list if the directory
+     *         cannot be listed.
+     */
+    public ArrayList<JDvrRecordingInfo> list(String dirPath) {
+        final File dir = new File(dirPath);
+        final String[] names = dir.list();
+        final ArrayList<JDvrRecordingInfo> ret = new ArrayList<>();
+        if (names == null) {
+            Log.w(TAG,"Cannot list "+dir.getAbsolutePath());
+            return ret;
+        }
+        final String dirPrefix = dir.getAbsolutePath() + "/";
+        final HashSet<String> pathPrefixes = new HashSet<>();
+        for (String name : names) {
+            final Matcher matcher = mRecordingFilePattern.matcher(name);
+            if (matcher.matches()) {
+                pathPrefixes.add(dirPrefix + matcher.group(1));
+            }
+        }
+        // Forget recordings that have gone
+        mCache.keySet().removeIf(key -> key.startsWith(dirPrefix) && key.indexOf('/', dirPrefix.length()) < 0
+                && !pathPrefixes.contains(key));
+        final HashMap<String,Future<JDvrRecordingInfo>> pending = new HashMap<>();
+        for (String pathPrefix : pathPrefixes) {
+            final JDvrRecordingInfo info = getIfValid(pathPrefix);
+            if (info != null) {
+                ret.add(info);
+            } else {
+                pending.put(pathPrefix, mScanExecutor.submit((Callable<JDvrRecordingInfo>) () -> load(pathPrefix)));
+            }
+        }
+        for (Future<JDvrRecordingInfo> future : pending.values()) {
+            try {
+                final JDvrRecordingInfo info = future.get();
+                if (info != null) {
+                    ret.add(info);
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+                e.printStackTrace();
+            }
+        }
+        ret.sort(Comparator.comparing(info -> info.pathPrefix));
+        Log.d(TAG,"Listed "+ret.size()+" recordings in "+dirPath+", "+pending.size()+" of them read from storage");
+        return ret;
+    }
+    /**
+     * This is the static version of list() that returns an array for convenience of JNI.
+     */
+    public static JDvrRecordingInfo[] list2(String dirPath) {
+        final List<JDvrRecordingInfo> infos = getInstance().list(dirPath);
+        return infos.toArray(new JDvrRecordingInfo[0]);
+    }
+    /**
+     * Get metadata of a recording.
+     *
+     * @param pathPrefix the path prefix of the recording.
+     * @return metadata of the recording, or null if it cannot be read.
+     */
+    public JDvrRecordingInfo get(String pathPrefix) {
+        final JDvrRecordingInfo info = getIfValid(pathPrefix);
+        return (info != null) ? info : load(pathPrefix);
+    }
+    /**
+     * Drop cached metadata of a recording, e.g. after it has been deleted.
+     */
+    public void invalidate(String pathPrefix) {
+        mCache.remove(pathPrefix);
+    }
+
+    // Private functions
+    private JDvrRecordingInfo getIfValid(String pathPrefix) {
+        final JDvrRecordingInfo info = mCache.get(pathPrefix);
+        if (info == null) {
+            return null;
+        }
+        final long sequence = JDvrHeader.readSequence(pathPrefix);
+        if (sequence >= 0 || info.mHeaderSequence >= 0) {
+            return (sequence == info.mHeaderSequence) ? info : null;
+        }
+        final File statFile = new File(pathPrefix + ".stat");
+        final boolean cond1 = (statFile.lastModified() == info.mStatModified);
+        final boolean cond2 = (statFile.length() == info.mStatLength);
+        return (cond1 && cond2) ? info : null;
+    }
+    private JDvrRecordingInfo load(String pathPrefix) {
+        final File statFile = new File(pathPrefix + ".stat");
+        if (!statFile.exists() || statFile.length() == 0) {
+            JDvrFile.repairFilesIfNotRecording(pathPrefix);
+        }
+        // Attributes are taken before content, so a change in between is caught next time
+        final long statModified = statFile.lastModified();
+        final long statLength = statFile.length();
+        long size = 0L;
+        long duration = 0L;
+        int firstSegmentId = -1;
+        int lastSegmentId = -1;
+        long limitSize = 0L;
+        int limitDuration = 0;
+        long headerSequence = -1L;
+        final JDvrHeader header = JDvrHeader.read(pathPrefix);
+        if (header != null) {
+            headerSequence = header.getSequence();
+            size = header.mSize;
+            duration = header.mDuration;
+            firstSegmentId = header.mFirstSegmentId;
+            lastSegmentId = header.mLastSegmentId;
+            limitSize = header.mLimitSize;
+            limitDuration = header.mLimitDuration;
+        } else {
+            try {
+                final String content = new String(Files.readAllBytes(statFile.toPath()));
+                JsonReader reader = new JsonReader(new StringReader(content));
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "size":
+                            size = reader.nextLong();
+                            break;
+                        case "duration":
+                            duration = reader.nextLong();
+                            break;
+                        case "first_segment_id":
+                            firstSegmentId = reader.nextInt();
+                            break;
+                        case "last_segment_id":
+                            lastSegmentId = reader.nextInt();
+                            break;
+                        case "limit_size":
+                            limitSize = reader.nextLong();
+                            break;
+                        case "limit_duration":
+                            limitDuration = reader.nextInt();
+                            break;
+                        default:
+                            reader.skipValue();
+                            break;
+                    }
+                }
+                reader.endObject();
+            } catch (IOException | IllegalStateException e) {
+                Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+                mCache.remove(pathPrefix);
+                return null;
+            }
+        }
+        // Streams hardly change, so they are read again only if the first segment is a different one
+        final JDvrRecordingInfo old = mCache.get(pathPrefix);
+        ArrayList<JDvrStreamInfo> streams;
+        if (old != null && old.firstSegmentId == firstSegmentId) {
+            streams = old.streams;
+        } else if (firstSegmentId >= 0) {
+            JDvrSegment segment = new JDvrSegment(pathPrefix, firstSegmentId, 1, 0);
+            streams = new ArrayList<>(segment.getStreamsInfo());
+            segment.close();
+        } else {
+            streams = new ArrayList<>();
+        }
+        final JDvrRecordingInfo info = new JDvrRecordingInfo(pathPrefix, size, duration, firstSegmentId,
+                lastSegmentId, limitSize, limitDuration, streams, headerSequence, statModified, statLength);
+        mCache.put(pathPrefix, info);
+        return info;
+    }
+}
@@ -39,6 +39,29 @@ public class JDvrCommon {
         public final static int AUDIO_FORMAT_PCM = AvSettings.AUDIO_STREAM_TYPE_PCM;
         public final static int AUDIO_FORMAT_AC4 = AvSettings.AUDIO_STREAM_TYPE_AC4;
     }
+    public static class JDvrSyncPolicy {
+        // Never force data to storage explicitly, leave it to the kernel writeback.
+        public final static int SYNC_POLICY_NONE = 0;
+        // Force data to storage in background every N ms or every N bytes, whichever comes first.
+        public final static int SYNC_POLICY_PERIODIC = 1;
+        // Force data of a segment to storage in background when it is rolled over.
+        public final static int SYNC_POLICY_ON_ROLLOVER = 2;
+        // Every write is synchronous (files are opened in "rws" mode).
+        public final static int SYNC_POLICY_EVERY_WRITE = 3;
+    }
+    public static class JDvrIndexFormat {
+        // One JSON object per line. It is readable by all versions of JDvrLib.
+        public final static int INDEX_FORMAT_JSON = 0;
+        // Fixed-width little-endian records which can be looked up in place without parsing.
+        public final static int INDEX_FORMAT_BINARY = 1;
+    }
+    public static class JDvrReadMode {
+        // Positional reads (pread) from ts files.
+        public final static int READ_MODE_POSITIONAL = 0;
+        // Ts files of segments no longer being written are mapped into memory and read from there.
+        // Segments still being written fall back to positional reads.
+        public final static int READ_MODE_MMAP = 1;
+    }
 
     // Functions
     public static int generateSessionNumber() {
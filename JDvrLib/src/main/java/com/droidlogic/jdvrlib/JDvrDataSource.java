@@ -0,0 +1,49 @@
+package com.droidlogic.jdvrlib;
+
+import android.media.tv.tuner.dvr.DvrRecorder;
+import android.os.ParcelFileDescriptor;
+
+/**
+ * Source of recorded TS data.
+ * It is the part of Tuner DvrRecorder that is needed to take recorded data out, so that the
+ * recording data path of JDvrFile can also be fed by a stand-in, e.g. by tests on a Linux host
+ * without Tuner.
+ */
+public interface JDvrDataSource {
+    /**
+     * Copy recorded data into a buffer.
+     * @return number of bytes copied.
+     */
+    long write(byte[] buffer, long offset, long size);
+    /**
+     * Write recorded data to the file descriptor given by setFileDescriptor.
+     * @return number of bytes written.
+     */
+    long write(long size);
+    /**
+     * Set the file descriptor that write(long) writes to.
+     * The caller keeps the ownership of the file descriptor.
+     */
+    void setFileDescriptor(ParcelFileDescriptor fd);
+
+    // JDvrDataSource backed by a Tuner DvrRecorder
+    class JDvrTunerDataSource implements JDvrDataSource {
+        private final DvrRecorder mDvrRecorder;
+
+        public JDvrTunerDataSource(DvrRecorder recorder) {
+            mDvrRecorder = recorder;
+        }
+        @Override
+        public long write(byte[] buffer, long offset, long size) {
+            return mDvrRecorder.write(buffer, offset, size);
+        }
+        @Override
+        public long write(long size) {
+            return mDvrRecorder.write(size);
+        }
+        @Override
+        public void setFileDescriptor(ParcelFileDescriptor fd) {
+            mDvrRecorder.setFileDescriptor(fd);
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package com.droidlogic.jdvrlib;
 
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
 import android.os.SystemClock;
 import android.util.JsonReader;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.StringReader;
@@ -12,17 +16,18 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Locale;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 import com.droidlogic.jdvrlib.JDvrCommon.*;
 import com.droidlogic.jdvrlib.JDvrRecorder.JDvrStreamInfo;
@@ -33,24 +38,182 @@ public class JDvrFile {
     final private int mType;  // 0: for normal recording, 1: for timeshift recording, 2: for playback
     private long mLimitSize = Long.MAX_VALUE;
     private int mLimitSeconds = Integer.MAX_VALUE;
-    private final ArrayList<JDvrSegment> mSegments = new ArrayList<>();
+    private final JDvrSegmentDeque mSegments = new JDvrSegmentDeque();
+    // Running totals of all segments but the last one, which is the only one still growing
+    private long mSealedSize = 0L;
+    private long mSealedDuration = 0L;
+    // Start and end times of sealed segments, at the same positions as in mSegments, so that time
+    // lookups are binary searches. The last segment is still growing and it is checked separately.
+    private long[] mTimelineStart = new long[16];
+    private long[] mTimelineEnd = new long[16];
+    private int mTimelineLength = 0;
     final private String mStatPath;
     final private String mListPath;
     final private String mLockPath;
+    // .list is an append-only journal of "id,start,duration" lines in which the last line of a segment
+    // wins and a negative duration marks a removed segment. It is compacted once it grows too long.
+    private RandomAccessFile mListStream = null;
+    private int mListJournalLines = 0;
+    private int mLastJournaledSegmentId = -1;
+    private final StringBuilder mListJournalPending = new StringBuilder();
+    final private static int LIST_JOURNAL_SLACK = 32;
     FileChannel mLockChannel;
     FileLock mLock;
     private long mTimestampOfLastWriteIndex = 0;
     private long mPtsOfLastWriteIndex = 0;
+    // Key frames noted by recorder are kept as positions in all data ever given to write(), until
+    // the data containing them is written and they can be turned into offsets in a segment.
+    private final JDvrLongQueue mPendingKeyFrames = new JDvrLongQueue();   // for recording only
+    private long mBytesReceived = 0L;           // for recording only
+    private long mLastKeyFrameOffset = -1L;     // in current segment, for recording only
     private long mTimestampOfOrigin = 0;
     final public static int mMinIndexInterval = 300;  // in ms
     final public static int mPtsMargin = mMinIndexInterval * 90 * 2;  // in 90KHz
     private ArrayList<JDvrStreamInfo> mCurrentRecordingStreams = new ArrayList<>();
     private boolean mPidHasChanged = false;
-    private final Comparator<JDvrSegment> mStartTimeCmp = Comparator.comparingLong(JDvrSegment::getStartTime);
-    private int mSegmentIdBeingRead = 0;
+    private volatile int mSegmentIdBeingRead = 0;
+    // Segment I/O of playback is done under mReadLock rather than this, so that getters called by
+    // player thread do not wait for disk. Where both are needed, mReadLock is taken first.
+    private final Object mReadLock = new Object();
     private int mLastLoadedSegmentId = -1;
     private long mPlayingTime = 0L;     // in ms
     private long mLastPts = 0L;
+    private int mSyncPolicy = JDvrSyncPolicy.SYNC_POLICY_EVERY_WRITE;
+    private int mSyncInterval = 1000;   // in ms
+    private long mSyncIntervalBytes = 8 * 1024 * 1024;
+    private long mBytesSinceLastSync = 0L;
+    private long mTimestampOfLastSync = 0L;
+    private int mWriteBufferSize = 0;
+    private int mWriteBufferMaxLatency = 200;   // in ms
+    private int mIndexFormat = JDvrIndexFormat.INDEX_FORMAT_JSON;
+    private int mReadMode = JDvrReadMode.READ_MODE_POSITIONAL;   // for playback only
+    private HandlerThread mSyncThread = null;
+    private Handler mSyncHandler = null;
+    private volatile JDvrSegment mSegmentToSync = null;
+    private ParcelFileDescriptor mNullFileDescriptor = null;
+    private double mPrefetchThreshold = 0.8d;   // for playback only
+    private int mSegmentIdPrefetched = -1;
+    private HandlerThread mPrefetchThread = null;
+    private Handler mPrefetchHandler = null;
+    private JDvrSegment mSpareSegment = null;   // next segment created ahead of time, for recording only
+    private boolean mPreallocation = false;     // ts files are preallocated to max segment size
+    private HandlerThread mPrecreateThread = null;
+    private Handler mPrecreateHandler = null;
+    private Runnable mSparePrecreateTask = null;    // precreate() of mSpareSegment posted to mPrecreateHandler
+    private JDvrHeader mHeader = null;          // binary counterpart of .stat, for recording only
+    private final Runnable mSyncRunnable = () -> {
+        final JDvrSegment segment = mSegmentToSync;
+        if (segment != null) {
+            segment.sync();
+        }
+    };
+
+    // Segments in id order held in a ring buffer. Segment ids are contiguous, so a segment is found
+    // by its id in O(1), and timeshift appends at tail and removes at head in O(1).
+    private static class JDvrSegmentDeque extends AbstractList<JDvrSegment> implements RandomAccess {
+        private JDvrSegment[] mRing = new JDvrSegment[16];
+        private int mHead = 0;
+        private int mSize = 0;
+
+        @Override
+        public JDvrSegment get(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("index:"+index+", size:"+mSize);
+            }
+            return mRing[(mHead + index) & (mRing.length - 1)];
+        }
+        @Override
+        public int size() {
+            return mSize;
+        }
+        @Override
+        public boolean add(JDvrSegment segment) {
+            if (mSize == mRing.length) {
+                JDvrSegment[] ring = new JDvrSegment[mRing.length * 2];
+                for (int i = 0; i < mSize; i++) {
+                    ring[i] = get(i);
+                }
+                mRing = ring;
+                mHead = 0;
+            }
+            mRing[(mHead + mSize) & (mRing.length - 1)] = segment;
+            mSize++;
+            modCount++;
+            return true;
+        }
+        @Override
+        public JDvrSegment remove(int index) {
+            final JDvrSegment segment = get(index);
+            final int mask = mRing.length - 1;
+            if (index == 0) {
+                mRing[mHead] = null;
+                mHead = (mHead + 1) & mask;
+            } else {
+                for (int i = index; i < mSize - 1; i++) {
+                    mRing[(mHead + i) & mask] = mRing[(mHead + i + 1) & mask];
+                }
+                mRing[(mHead + mSize - 1) & mask] = null;
+            }
+            mSize--;
+            modCount++;
+            return segment;
+        }
+        public JDvrSegment getById(int id) {
+            if (mSize == 0) {
+                return null;
+            }
+            final int i = id - get(0).id();
+            if (i < 0 || i >= mSize) {
+                return null;
+            }
+            final JDvrSegment segment = get(i);
+            if (segment.id() == id) {
+                return segment;
+            }
+            // Only if there are gaps in segment ids
+            for (int j = 0; j < mSize; j++) {
+                if (get(j).id() == id) {
+                    return get(j);
+                }
+            }
+            return null;
+        }
+    }
+
+    // Queue of longs held in a ring buffer, so that queuing and taking them allocates nothing
+    private static class JDvrLongQueue {
+        private long[] mRing = new long[16];
+        private int mHead = 0;
+        private int mSize = 0;
+
+        void add(long value) {
+            if (mSize == mRing.length) {
+                long[] ring = new long[mRing.length * 2];
+                for (int i = 0; i < mSize; i++) {
+                    ring[i] = mRing[(mHead + i) & (mRing.length - 1)];
+                }
+                mRing = ring;
+                mHead = 0;
+            }
+            mRing[(mHead + mSize) & (mRing.length - 1)] = value;
+            mSize++;
+        }
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+        long peek() {
+            if (mSize == 0) {
+                throw new NoSuchElementException();
+            }
+            return mRing[mHead];
+        }
+        long poll() {
+            final long value = peek();
+            mHead = (mHead + 1) & (mRing.length - 1);
+            mSize--;
+            return value;
+        }
+    }
 
     // Public APIs
     /**
@@ -134,9 +297,9 @@ public class JDvrFile {
             }
             File statFile = new File(mStatPath);
             if (!statFile.exists() || statFile.length() == 0) {
-                repairFiles(path_prefix);
+                repairFilesIfNotRecording(path_prefix);
             }
-            if (!(load() || load() || load())) {
+            if (!load()) {
                 Log.d(TAG,"unlock(100-200) for playback");
                 mLock.release();
                 throw new RuntimeException("Fails to load recording files");
@@ -160,45 +323,66 @@ public class JDvrFile {
         Log.i(TAG,"loading recording " + mPathPrefix);
         File listFile = new File(mListPath);
         if (listFile.exists()) {
-            RandomAccessFile listStream;
+            final TreeMap<Integer,long[]> entries = new TreeMap<>();
             try {
-                listStream = new RandomAccessFile(listFile, "r");
-                listStream.getFD().sync();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-            try {
-                for (String line = listStream.readLine();
-                     line != null;
-                     line = listStream.readLine()) {
+                final String content = new String(Files.readAllBytes(listFile.toPath()));
+                // A trailing line without '\n' is still being appended by recorder, so skip it
+                final String[] lines = content.substring(0, content.lastIndexOf('\n')+1).split("\n");
+                for (String line : lines) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
                     String[] tokens = line.split(",");
                     final int segment_id = Integer.parseInt(tokens[0]);
                     final long start_time = Long.parseLong(tokens[1]);
                     final long duration = Long.parseLong(tokens[2]);
-                    JDvrSegment segment = new JDvrSegment(mPathPrefix, segment_id, (mType == 2 ? 1 : 0), 0);
-                    segment.setStartTime(start_time);
-                    segment.setDuration(duration);
-                    mSegments.add(segment);
-                    mLastLoadedSegmentId = segment.id();
+                    if (duration < 0) {
+                        entries.remove(segment_id);
+                    } else {
+                        entries.put(segment_id, new long[]{start_time, duration});
+                    }
                 }
-            } catch (IOException | NumberFormatException e) {
+            } catch (IOException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
                 Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
                 e.printStackTrace();
                 return false;
             }
+            for (Map.Entry<Integer,long[]> entry : entries.entrySet()) {
+                JDvrSegment segment = new JDvrSegment(mPathPrefix, entry.getKey(), (mType == 2 ? 1 : 0), 0);
+                if (mType == 2) {
+                    segment.setReadMode(mReadMode);
+                }
+                segment.setStartTime(entry.getValue()[0]);
+                segment.setDuration(entry.getValue()[1]);
+                mSegments.add(segment);
+                mLastLoadedSegmentId = segment.id();
+            }
             if (mSegments.size() == 0) {
                 Log.e(TAG,"Fails to load any segment");
                 return false;
             }
             mSegmentIdBeingRead = mSegments.get(0).id();
+            for (int i=0; i<mSegments.size()-1; i++) {
+                sealSegment(mSegments.get(i));
+            }
         }
-        if (mType == 2) {
+        final JDvrHeader header = (mType == 2) ? JDvrHeader.read(mPathPrefix) : null;
+        if (header != null) {
+            mLimitSize = (header.mLimitSize > 0 ? header.mLimitSize : Long.MAX_VALUE);
+            mLimitSeconds = (header.mLimitDuration > 0 ? header.mLimitDuration : Integer.MAX_VALUE);
+            mPreallocation = ((header.mFlags & JDvrHeader.FLAG_PREALLOCATION) != 0);
+            final JDvrSegment lastSegment = getLastSegment();
+            if (lastSegment != null) {
+                lastSegment.setPreallocation(mPreallocation);
+            }
+        } else if (mType == 2) {
             try {
                 final String[] lines = Files.readAllLines(Paths.get(mStatPath)).toArray(new String[0]);
                 for (String line : lines) {
                     JsonReader reader = new JsonReader(new StringReader(line));
                     long limitSize = Long.MAX_VALUE;
                     int limitDuration = Integer.MAX_VALUE;
+                    boolean preallocation = false;
                     boolean hit = false;
                     reader.beginObject();
                     while (reader.hasNext()) {
@@ -209,6 +393,8 @@ public class JDvrFile {
                         } else if (name.equals("limit_duration")) {
                             limitDuration = reader.nextInt();
                             hit = true;
+                        } else if (name.equals("prealloc")) {
+                            preallocation = (reader.nextInt() != 0);
                         } else {
                             reader.skipValue();
                         }
@@ -217,6 +403,11 @@ public class JDvrFile {
                     if (hit) {
                         mLimitSize = (limitSize > 0 ? limitSize : Long.MAX_VALUE);
                         mLimitSeconds = (limitDuration > 0 ? limitDuration : Integer.MAX_VALUE);
+                        mPreallocation = preallocation;
+                        final JDvrSegment lastSegment = getLastSegment();
+                        if (lastSegment != null) {
+                            lastSegment.setPreallocation(preallocation);
+                        }
                         break;
                     }
                 }
@@ -245,7 +436,7 @@ public class JDvrFile {
      * @return The full path of ts file, or null if segment does not exist.
      */
     public String getTsFilename(int segment_id) {
-        JDvrSegment seg = mSegments.stream().filter(s -> (s.id() == segment_id)).findFirst().orElse(null);
+        JDvrSegment seg = mSegments.getById(segment_id);
         return (seg != null) ? seg.getTsPath() : null;
     }
     /**
@@ -254,7 +445,7 @@ public class JDvrFile {
      * @return The full path of index file, or null if segment does not exist.
      */
     public String getIndexFilename(int segment_id) {
-        JDvrSegment seg = mSegments.stream().filter(s -> (s.id() == segment_id)).findFirst().orElse(null);
+        JDvrSegment seg = mSegments.getById(segment_id);
         return (seg != null) ? seg.getIndexPath() : null;
     }
     /**
@@ -268,14 +459,36 @@ public class JDvrFile {
      * Add a new segment to the recording. It will be the last one at end of segments list.
      * @return new segment id
      */
-    public int addSegment() {
+    public synchronized int addSegment() {
         JDvrSegment lastSegment = null;
         final int len = mSegments.size();
         if (len>0) {
             lastSegment = mSegments.get(len-1);
         }
         final int newID = getLastSegmentId() + 1;
-        JDvrSegment segment = new JDvrSegment(mPathPrefix, newID, (mType < 2) ? 0 : 1, 0);
+        // Finish last segment first, so it has been trimmed by the time playback sees the new one.
+        // Its write buffer goes on to the new segment rather than being allocated again.
+        byte[] writeBuffer = null;
+        if (lastSegment != null) {
+            if (mType < 2) {
+                writeBuffer = lastSegment.takeWriteBuffer();
+            }
+            sealSegment(lastSegment);
+        }
+        JDvrSegment segment = (mType < 2) ? takeSpareSegment(newID) : null;
+        if (segment == null) {
+            segment = new JDvrSegment(mPathPrefix, newID, (mType < 2) ? 0 : 1, 0);
+            if (mType < 2) {
+                segment.setSyncOnWrite(mSyncPolicy == JDvrSyncPolicy.SYNC_POLICY_EVERY_WRITE);
+                segment.setIndexFormat(mIndexFormat);
+            } else {
+                segment.setReadMode(mReadMode);
+            }
+            segment.setPreallocation(mPreallocation);
+        }
+        if (mType < 2) {
+            segment.setWriteBufferSize(mWriteBufferSize, writeBuffer);
+        }
         segment.setLastSegment(true);
         if (lastSegment != null) {
             lastSegment.setLastSegment(false);
@@ -283,6 +496,9 @@ public class JDvrFile {
         }
         mSegments.add(segment);
         Log.i(TAG,"addSegment #"+segment.id()+" with initial startTime:"+segment.getStartTime());
+        if (mType < 2) {
+            prepareSpareSegment(newID + 1);
+        }
         return newID;
     }
     /**
@@ -292,16 +508,46 @@ public class JDvrFile {
      */
     public boolean removeSegment(int segment_id) {
         if (mType == 0) { throw new RuntimeException("Cannot do this under Normal Recording situation"); }
-        JDvrSegment seg = mSegments.stream().filter(s -> (s.id() == segment_id)).findFirst().orElse(null);
-        if (seg == null) {
-            return false;
-        }
-        seg.close();
-        if (mType == 1) {
-            seg.delete();
+        // The segment is closed below, so it must not be in the middle of a read
+        synchronized (mReadLock) {
+            synchronized (this) {
+                JDvrSegment seg = mSegments.getById(segment_id);
+                if (seg == null) {
+                    return false;
+                }
+                final boolean isLast = (seg == getLastSegment());
+                final int idx = mSegments.indexOf(seg);
+                if (!isLast) {
+                    mSealedSize -= seg.size();
+                    mSealedDuration -= seg.duration();
+                    System.arraycopy(mTimelineStart, idx+1, mTimelineStart, idx, mTimelineLength-idx-1);
+                    System.arraycopy(mTimelineEnd, idx+1, mTimelineEnd, idx, mTimelineLength-idx-1);
+                    mTimelineLength--;
+                }
+                seg.close();
+                if (mType == 1) {
+                    // Unlinking a large ts file may take long, so it is left to background
+                    seg.reap();
+                    mListJournalPending.append(String.format(Locale.US, "%d,%d,-1\n", seg.id(), seg.getStartTime()));
+                }
+                mSegments.remove(idx);
+                if (isLast) {
+                    // The new last segment no longer counts in sealed totals, and its size and
+                    // duration are followed again as those of the last segment
+                    final JDvrSegment newLast = getLastSegment();
+                    if (newLast != null && newLast.isSealed()) {
+                        mSealedSize -= newLast.size();
+                        mSealedDuration -= newLast.duration();
+                        mTimelineLength--;
+                        newLast.unseal();
+                    }
+                    if (newLast != null) {
+                        newLast.setLastSegment(true);
+                    }
+                }
+                return true;
+            }
         }
-        mSegments.remove(seg);
-        return true;
     }
     /**
      * Get first segment id of the recording.
@@ -330,7 +576,7 @@ public class JDvrFile {
      * @return the segment id of its following segment, or -1 if the given segment does not exist.
      */
     public int getNextSegmentId(int segment_id) {
-        final JDvrSegment seg = mSegments.stream().filter(s -> (s.id() == segment_id)).findFirst().orElse(null);
+        final JDvrSegment seg = mSegments.getById(segment_id);
         return (seg != null) ? seg.id() + 1 : -1;
     }
     /**
@@ -367,6 +613,8 @@ public class JDvrFile {
      * A recording that is being recorded or played cannot be deleted.
      * This is the static version of delete() that does not require to be used with associated
      * JDvrFile object for convenience.
+     * Files of the recording are gone from its directory when it returns, but storage they occupy
+     * is freed later in background.
      *
      * @param pathPrefix the path prefix of the recording to be removed.
      * @return true if operation is successful, or false otherwise.
@@ -400,18 +648,45 @@ public class JDvrFile {
         lockFile.delete();
         return true;
     }
+    /**
+     * Delete a number of recordings in background. Each recording is deleted in the way delete2()
+     * does, and the returned future completes after files of all of them have been unlinked.
+     * A recording that is being recorded or played cannot be deleted.
+     *
+     * @param pathPrefixes the path prefixes of the recordings to be removed.
+     * @return a future of true if all recordings are deleted, or false if any of them fails.
+     */
+    public static CompletableFuture<Boolean> deleteAsync(String... pathPrefixes) {
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        final JDvrReaper reaper = JDvrReaper.getInstance();
+        reaper.execute(() -> {
+            boolean ret = true;
+            for (String pathPrefix : pathPrefixes) {
+                ret &= delete2(pathPrefix);
+            }
+            final boolean result = ret;
+            // Posted after unlinking of the files reaped above, so it completes when they are done
+            reaper.execute(() -> future.complete(result));
+        });
+        return future;
+    }
     /**
      * Get recording size in bytes.
      * @return recording size in bytes.
      */
-    public long size()
+    public synchronized long size()
     {
-        if (mSegments.size() == 0) {
+        final JDvrSegment lastSegment = getLastSegment();
+        if (lastSegment == null) {
             return 0L;
         }
-        return mSegments.stream().mapToLong(JDvrSegment::size).sum();
+        return mSealedSize + lastSegment.size();
     }
     public static long size2(String pathPrefix) {
+        final JDvrHeader header = JDvrHeader.read(pathPrefix);
+        if (header != null) {
+            return header.mSize;
+        }
         long ret = 0L;
         final String statPath = pathPrefix + ".stat";
         try {
@@ -445,16 +720,24 @@ public class JDvrFile {
      * Get recording duration in ms.
      * @return recording duration in ms.
      */
-    public long duration()
+    public synchronized long duration()
     {
-        return mSegments.stream().mapToLong(JDvrSegment::duration).sum();
+        final JDvrSegment lastSegment = getLastSegment();
+        if (lastSegment == null) {
+            return 0L;
+        }
+        return mSealedDuration + lastSegment.duration();
     }
     public static long duration2(String pathPrefix) {
+        final JDvrHeader header = JDvrHeader.read(pathPrefix);
+        if (header != null) {
+            return header.mDuration;
+        }
         long ret = 0L;
         final String statPath = pathPrefix + ".stat";
         File statFile = new File(statPath);
         if (!statFile.exists() || statFile.length() == 0) {
-            repairFiles(pathPrefix);
+            repairFilesIfNotRecording(pathPrefix);
         }
         try {
             final String[] lines = Files.readAllLines(Paths.get(statPath)).toArray(new String[0]);
@@ -487,34 +770,99 @@ public class JDvrFile {
      * Close all segment files including ts/index.
      */
     public void close() {
-        if (mSegments.size() > 0) {
-            mSegments.forEach(JDvrSegment::close);
-            if (mType<2) {
+        // Reads in progress finish before segments are closed
+        synchronized (mReadLock) {
+            synchronized (this) {
+                if (mPrecreateThread != null) {
+                    mPrecreateThread.quitSafely();
+                    try {
+                        mPrecreateThread.join();
+                    } catch (InterruptedException e) {
+                        Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+                    }
+                    mPrecreateThread = null;
+                    mPrecreateHandler = null;
+                }
+                discardSpareSegment();
+                // Segments must not be warmed any more once they are closed
+                if (mPrefetchThread != null) {
+                    mPrefetchThread.quitSafely();
+                    try {
+                        mPrefetchThread.join();
+                    } catch (InterruptedException e) {
+                        Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+                    }
+                    mPrefetchThread = null;
+                    mPrefetchHandler = null;
+                }
+                if (mSyncThread != null) {
+                    mSyncThread.quitSafely();
+                    try {
+                        mSyncThread.join();
+                    } catch (InterruptedException e) {
+                        Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+                    }
+                    mSyncThread = null;
+                    mSyncHandler = null;
+                }
+                if (mType < 2 && mSyncPolicy != JDvrSyncPolicy.SYNC_POLICY_NONE
+                        && mSyncPolicy != JDvrSyncPolicy.SYNC_POLICY_EVERY_WRITE) {
+                    final JDvrSegment lastSegment = getLastSegment();
+                    if (lastSegment != null) {
+                        lastSegment.flush();
+                        lastSegment.sync();
+                    }
+                }
+                if (mSegments.size() > 0) {
+                    mSegments.forEach(JDvrSegment::close);
+                    if (mType<2) {
+                        try {
+                            compactListFile();
+                        } catch (IOException e) {
+                            Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+                        }
+                    }
+                }
+                if (mNullFileDescriptor != null) {
+                    try {
+                        mNullFileDescriptor.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+                    }
+                    mNullFileDescriptor = null;
+                }
+                if (mListStream != null) {
+                    try {
+                        mListStream.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+                    }
+                    mListStream = null;
+                }
+                if (mHeader != null) {
+                    mHeader.close();
+                    mHeader = null;
+                }
                 try {
-                    updateListFile();
+                    if (mLock.isValid()) {
+                        if (mType == 0) {
+                            Log.d(TAG,"unlock for recording");
+                        } else if (mType == 1) {
+                            Log.d(TAG, "unlock for timeshift recording");
+                        } else if (mType == 2) {
+                            Log.d(TAG, "unlock for playback");
+                        }
+                        mLock.release();
+                        mLock = null;
+                    }
+                    if (mLockChannel != null) {
+                        mLockChannel.close();
+                        mLockChannel = null;
+                    }
                 } catch (IOException e) {
-                    Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
-                }
-            }
-        }
-        try {
-            if (mLock.isValid()) {
-                if (mType == 0) {
-                    Log.d(TAG,"unlock for recording");
-                } else if (mType == 1) {
-                    Log.d(TAG, "unlock for timeshift recording");
-                } else if (mType == 2) {
-                    Log.d(TAG, "unlock for playback");
+                    throw new RuntimeException(e);
                 }
-                mLock.release();
-                mLock = null;
             }
-            if (mLockChannel != null) {
-                mLockChannel.close();
-                mLockChannel = null;
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
     }
     public long getLimitSize() {
@@ -528,9 +876,9 @@ public class JDvrFile {
      *
      * @return the PID of video if successful or 0x1fff if failed.
      */
-    public int getVideoPID() {
+    public synchronized int getVideoPID() {
         if (mType < 2) { throw new RuntimeException("Cannot do this under Recording situation"); }
-        JDvrSegment seg = mSegments.stream().filter(s -> (s.id() == mSegmentIdBeingRead)).findFirst().orElse(null);
+        JDvrSegment seg = mSegments.getById(mSegmentIdBeingRead);
         return (seg != null) ? seg.getVideoPid() : 0x1fff;
     }
     /**
@@ -540,7 +888,7 @@ public class JDvrFile {
      */
     public String getVideoMIMEType() {
         if (mType < 2) { throw new RuntimeException("Cannot do this under Recording situation"); }
-        JDvrSegment seg = mSegments.stream().filter(s -> (s.id() == mSegmentIdBeingRead)).findFirst().orElse(null);
+        JDvrSegment seg = mSegments.getById(mSegmentIdBeingRead);
         return (seg != null) ? seg.getVideoMIMEType() : null;
     }
     /**
@@ -550,7 +898,7 @@ public class JDvrFile {
      */
     public int getVideoFormat() {
         if (mType < 2) { throw new RuntimeException("Cannot do this under Recording situation"); }
-        JDvrSegment seg = mSegments.stream().filter(s -> (s.id() == mSegmentIdBeingRead)).findFirst().orElse(null);
+        JDvrSegment seg = mSegments.getById(mSegmentIdBeingRead);
         return (seg != null) ? seg.getVideoFormat() : JDvrVideoFormat.VIDEO_FORMAT_UNDEFINED;
     }
     /**
@@ -560,7 +908,7 @@ public class JDvrFile {
      */
     public int getAudioPID() {
         if (mType < 2) { throw new RuntimeException("Cannot do this under Recording situation"); }
-        JDvrSegment seg = mSegments.stream().filter(s -> (s.id() == mSegmentIdBeingRead)).findFirst().orElse(null);
+        JDvrSegment seg = mSegments.getById(mSegmentIdBeingRead);
         return (seg != null) ? seg.getAudioPID() : 0x1fff;
     }
     /**
@@ -570,7 +918,7 @@ public class JDvrFile {
      */
     public String getAudioMIMEType() {
         if (mType < 2) { throw new RuntimeException("Cannot do this under Recording situation"); }
-        JDvrSegment seg = mSegments.stream().filter(s -> (s.id() == mSegmentIdBeingRead)).findFirst().orElse(null);
+        JDvrSegment seg = mSegments.getById(mSegmentIdBeingRead);
         return (seg != null) ? seg.getAudioMIMEType() : null;
     }
     /**
@@ -580,159 +928,160 @@ public class JDvrFile {
      */
     public int getAudioFormat() {
         if (mType < 2) { throw new RuntimeException("Cannot do this under Recording situation"); }
-        JDvrSegment seg = mSegments.stream().filter(s -> (s.id() == mSegmentIdBeingRead)).findFirst().orElse(null);
+        JDvrSegment seg = mSegments.getById(mSegmentIdBeingRead);
         return (seg != null) ? seg.getAudioFormat() : JDvrAudioFormat.AUDIO_FORMAT_UNDEFINED;
     }
 
     // Private APIs
+    /**
+     * Note a key frame in data to be written. Index entries written afterwards carry offset of the
+     * latest key frame, so that seek can start from it rather than from the middle of a GOP.
+     *
+     * @param position offset of the key frame counted from the start of data the next write() takes.
+     *                 It may go beyond that data, in which case a later write() takes the key frame.
+     */
+    public synchronized void addKeyFrame(long position) {
+        if (mType == 2) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        mPendingKeyFrames.add(mBytesReceived + position);
+    }
     public int write (byte[] buffer, int offset, int size, long pts) throws IOException {
         if (mType == 2) { throw new RuntimeException("Cannot do this under Playback situation"); }
         final long curTs = SystemClock.elapsedRealtime();
-        final long diff1 = (pts - mPtsOfLastWriteIndex)/90;     // in ms
-        final long diff2 = curTs - mTimestampOfLastWriteIndex;  // in ms
-        final long timeElapsed = ((diff1>0 && diff1<3000) || (diff2>3000 && diff1>=0) ? diff1 : diff2);
-
-        // 1. Add a segment if necessary
-        {
-            JDvrSegment lastSegment = null;
-            final boolean cond1 = (mSegments.size() == 0);
-            boolean cond2 = false;
-            if (!cond1) {
-                lastSegment = getLastSegment();
-                cond2 = (lastSegment.size() + size > JDvrSegment.getMaxSegmentSize());
-            }
-            if (cond1 || cond2) {
-                if (lastSegment != null) {
-                    // write last index
-                    final String line = String.format(Locale.US,"{\"time\":%d, \"offset\":%d, \"pts\":%d}\n",
-                            lastSegment.duration()+timeElapsed,lastSegment.size(),pts);
-                    lastSegment.writeIndex(line.getBytes(), line.length());
-                    mTimestampOfLastWriteIndex = curTs;
-                    mPtsOfLastWriteIndex = pts;
-                    updateStatFile();
-                    updateListFile();
-                }
-                addSegment();
-                if (cond1) {
-                    mTimestampOfOrigin = curTs;
-                    Log.d(TAG,"Origin timestamp is " + mTimestampOfOrigin);
-                }
-            }
-        }
-        // 2. Remove a segment if necessary
-        {
-            final boolean cond1 = (size()+size > mLimitSize);
-            final boolean cond2 = ((duration()+curTs-mTimestampOfLastWriteIndex)/1000 >= mLimitSeconds);
-            final boolean cond3 = isTimeshift();
-            final boolean cond4 = (mSegments.size()>1);
-            if ((cond1 || cond2) && cond3 && cond4) {
-                removeSegment(getFirstSegmentId());
-            }
-        }
-        JDvrSegment currSegment = getLastSegment();
-        // 3. Update index file if necessary
-        final long newSize = size() + size;
-        {
-            final boolean cond1 = (currSegment.size() == 0);
-            final long timeOffsetOfSegment = cond1 ? 0 : currSegment.duration()+timeElapsed;
-            final long timeOffsetFromOrigin = currSegment.getStartTime()+timeOffsetOfSegment;
-            final boolean cond2 = mPidHasChanged;
-            if (cond1 || cond2) {
-                final String streamStr = mCurrentRecordingStreams.stream().map(Object::toString).collect(Collectors.joining(","));
-                final String line = String.format(Locale.US,
-                        "{\"time\":%d, \"time_offset_from_origin\":%d, \"id\":%d, \"nb_pids\":%d, \"pids\":[%s]}\n",
-                        timeOffsetOfSegment,timeOffsetFromOrigin,currSegment.id(),mCurrentRecordingStreams.size(),streamStr);
-                currSegment.writeIndex(line.getBytes(),line.length());
-                mPidHasChanged = false;
-            }
-            final boolean cond3 = (newSize <= mLimitSize);
-            final boolean cond4 = (curTs - mTimestampOfLastWriteIndex >= mMinIndexInterval);
-            if (cond1 || (cond3 && cond4)) {
-                final String line = String.format(Locale.US,"{\"time\":%d, \"offset\":%d, \"pts\":%d}\n",
-                        timeOffsetOfSegment,currSegment.size(),pts);
-                currSegment.writeIndex(line.getBytes(), line.length());
-                mTimestampOfLastWriteIndex = curTs;
-                mPtsOfLastWriteIndex = pts;
-                updateStatFile();
-                updateListFile();
-            }
-        }
+        final boolean writable = prepareWrite(size, pts, curTs);
+        final JDvrSegment currSegment = getLastSegment();
+        // 4. Write data to TS file
+        final int ret = writable ? currSegment.write(buffer, offset, size) : 0;
+        commitWrite(currSegment, ret, curTs);
+        return ret;
+    }
+    /**
+     * Write recorded data straight from a data source into the ts file of current segment through
+     * a file descriptor, so that the data never goes through Java heap. Index, stat and list files
+     * are maintained the same way as write(byte[], int, int, long) does. The file descriptor given
+     * to the data source is switched at segment rollover.
+     *
+     * @param source the data source to take data from.
+     * @param size number of bytes to take.
+     * @param pts PTS of the data.
+     * @return number of bytes written to ts file.
+     */
+    public int write (JDvrDataSource source, int size, long pts) throws IOException {
+        if (mType == 2) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        final long curTs = SystemClock.elapsedRealtime();
+        final boolean writable = prepareWrite(size, pts, curTs);
+        final JDvrSegment currSegment = getLastSegment();
         // 4. Write data to TS file
         int ret = 0;
-        {
-            final boolean cond1 = (newSize <= mLimitSize);
-            if (cond1) {
-                ret = currSegment.write(buffer, offset, size);
-            }
+        if (writable) {
+            ret = currSegment.write(source, size);
+        } else {
+            discard(source, size);
         }
+        commitWrite(currSegment, ret, curTs);
         return ret;
     }
+    /**
+     * Drain data from a data source without keeping it. Data is written to /dev/null through a file
+     * descriptor, so it does not go through Java heap either.
+     *
+     * @param source the data source to take data from.
+     * @param size number of bytes to drain.
+     * @return number of bytes drained.
+     */
+    public long discard(JDvrDataSource source, long size) throws IOException {
+        if (mNullFileDescriptor == null) {
+            mNullFileDescriptor = ParcelFileDescriptor.open(new File("/dev/null"), ParcelFileDescriptor.MODE_WRITE_ONLY);
+        }
+        source.setFileDescriptor(mNullFileDescriptor);
+        return source.write(size);
+    }
     public int read(byte[] buffer, int offset, int size) {
         if (mType < 2) { throw new RuntimeException("Cannot do this under Recording situation"); }
-        JDvrSegment seg = mSegments.stream().filter(s -> (s.id() == mSegmentIdBeingRead)).findFirst().orElse(null);
-        if (seg == null) {
-            return 0;
-        }
-        int n;
-        try {
-            n = seg.read(buffer,offset,size);
-        } catch (IOException e) {
-            Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
-            e.printStackTrace();
-            return 0;
-        }
-        if (n == -1) { // In case current segment has reached end
-            final int nextSegmentId = mSegmentIdBeingRead + 1;
-            seg = mSegments.stream().filter(s -> (s.id() == nextSegmentId)).findFirst().orElse(null);
-            if (seg != null) {
-                mSegmentIdBeingRead += 1;
-                String line =  String.format(Locale.US,"reading segment transition in playback: %04d => %04d",
-                        mSegmentIdBeingRead-1, mSegmentIdBeingRead);
-                Log.d(TAG,line);
-                seg.seek(0L);
-                try {
-                    n = seg.read(buffer,offset,size);
-                } catch (IOException e) {
-                    Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
-                    e.printStackTrace();
-                    return 0;
+        synchronized (mReadLock) {
+            JDvrSegment seg;
+            synchronized (this) {
+                seg = mSegments.getById(mSegmentIdBeingRead);
+            }
+            if (seg == null) {
+                return 0;
+            }
+            int n;
+            try {
+                n = seg.read(buffer,offset,size);
+            } catch (IOException e) {
+                Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+                e.printStackTrace();
+                return 0;
+            }
+            if (n == -1) { // In case current segment has reached end
+                final JDvrSegment nextSeg;
+                synchronized (this) {
+                    nextSeg = mSegments.getById(mSegmentIdBeingRead + 1);
+                }
+                if (nextSeg != null) {
+                    seg.unmap();
+                    mSegmentIdBeingRead = nextSeg.id();
+                    String line =  String.format(Locale.US,"reading segment transition in playback: %04d => %04d",
+                            seg.id(), nextSeg.id());
+                    Log.d(TAG,line);
+                    nextSeg.seek(0L);
+                    try {
+                        n = nextSeg.read(buffer,offset,size);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+                        e.printStackTrace();
+                        return 0;
+                    }
                 }
             }
+            if (n > 0) {
+                synchronized (this) {
+                    prefetchNextSegmentIfNeeded();
+                }
+            }
+            return n;
         }
-        return n;
     }
     public boolean seek(int ms) {
         if (mType < 2) { throw new RuntimeException("Cannot do this under Recording situation"); }
-        JDvrSegment ref = new JDvrSegment("",-1, 2, 0);
-        ref.setStartTime(ms);
-        int i = Collections.binarySearch(mSegments,ref,mStartTimeCmp);
-        if (i >= mSegments.size()) {
-            Log.w(TAG,"seek: input ms "+ms+" is invalid");
-            return false;
-        } else if (i < 0) {
-            i = -(i+2);
-            if (i == -1) {
-                i=0;
+        synchronized (mReadLock) {
+            final int i;
+            final JDvrSegment segment;
+            final JDvrSegment segmentLeft;
+            synchronized (this) {
+                i = segmentsIndexOfStartTime(ms);
+                if (i == -1) {
+                    Log.w(TAG,"seek: input ms "+ms+" is invalid");
+                    return false;
+                }
+                segment = mSegments.get(i);
+                segmentLeft = mSegments.getById(mSegmentIdBeingRead);
             }
+            final long timeOffset = ms - segment.getStartTime();
+            Log.d(TAG,"timeOffset("+timeOffset+") = ms("+ms+") - seg#"+segment.id()+".startTime("+segment.getStartTime()+")");
+            if (timeOffset < 0) {
+                Log.w(TAG,"seek: timeOffset "+timeOffset+" is invalid");
+                return false;
+            }
+            // It starts from the key frame before the index entry, if there is one
+            final long offset = segment.getKeyFrameOffsetOf(timeOffset);
+            // Other segments are rewound when reading enters them, see read()
+            segment.seek(offset);
+            if (segmentLeft != null && segmentLeft != segment) {
+                segmentLeft.unmap();
+            }
+            // Playing time is that of the index entry reading starts from, not the time asked for
+            final long keyFrameTimeOffset = Math.max(segment.getTimeOffsetOf(offset), 0L);
+            final long pts = segment.getPtsOf(keyFrameTimeOffset);
+            synchronized (this) {
+                mSegmentIdBeingRead = segment.id();
+                mPlayingTime = segment.getStartTime() + keyFrameTimeOffset;
+                updateLastPts(pts);
+            }
+            Log.i(TAG,"JDvrFile.seek to ms:"+ms+" (seg#"+i+" + "+timeOffset+"ms), starting from "
+                    +keyFrameTimeOffset+"ms");
+            return true;
         }
-        JDvrSegment segment = mSegments.get(i);
-        final long timeOffset = ms - segment.getStartTime();
-        Log.d(TAG,"timeOffset("+timeOffset+") = ms("+ms+") - seg#"+segment.id()+".startTime("+segment.getStartTime()+")");
-        if (timeOffset < 0) {
-            Log.w(TAG,"seek: timeOffset "+timeOffset+" is invalid");
-            return false;
-        }
-        final long offset = segment.getOffsetOf(timeOffset);
-        mSegments.forEach(seg -> seg.seek(0));
-        segment.seek(offset);
-        mSegmentIdBeingRead = segment.id();
-        mPlayingTime = ms;
-        final Long pts = segment.getPtsOf(timeOffset);
-        if (pts != null) {
-            updateLastPts(pts);
-        }
-        Log.i(TAG,"JDvrFile.seek to ms:"+ms+" (seg#"+i+" + "+timeOffset+"ms)");
-        return true;
     }
     public JDvrSegment getFirstSegment() {
         return (mSegments.size() > 0) ? mSegments.get(0) : null;
@@ -744,12 +1093,23 @@ public class JDvrFile {
         if (mType < 2) { throw new RuntimeException("Cannot do this under Recording situation"); }
         return mSegmentIdBeingRead;
     }
+    /**
+     * Get id of the segment current playing time falls in. It differs from getSegmentIdBeingRead
+     * when data is read ahead of playback.
+     *
+     * @return  segment id, or -1 if there is no such segment.
+     */
+    public synchronized int getSegmentIdOfPlayingTime() {
+        if (mType < 2) { throw new RuntimeException("Cannot do this under Recording situation"); }
+        final int segIdx = segmentsIndexOf(mPlayingTime);
+        return (segIdx != -1) ? mSegments.get(segIdx).id() : -1;
+    }
     /**
      * Get current playing time in ms from origin
      *
      * @return  playing time if operation is successful, or -1 if there is any problem.
      */
-    public long getPlayingTime() {
+    public synchronized long getPlayingTime() {
         if (mType < 2) { throw new RuntimeException("Cannot do this under Recording situation"); }
         final int segIdx = segmentsIndexOf(mPlayingTime);
         if (segIdx == -1) {
@@ -760,24 +1120,147 @@ public class JDvrFile {
         final JDvrSegment currSeg = mSegments.get(segIdx);
         final long refTime = Math.max(mPlayingTime-currSeg.getStartTime()-1000,0);
         // Search pts in current index file.
-        Long newSegmentPlayingTime = currSeg.findPtsFrom(mLastPts,refTime);
-        if (newSegmentPlayingTime != null) {
+        long newSegmentPlayingTime = currSeg.findPtsFrom(mLastPts,refTime);
+        if (newSegmentPlayingTime >= 0) {
             mPlayingTime = currSeg.getStartTime() + newSegmentPlayingTime;
             //Log.d(TAG,"Finding PTS1 "+mLastPts+" from seg#"+currSeg.id()+"+off:"+segmentTimeOffset+"ms returns segmentPlayingTime:"+newSegmentPlayingTime+"ms PlayingTime:"+mPlayingTime+"ms");
         } else if (nextIdx<mSegments.size()) {
             final JDvrSegment nextSeg = mSegments.get(nextIdx);
             // Continue to search pts in next index file.
             newSegmentPlayingTime = nextSeg.findPtsFrom(mLastPts,0L);
-            if (newSegmentPlayingTime != null) {
+            if (newSegmentPlayingTime >= 0) {
                 mPlayingTime = nextSeg.getStartTime() + newSegmentPlayingTime;
                 //Log.d(TAG,"Finding PTS2 "+mLastPts+" from seg#"+nextSeg.id()+"+off:"+segmentTimeOffset+"ms returns segmentPlayingTime:"+newSegmentPlayingTime+"ms PlayingTime:"+mPlayingTime+"ms");
             }
         }
-        if (newSegmentPlayingTime == null) {
+        if (newSegmentPlayingTime < 0) {
             Log.w(TAG,"Cannot find out matching index for pts "+mLastPts+" in seg#"
                     +currSeg.id()+" starting from offset:"+refTime+"ms (and seg#"+(currSeg.id()+1)+" if any)");
         }
-        return (newSegmentPlayingTime != null) ? mPlayingTime : -1L;
+        return (newSegmentPlayingTime >= 0) ? mPlayingTime : -1L;
+    }
+
+    /**
+     * Set the durability policy of recording data. It needs to be called before any data is
+     * written. Except for SYNC_POLICY_EVERY_WRITE, data is forced to storage on a background
+     * thread so that the writing thread never blocks on fsync.
+     *
+     * @param policy one of JDvrSyncPolicy values.
+     * @param interval group commit interval in ms for SYNC_POLICY_PERIODIC.
+     * @param intervalBytes group commit interval in bytes for SYNC_POLICY_PERIODIC.
+     */
+    public void setSyncPolicy(int policy, int interval, long intervalBytes) {
+        if (mType == 2) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        Log.i(TAG,"setSyncPolicy policy:"+policy+", interval:"+interval+"ms, intervalBytes:"+intervalBytes);
+        mSyncPolicy = policy;
+        // A segment created ahead of time may have been opened in a different mode
+        discardSpareSegment();
+        mSyncInterval = interval;
+        mSyncIntervalBytes = intervalBytes;
+        final boolean cond1 = (policy == JDvrSyncPolicy.SYNC_POLICY_PERIODIC);
+        final boolean cond2 = (policy == JDvrSyncPolicy.SYNC_POLICY_ON_ROLLOVER);
+        if ((cond1 || cond2) && mSyncThread == null) {
+            mSyncThread = new HandlerThread("JDvrFile sync task");
+            mSyncThread.start();
+            mSyncHandler = new Handler(mSyncThread.getLooper());
+        }
+        mSegments.forEach(seg -> seg.setSyncOnWrite(policy == JDvrSyncPolicy.SYNC_POLICY_EVERY_WRITE));
+    }
+    /**
+     * Set write-behind buffering of ts data. Data is accumulated and written out in large chunks
+     * aligned to TS packet size and page size. It needs to be called before any data is written.
+     *
+     * @param size buffer size in bytes. It is rounded down to a multiple of 188*4096, and 0
+     *             disables buffering.
+     * @param maxLatency the longest time in ms that data can stay in buffer, so that timeshift
+     *                   playback can still see fresh data.
+     */
+    public void setWriteBuffer(int size, int maxLatency) {
+        if (mType == 2) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        Log.i(TAG,"setWriteBuffer size:"+size+", maxLatency:"+maxLatency+"ms");
+        mWriteBufferSize = size;
+        mWriteBufferMaxLatency = maxLatency;
+        // Only the last segment is still being written
+        final JDvrSegment lastSegment = getLastSegment();
+        if (lastSegment != null) {
+            lastSegment.setWriteBufferSize(size);
+        }
+    }
+    /**
+     * Set the format of index files of segments created from now on. Existing segments keep
+     * their format, and playback tells the format of each index file by its content.
+     *
+     * @param format JDvrIndexFormat value.
+     */
+    public void setIndexFormat(int format) {
+        if (mType == 2) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        Log.i(TAG,"setIndexFormat format:"+format);
+        mIndexFormat = format;
+        // A segment created ahead of time is in previous format
+        discardSpareSegment();
+    }
+    /**
+     * Set how ts data of segments is read for playback. It applies to existing segments as well as
+     * segments found later.
+     *
+     * @param mode JDvrReadMode value.
+     */
+    public void setReadMode(int mode) {
+        if (mType < 2) { throw new RuntimeException("Cannot do this under Recording situation"); }
+        Log.i(TAG,"setReadMode mode:"+mode);
+        mReadMode = mode;
+        for (JDvrSegment segment : mSegments) {
+            segment.setReadMode(mode);
+        }
+    }
+    /**
+     * Set whether ts files of segments created from now on are preallocated to max segment size,
+     * so that they are laid out contiguously on storage. Preallocated space beyond data written
+     * is cut off when a segment is finished or closed. Storage is allocated in background for
+     * segments created ahead of time only, and it is skipped on filesystems without fallocate
+     * support.
+     *
+     * @param enable true to preallocate ts files.
+     */
+    public void setPreallocation(boolean enable) {
+        if (mType == 2) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        Log.i(TAG,"setPreallocation enable:"+enable);
+        mPreallocation = enable;
+        // A segment created ahead of time follows previous setting
+        discardSpareSegment();
+        final JDvrSegment lastSegment = getLastSegment();
+        if (lastSegment != null && lastSegment.getLoadLevel() < 2) {
+            lastSegment.setPreallocation(enable);
+        }
+        if (lastSegment != null) {
+            prepareSpareSegment(lastSegment.id() + 1);
+        }
+    }
+    /**
+     * Set when the segment after the one being read is warmed in background, as a fraction of
+     * current segment that has been read. A value out of (0,1) disables it.
+     *
+     * @param threshold fraction of current segment, e.g. 0.8.
+     */
+    public void setPrefetchThreshold(double threshold) {
+        if (mType < 2) { throw new RuntimeException("Cannot do this under Recording situation"); }
+        Log.i(TAG,"setPrefetchThreshold threshold:"+threshold);
+        mPrefetchThreshold = threshold;
+    }
+    /**
+     * Write out data that has stayed in write buffer for longer than the max latency. It is
+     * supposed to be called periodically by JDvrRecorder, even if no data is coming.
+     */
+    public void flushStaleData() {
+        if (mType == 2) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        final JDvrSegment segment = getLastSegment();
+        if (segment == null) {
+            return;
+        }
+        final long ts = segment.getTimestampOfBufferedData();
+        if (ts > 0 && SystemClock.elapsedRealtime() - ts >= mWriteBufferMaxLatency) {
+            segment.flush();
+        }
     }
 
     /**
@@ -803,34 +1286,73 @@ public class JDvrFile {
         if (mType == 2) { throw new RuntimeException("Cannot do this under Playback situation"); }
         final long total_size = size();
         final String statContent = String.format(Locale.US,
-                "{\"size\":%d, \"duration\":%d, \"packets\":%d, \"first_segment_id\":%d, \"last_segment_id\":%d, \"limit_size\":%d, \"limit_duration\":%d}\n",
+                "{\"size\":%d, \"duration\":%d, \"packets\":%d, \"first_segment_id\":%d, \"last_segment_id\":%d, \"limit_size\":%d, \"limit_duration\":%d, \"prealloc\":%d}\n",
                 total_size,duration(),total_size/188, getFirstSegmentId(), getLastSegmentId(),
                 (mLimitSize == Long.MAX_VALUE ? 0 : Math.abs(mLimitSize)),
-                (mLimitSeconds == Integer.MAX_VALUE ? 0 : Math.abs(mLimitSeconds)));
+                (mLimitSeconds == Integer.MAX_VALUE ? 0 : Math.abs(mLimitSeconds)),
+                (mPreallocation ? 1 : 0));
         try {
-            RandomAccessFile statStream = new RandomAccessFile(mStatPath, "rws");
-            statStream.setLength(0);
-            statStream.write(statContent.getBytes(),0,statContent.length());
-            statStream.close();
+            publishFile(mStatPath, statContent, mSyncPolicy == JDvrSyncPolicy.SYNC_POLICY_EVERY_WRITE);
         } catch (IOException e) {
             Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
             throw e;
         }
+        updateHeaderFile(total_size);
         return true;
     }
+    // Update binary header with the same content as .stat. It is not essential, so a failure only
+    // removes the header, and readers turn to .stat file instead of being given stale data.
+    private void updateHeaderFile(long totalSize) {
+        try {
+            if (mHeader == null) {
+                mHeader = JDvrHeader.open(mPathPrefix, mSyncPolicy == JDvrSyncPolicy.SYNC_POLICY_EVERY_WRITE);
+            }
+            mHeader.mSize = totalSize;
+            mHeader.mDuration = duration();
+            mHeader.mFirstSegmentId = getFirstSegmentId();
+            mHeader.mLastSegmentId = getLastSegmentId();
+            mHeader.mLimitSize = (mLimitSize == Long.MAX_VALUE ? 0 : Math.abs(mLimitSize));
+            mHeader.mLimitDuration = (mLimitSeconds == Integer.MAX_VALUE ? 0 : Math.abs(mLimitSeconds));
+            mHeader.mFlags = (mPreallocation ? JDvrHeader.FLAG_PREALLOCATION : 0);
+            mHeader.mStreams.clear();
+            mHeader.mStreams.addAll(mCurrentRecordingStreams);
+            mHeader.update();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+            if (mHeader != null) {
+                mHeader.close();
+                mHeader = null;
+            }
+            JDvrHeader.delete(mPathPrefix);
+        }
+    }
     public boolean updateListFile() throws IOException {
         if (mType == 2) { throw new RuntimeException("Cannot do this under Playback situation"); }
         try {
-            RandomAccessFile listStream = new RandomAccessFile(mListPath, "rws");
-            listStream.setLength(0);
-            final String lines = mSegments.stream().map(JDvrSegment::toString).collect(Collectors.joining(""));
-            try {
-                listStream.write(lines.getBytes(), 0, lines.length());
-            } catch (IOException e) {
-                Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
-                e.printStackTrace();
+            final int len = mSegments.size();
+            final boolean cond1 = (mListStream == null);
+            final boolean cond2 = (mListJournalLines > 2*len + LIST_JOURNAL_SLACK);
+            if (cond1 || cond2) {
+                compactListFile();
+                return true;
+            }
+            // Only the segments at and after the last journaled one may have changed since
+            int i = len;
+            while (i > 0 && mSegments.get(i-1).id() >= mLastJournaledSegmentId) {
+                i--;
+            }
+            for (; i < len; i++) {
+                mListJournalPending.append(mSegments.get(i).toString());
             }
-            listStream.close();
+            final String lines = mListJournalPending.toString();
+            mListStream.write(lines.getBytes(), 0, lines.length());
+            for (int j = 0; j < lines.length(); j++) {
+                if (lines.charAt(j) == '\n') {
+                    mListJournalLines++;
+                }
+            }
+            mListJournalPending.setLength(0);
+            mLastJournaledSegmentId = getLastSegmentId();
         } catch (IOException e) {
             Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
             throw e;
@@ -846,7 +1368,10 @@ public class JDvrFile {
     public void updateLastPts(long pts) {
         mLastPts = pts;
     }
-    public ArrayList<JDvrStreamInfo> getStreamsInfoAt(long time) {
+    public long getLastPts() {
+        return mLastPts;
+    }
+    public synchronized ArrayList<JDvrStreamInfo> getStreamsInfoAt(long time) {
         if (mType < 2) { throw new RuntimeException("Cannot do this under Recording situation"); }
         final int segIdx = segmentsIndexOf(time);
         if (segIdx == -1) {
@@ -875,25 +1400,18 @@ public class JDvrFile {
         }
         final File[] files = dir.listFiles((file, s) -> {
             final String path = file.getAbsolutePath() + "/" + s;
-            return path.matches(pathPrefix+"(\\.(stat|list)|-\\d+\\.(idx|ts))");
+            return path.matches(pathPrefix+"(\\.(stat|list|hdr)(\\.tmp)?|-\\d+\\.(idx|ts)(\\.tmp)?)");
         });
         if (files == null) {
             return 0;
         }
-        ExecutorService executor = Executors.newFixedThreadPool(10);
-        int ret = files.length;
+        // Files are only moved out of the way here, unlinking is left to the reaper thread
+        final JDvrReaper reaper = JDvrReaper.getInstance();
         for (final File file: files) {
-            executor.execute(() -> {
-                Log.d(TAG,"removing "+file.getAbsolutePath());
-                file.delete();
-            });
-        }
-        executor.shutdown();
-        while (!executor.isTerminated()) {
-            // Wait for all threads to finish
+            reaper.reap(file);
         }
         Log.d(TAG,"Removing files "+pathPrefix+" done");
-        return 0;
+        return files.length;
     }
     private static boolean createLockIfNotExist(String path) {
         File lockFile = new File(path);
@@ -930,7 +1448,7 @@ public class JDvrFile {
             if (mLock == null) {
                 throw new RuntimeException("Cannot acquire lock for recording");
             }
-            if (!(load() || load() || load())) {
+            if (!load()) {
                 Log.d(TAG,"unlock(0-100) for recording");
                 mLock.release();
                 throw new RuntimeException("Fails to load recording files");
@@ -939,59 +1457,331 @@ public class JDvrFile {
             throw new RuntimeException(e);
         }
     }
+    // Steps to go before TS data is written. It returns whether the data can be written.
+    private boolean prepareWrite(int size, long pts, long curTs) throws IOException {
+        final long diff1 = (pts - mPtsOfLastWriteIndex)/90;     // in ms
+        final long diff2 = curTs - mTimestampOfLastWriteIndex;  // in ms
+        final long timeElapsed = ((diff1>0 && diff1<3000) || (diff2>3000 && diff1>=0) ? diff1 : diff2);
+
+        // 1. Add a segment if necessary
+        {
+            JDvrSegment lastSegment = null;
+            final boolean cond1 = (mSegments.size() == 0);
+            boolean cond2 = false;
+            boolean cond3 = false;
+            if (!cond1) {
+                lastSegment = getLastSegment();
+                cond2 = (lastSegment.size() + size > JDvrSegment.getMaxSegmentSize());
+                // A stream change that does not fit in binary index of current segment starts a new one
+                cond3 = (mPidHasChanged && !lastSegment.hasRoomForTimeStreamIndex(mCurrentRecordingStreams.size()));
+            }
+            if (cond1 || cond2 || cond3) {
+                if (lastSegment != null) {
+                    // write last index
+                    lastSegment.writeTimeOffsetIndex(lastSegment.duration()+timeElapsed,lastSegment.size(),pts,mLastKeyFrameOffset);
+                    mTimestampOfLastWriteIndex = curTs;
+                    mPtsOfLastWriteIndex = pts;
+                    updateStatFile();
+                    updateListFile();
+                    lastSegment.flush();
+                    if (mSyncPolicy == JDvrSyncPolicy.SYNC_POLICY_PERIODIC
+                            || mSyncPolicy == JDvrSyncPolicy.SYNC_POLICY_ON_ROLLOVER) {
+                        final JDvrSegment segmentToSync = lastSegment;
+                        mSyncHandler.post(segmentToSync::sync);
+                        mBytesSinceLastSync = 0L;
+                        mTimestampOfLastSync = curTs;
+                    }
+                }
+                addSegment();
+                mLastKeyFrameOffset = -1L;
+                if (cond1) {
+                    mTimestampOfOrigin = curTs;
+                    Log.d(TAG,"Origin timestamp is " + mTimestampOfOrigin);
+                }
+            }
+        }
+        // 2. Remove a segment if necessary
+        {
+            final boolean cond1 = (size()+size > mLimitSize);
+            final boolean cond2 = ((duration()+curTs-mTimestampOfLastWriteIndex)/1000 >= mLimitSeconds);
+            final boolean cond3 = isTimeshift();
+            final boolean cond4 = (mSegments.size()>1);
+            if ((cond1 || cond2) && cond3 && cond4) {
+                removeSegment(getFirstSegmentId());
+            }
+        }
+        final JDvrSegment currSegment = getLastSegment();
+        final long newSize = size() + size;
+        final boolean writable = (newSize <= mLimitSize);
+        // Only key frames before the data are known at the offset an index entry is written to
+        takeKeyFrames(currSegment, mBytesReceived + 1, writable);
+        // 3. Update index file if necessary
+        {
+            final boolean cond1 = (currSegment.size() == 0);
+            final long timeOffsetOfSegment = cond1 ? 0 : currSegment.duration()+timeElapsed;
+            final long timeOffsetFromOrigin = currSegment.getStartTime()+timeOffsetOfSegment;
+            final boolean cond2 = mPidHasChanged;
+            if (cond1 || cond2) {
+                currSegment.writeTimeStreamIndex(timeOffsetOfSegment,timeOffsetFromOrigin,mCurrentRecordingStreams);
+                mPidHasChanged = false;
+            }
+            final boolean cond3 = (newSize <= mLimitSize);
+            final boolean cond4 = (curTs - mTimestampOfLastWriteIndex >= mMinIndexInterval);
+            if (cond1 || (cond3 && cond4)) {
+                currSegment.writeTimeOffsetIndex(timeOffsetOfSegment,currSegment.size(),pts,mLastKeyFrameOffset);
+                mTimestampOfLastWriteIndex = curTs;
+                mPtsOfLastWriteIndex = pts;
+                updateStatFile();
+                updateListFile();
+            }
+        }
+        takeKeyFrames(currSegment, mBytesReceived + size, writable);
+        mBytesReceived += size;
+        return writable;
+    }
+    // Turn pending key frames before the given position into offsets in segment. Key frames in data
+    // that is not going to be written are dropped.
+    private void takeKeyFrames(JDvrSegment segment, long end, boolean writable) {
+        while (!mPendingKeyFrames.isEmpty() && mPendingKeyFrames.peek() < end) {
+            final long position = mPendingKeyFrames.poll();
+            if (writable && position >= mBytesReceived) {
+                mLastKeyFrameOffset = segment.size() + (position - mBytesReceived);
+            }
+        }
+    }
+    // Steps to go after TS data is written.
+    private void commitWrite(JDvrSegment currSegment, int ret, long curTs) {
+        // 5. Write out buffered data if it has been pending for too long
+        flushStaleData();
+        // 6. Force data to storage in background if necessary
+        if (mSyncPolicy == JDvrSyncPolicy.SYNC_POLICY_PERIODIC) {
+            mBytesSinceLastSync += ret;
+            final boolean cond1 = (mBytesSinceLastSync >= mSyncIntervalBytes);
+            final boolean cond2 = (curTs - mTimestampOfLastSync >= mSyncInterval);
+            if ((cond1 || cond2) && mBytesSinceLastSync > 0) {
+                currSegment.flush();
+                mSegmentToSync = currSegment;
+                if (!mSyncHandler.hasCallbacks(mSyncRunnable)) {
+                    mSyncHandler.post(mSyncRunnable);
+                }
+                mBytesSinceLastSync = 0L;
+                mTimestampOfLastSync = curTs;
+            }
+        }
+    }
+    private void compactListFile() throws IOException {
+        if (mListStream != null) {
+            mListStream.close();
+            mListStream = null;
+        }
+        final String lines = mSegments.stream().map(JDvrSegment::toString).collect(Collectors.joining(""));
+        publishFile(mListPath, lines, mSyncPolicy == JDvrSyncPolicy.SYNC_POLICY_EVERY_WRITE);
+        mListStream = new RandomAccessFile(mListPath,
+                (mSyncPolicy == JDvrSyncPolicy.SYNC_POLICY_EVERY_WRITE) ? "rws" : "rw");
+        mListStream.seek(mListStream.length());
+        mListJournalLines = mSegments.size();
+        mListJournalPending.setLength(0);
+        mLastJournaledSegmentId = getLastSegmentId();
+    }
+    // Write content to a temporary file and rename it over the target, so that readers
+    // see either the old or the new file, but never a torn one.
+    static void publishFile(String path, String content, boolean sync) throws IOException {
+        final File tmpFile = new File(path + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            out.write(content.getBytes());
+            if (sync) {
+                out.getFD().sync();
+            }
+        }
+        if (!tmpFile.renameTo(new File(path))) {
+            tmpFile.delete();
+            throw new IOException("Fails to rename "+tmpFile.getPath()+" to "+path);
+        }
+    }
+    // Create and open files of the next segment in background, so that rollover only needs to
+    // rename them and switch the segment being written.
+    private void prepareSpareSegment(int id) {
+        if (mSpareSegment != null) {
+            return;
+        }
+        final JDvrSegment segment = new JDvrSegment(mPathPrefix, id, 0, 0);
+        segment.setSyncOnWrite(mSyncPolicy == JDvrSyncPolicy.SYNC_POLICY_EVERY_WRITE);
+        segment.setIndexFormat(mIndexFormat);
+        segment.setPreallocation(mPreallocation);
+        if (mPrecreateThread == null) {
+            mPrecreateThread = new HandlerThread("JDvrFile precreate task");
+            mPrecreateThread.start();
+            mPrecreateHandler = new Handler(mPrecreateThread.getLooper());
+        }
+        mSpareSegment = segment;
+        mSparePrecreateTask = () -> segment.precreate(true);
+        mPrecreateHandler.post(mSparePrecreateTask);
+    }
+    // Take the segment created ahead of time if it is the one wanted and it is ready, or null
+    // otherwise. It never waits for precreate(), as storage allocation may take long. A spare which
+    // is not ready is left to the precreate thread to be discarded.
+    private JDvrSegment takeSpareSegment(int id) {
+        final JDvrSegment segment = mSpareSegment;
+        if (segment == null) {
+            return null;
+        }
+        if (segment.id() != id || !segment.isPrecreated()) {
+            Log.i(TAG,"Spare segment #"+segment.id()+" is not taken for #"+id+", ready:"+segment.isPrecreated());
+            discardSpareSegment();
+            return null;
+        }
+        mSpareSegment = null;
+        mSparePrecreateTask = null;
+        if (!segment.publish()) {
+            segment.close();
+            segment.delete();
+            return null;
+        }
+        return segment;
+    }
+    private void discardSpareSegment() {
+        final JDvrSegment segment = mSpareSegment;
+        if (segment == null) {
+            return;
+        }
+        final Runnable precreateTask = mSparePrecreateTask;
+        mSpareSegment = null;
+        mSparePrecreateTask = null;
+        final Runnable discardTask = () -> {
+            // Files exist only if precreate() has run
+            if (segment.isPrecreated()) {
+                segment.close();
+                segment.delete();
+            }
+        };
+        if (mPrecreateHandler == null) {
+            // Precreate thread has finished, so nothing is in progress
+            discardTask.run();
+            return;
+        }
+        // It runs after precreate() in case that is in progress, and precreate() is skipped if it
+        // has not started yet
+        mPrecreateHandler.removeCallbacks(precreateTask);
+        mPrecreateHandler.post(discardTask);
+    }
+    // Warm the segment after the one being read once reading passes the threshold, so that reading
+    // transition to it is only a switch of segment id.
+    private void prefetchNextSegmentIfNeeded() {
+        final int nextId = mSegmentIdBeingRead + 1;
+        final boolean cond1 = (mPrefetchThreshold > 0.0d && mPrefetchThreshold < 1.0d);
+        final boolean cond2 = (mSegmentIdPrefetched != nextId);
+        if (!cond1 || !cond2) {
+            return;
+        }
+        final JDvrSegment currSegment = mSegments.getById(mSegmentIdBeingRead);
+        final JDvrSegment nextSegment = mSegments.getById(nextId);
+        if (currSegment == null || nextSegment == null) {
+            return;
+        }
+        if (currSegment.getReadOffset() < currSegment.size() * mPrefetchThreshold) {
+            return;
+        }
+        if (mPrefetchThread == null) {
+            mPrefetchThread = new HandlerThread("JDvrFile prefetch task");
+            mPrefetchThread.start();
+            mPrefetchHandler = new Handler(mPrefetchThread.getLooper());
+        }
+        mSegmentIdPrefetched = nextId;
+        mPrefetchHandler.post(nextSegment::warm);
+    }
+    // Segments are sealed in order, so a sealed segment is always appended to the end of timeline.
+    private void sealSegment(JDvrSegment segment) {
+        if (segment.isSealed()) {
+            return;
+        }
+        segment.seal();
+        mSealedSize += segment.size();
+        mSealedDuration += segment.duration();
+        if (mTimelineLength == mTimelineStart.length) {
+            mTimelineStart = Arrays.copyOf(mTimelineStart, mTimelineLength * 2);
+            mTimelineEnd = Arrays.copyOf(mTimelineEnd, mTimelineLength * 2);
+        }
+        mTimelineStart[mTimelineLength] = segment.getStartTime();
+        mTimelineEnd[mTimelineLength] = segment.getStartTime() + segment.duration();
+        mTimelineLength++;
+    }
+    // Returns position of the first segment which ends at or after given time, or -1 if there is none.
     private int segmentsIndexOf(long timeOffset) {
         if (timeOffset < 0) {
             return -1;
         }
-        return IntStream.range(0,mSegments.size()).filter(i->mSegments.get(i).getStartTime()+mSegments.get(i).duration()>=timeOffset).findFirst().orElse(-1);
+        int lo = 0;
+        int hi = mTimelineLength;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mTimelineEnd[mid] >= timeOffset) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        if (lo < mTimelineLength) {
+            return lo;
+        }
+        final JDvrSegment lastSegment = getLastSegment();
+        final boolean cond1 = (lastSegment != null && mSegments.size() > mTimelineLength);
+        final boolean cond2 = (cond1 && lastSegment.getStartTime()+lastSegment.duration() >= timeOffset);
+        return cond2 ? mSegments.size()-1 : -1;
     }
-    private static boolean repairFiles(String pathPrefix) {
-        Log.d(TAG,"Repairing "+pathPrefix);
-        final String dirName = pathPrefix.substring(0,pathPrefix.lastIndexOf('/'));
-        File dir = new File(dirName);
-        if (!dir.exists()) {
-            Log.w(TAG,"Cannot repair recording, for "+dir.getAbsolutePath()+" doesn't exist.");
-            return false;
+    // Returns position of the last segment which starts at or before given time, or the first
+    // segment if all of them start later. Returns -1 if there is no segment at all.
+    private int segmentsIndexOfStartTime(long time) {
+        final int len = mSegments.size();
+        if (len == 0) {
+            return -1;
         }
-        final File[] files = dir.listFiles((file, s) -> (file.getAbsolutePath()+"/"+s).matches(pathPrefix+"-\\d+\\.idx"));
-        if (files.length == 0) {
-            Log.w(TAG,"Cannot repair recording "+pathPrefix+", for there is not any associated .idx files");
-            return false;
+        if (len > mTimelineLength && getLastSegment().getStartTime() <= time) {
+            return len-1;
         }
-        Arrays.sort(files, Comparator.comparing(File::getName));
-        Integer[] segIds = Arrays.stream(files).map(File::toPath).map(Path::toString)
-                .map(s -> Integer.parseInt(s.substring(s.lastIndexOf('-')+1,s.lastIndexOf('.'))))
-                .toArray(Integer[]::new);
-        ArrayList<JDvrSegment> segments = new ArrayList<>();
-        for (Integer id : segIds) {
-            JDvrSegment seg = new JDvrSegment(pathPrefix, id,1,2);
-            segments.add(seg);
-        }
-        final long size = segments.stream().mapToLong(JDvrSegment::size).sum();
-        final long duration = segments.stream().mapToLong(JDvrSegment::duration).sum();
-        final int first_seg_id = segments.get(0).id();
-        final int last_seg_id = segments.get(segments.size()-1).id();
-        final String statContent = String.format(Locale.US,"{\"size\":%d, \"duration\":%d, "
-                +"\"packets\":%d, \"first_segment_id\":%d, \"last_segment_id\":%d, "
-                +"\"limit_size\":0, \"limit_duration\":0}",
-                size,duration,size/188,first_seg_id,last_seg_id);
-        //Log.d(TAG,"Repaired statContent:"+statContent);
-        final String listContent = segments.stream().map(JDvrSegment::toString).collect(Collectors.joining());
-        //Log.d(TAG,"Repaired listContent:"+listContent);
-        try {
-            RandomAccessFile statStream = new RandomAccessFile(pathPrefix+".stat", "rws");
-            statStream.setLength(0);
-            statStream.write(statContent.getBytes(),0,statContent.length());
-            statStream.close();
-            RandomAccessFile listStream = new RandomAccessFile(pathPrefix+".list", "rws");
-            listStream.setLength(0);
-            listStream.write(listContent.getBytes(),0,listContent.length());
-            listStream.close();
+        int lo = 0;
+        int hi = mTimelineLength - 1;
+        int ret = 0;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mTimelineStart[mid] <= time) {
+                ret = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return ret;
+    }
+    // Regenerate .stat/.list files from segments of a recording, see JDvrRepair
+    static boolean repairFiles(String pathPrefix) {
+        return new JDvrRepair(pathPrefix).run();
+    }
+    // Repair a recording only if it is not being recorded. Repair truncates ts files to data in
+    // them, which would cut the segment a recorder is writing to, so it is skipped as long as the
+    // recording lock range of .lock file is held.
+    static boolean repairFilesIfNotRecording(String pathPrefix) {
+        final File lockFile = new File(pathPrefix + ".lock");
+        if (!lockFile.exists()) {
+            // Recorders create .lock file before anything else, so no one is recording it
+            return repairFiles(pathPrefix);
+        }
+        try (FileChannel lockChannel = new RandomAccessFile(lockFile, "rw").getChannel()) {
+            Log.d(TAG,"lock(0-100) for repair");
+            final FileLock lock = lockChannel.tryLock(0, 100, false);
+            if (lock == null) {
+                Log.w(TAG,"Skip repairing "+pathPrefix+", for it is being recorded");
+                return false;
+            }
+            final boolean ret = repairFiles(pathPrefix);
+            Log.d(TAG,"unlock(0-100) for repair");
+            lock.release();
+            return ret;
         } catch (IOException e) {
             Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
             return false;
+        } catch (OverlappingFileLockException e) {
+            Log.w(TAG,"Skip repairing "+pathPrefix+", for it is being recorded in this process");
+            return false;
         }
-        Log.d(TAG,"Repaired "+pathPrefix);
-        return true;
     }
 }
@@ -0,0 +1,241 @@
+package com.droidlogic.jdvrlib;
+
+import android.util.Log;
+
+import com.droidlogic.jdvrlib.JDvrRecorder.JDvrStreamInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Binary header of a recording, kept in a .hdr file next to the JSON .stat file. It has a fixed
+ * layout, so basic metadata of a recording can be queried with a single read and no parsing. The
+ * .stat file is still written for tools and serves as a fallback if the header is not usable.
+ * The header is updated in place in the way of a seqlock. The writer makes tail sequence odd
+ * before it touches the payload, and then sets head and tail sequences to the next even number.
+ * A reader reads the whole header at once, which copies it in ascending order of offset, and
+ * takes it as consistent only if both sequences are equal.
+ */
+class JDvrHeader {
+    // Header file layout (little-endian):
+    //   magic(8), version(4), header size(4), head sequence(8),
+    //   size(8), duration(8), first segment id(4), last segment id(4), limit size(8),
+    //   limit duration(4), flags(4), nb_streams(4), followed by MAX_STREAMS of pid(4), type(4), format(4),
+    //   reserved, and tail sequence(8) at the end of header
+    final private static String TAG = JDvrHeader.class.getSimpleName();
+    final private static byte[] MAGIC = {'J','D','V','R','H','D','R',0};
+    final private static int VERSION = 1;
+    final private static int HEADER_SIZE = 512;
+    final private static int HEAD_SEQUENCE_POS = 16;
+    final private static int PAYLOAD_POS = 24;
+    final private static int STREAMS_POS = 68;
+    final private static int TAIL_SEQUENCE_POS = HEADER_SIZE - 8;
+    final private static int READ_RETRIES = 4;
+    final public static int MAX_STREAMS = 16;
+    final public static int FLAG_PREALLOCATION = 1;
+
+    public long mSize = 0L;             // in bytes
+    public long mDuration = 0L;         // in ms
+    public int mFirstSegmentId = -1;
+    public int mLastSegmentId = -1;
+    public long mLimitSize = 0L;        // in bytes, 0 if not limited
+    public int mLimitDuration = 0;      // in seconds, 0 if not limited
+    public int mFlags = 0;
+    public final ArrayList<JDvrStreamInfo> mStreams = new ArrayList<>();
+
+    private long mSequence = 0L;        // of the content read, or of the latest update
+    // Following fields are for writer only
+    private final String mPath;
+    private FileChannel mChannel = null;
+    private boolean mSync = false;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer mSequenceBuffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+    private JDvrHeader(String path) {
+        mPath = path;
+    }
+    public static String getPath(String pathPrefix) {
+        return pathPrefix + ".hdr";
+    }
+    /**
+     * Open header of a recording for update. The sequence of an existing header goes on, so that
+     * readers never take new content as the old one.
+     *
+     * @param pathPrefix the path prefix of the recording.
+     * @param sync whether every update is forced to storage.
+     */
+    public static JDvrHeader open(String pathPrefix, boolean sync) throws IOException {
+        final JDvrHeader header = new JDvrHeader(getPath(pathPrefix));
+        header.mSync = sync;
+        header.mChannel = new RandomAccessFile(header.mPath, "rw").getChannel();
+        final ByteBuffer buf = header.mBuffer;
+        buf.clear();
+        header.mChannel.read(buf, 0);
+        final boolean cond1 = (buf.position() == HEADER_SIZE);
+        final boolean cond2 = cond1 && Arrays.equals(Arrays.copyOf(buf.array(), MAGIC.length), MAGIC);
+        if (cond2) {
+            final long sequence = Math.max(buf.getLong(HEAD_SEQUENCE_POS), buf.getLong(TAIL_SEQUENCE_POS));
+            header.mSequence = (sequence + 1) & ~1L;
+        }
+        // Header is rewritten from scratch with an even sequence. It stays unusable for readers
+        // until the first update, for tail sequence does not match yet.
+        Arrays.fill(buf.array(), (byte)0);
+        buf.clear();
+        buf.put(MAGIC).putInt(VERSION).putInt(HEADER_SIZE).putLong(header.mSequence);
+        buf.putLong(TAIL_SEQUENCE_POS, header.mSequence + 1);
+        buf.clear();
+        header.writeFully(buf, 0);
+        return header;
+    }
+    /**
+     * Write current field values to header file.
+     */
+    public void update() throws IOException {
+        // 1. Mark update in progress
+        writeSequence(TAIL_SEQUENCE_POS, mSequence + 1);
+        // 2. Write payload
+        final int streams = Math.min(mStreams.size(), MAX_STREAMS);
+        mBuffer.clear();
+        mBuffer.putLong(mSize).putLong(mDuration).putInt(mFirstSegmentId).putInt(mLastSegmentId)
+                .putLong(mLimitSize).putInt(mLimitDuration).putInt(mFlags).putInt(streams);
+        for (int i = 0; i < streams; i++) {
+            final JDvrStreamInfo info = mStreams.get(i);
+            mBuffer.putInt(info.pid).putInt(info.type).putInt(info.format);
+        }
+        mBuffer.flip();
+        writeFully(mBuffer, PAYLOAD_POS);
+        // 3. Publish it
+        mSequence += 2;
+        writeSequence(HEAD_SEQUENCE_POS, mSequence);
+        writeSequence(TAIL_SEQUENCE_POS, mSequence);
+        if (mSync) {
+            mChannel.force(false);
+        }
+    }
+    public void close() {
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+        }
+        mChannel = null;
+    }
+    /**
+     * Read header of a recording.
+     *
+     * @param pathPrefix the path prefix of the recording.
+     * @return the header, or null if it does not exist or is not usable, in which case .stat file
+     *         is supposed to be used instead.
+     */
+    public static JDvrHeader read(String pathPrefix) {
+        final String path = getPath(pathPrefix);
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            final ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < READ_RETRIES; i++) {
+                buf.clear();
+                while (buf.hasRemaining() && channel.read(buf, buf.position()) > 0) {
+                    // Normally it is done in a single read
+                }
+                final boolean cond1 = (buf.position() == HEADER_SIZE);
+                final boolean cond2 = cond1 && Arrays.equals(Arrays.copyOf(buf.array(), MAGIC.length), MAGIC);
+                final boolean cond3 = cond2 && (buf.getInt(12) == HEADER_SIZE);
+                if (!cond3) {
+                    return null;
+                }
+                final long headSequence = buf.getLong(HEAD_SEQUENCE_POS);
+                if (headSequence == buf.getLong(TAIL_SEQUENCE_POS)) {
+                    return decode(path, buf);
+                }
+                // Being updated, try again soon
+                Thread.yield();
+            }
+            Log.w(TAG,"Header "+path+" keeps changing or was left inconsistent");
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+        }
+        return null;
+    }
+    /**
+     * Read sequence of header of a recording alone. The sequence goes up on every update, so it
+     * tells whether content read before is still current at the cost of a small read.
+     *
+     * @param pathPrefix the path prefix of the recording.
+     * @return the sequence, or -1 if the header does not exist, is not usable or is being updated.
+     */
+    public static long readSequence(String pathPrefix) {
+        try (FileChannel channel = FileChannel.open(Paths.get(getPath(pathPrefix)), StandardOpenOption.READ)) {
+            final ByteBuffer buf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.read(buf, HEAD_SEQUENCE_POS) != 8) {
+                return -1L;
+            }
+            final long headSequence = buf.getLong(0);
+            buf.clear();
+            if (channel.read(buf, TAIL_SEQUENCE_POS) != 8) {
+                return -1L;
+            }
+            return (headSequence == buf.getLong(0)) ? headSequence : -1L;
+        } catch (NoSuchFileException e) {
+            return -1L;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+        }
+        return -1L;
+    }
+    public long getSequence() {
+        return mSequence;
+    }
+    // Remove header of a recording, so that readers turn to .stat file
+    public static void delete(String pathPrefix) {
+        final File file = new File(getPath(pathPrefix));
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG,"Fails to remove "+file.getPath());
+        }
+    }
+    public boolean isTimeshift() {
+        return JDvrFile.isEffectiveLimitSize(mLimitSize) || JDvrFile.isEffectiveLimitDuration(mLimitDuration);
+    }
+
+    // Private functions
+    private static JDvrHeader decode(String path, ByteBuffer buf) {
+        final JDvrHeader header = new JDvrHeader(path);
+        header.mSequence = buf.getLong(HEAD_SEQUENCE_POS);
+        buf.position(PAYLOAD_POS);
+        header.mSize = buf.getLong();
+        header.mDuration = buf.getLong();
+        header.mFirstSegmentId = buf.getInt();
+        header.mLastSegmentId = buf.getInt();
+        header.mLimitSize = buf.getLong();
+        header.mLimitDuration = buf.getInt();
+        header.mFlags = buf.getInt();
+        final int streams = Math.min(buf.getInt(), MAX_STREAMS);
+        buf.position(STREAMS_POS);
+        for (int i = 0; i < streams; i++) {
+            header.mStreams.add(new JDvrStreamInfo(buf.getInt(), buf.getInt(), buf.getInt()));
+        }
+        return header;
+    }
+    private void writeSequence(int position, long sequence) throws IOException {
+        mSequenceBuffer.clear();
+        mSequenceBuffer.putLong(0, sequence);
+        writeFully(mSequenceBuffer, position);
+    }
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            mChannel.write(buf, position + buf.position());
+        }
+    }
+}
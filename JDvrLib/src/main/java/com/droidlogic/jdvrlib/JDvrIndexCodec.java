@@ -0,0 +1,447 @@
+package com.droidlogic.jdvrlib;
+
+import com.droidlogic.jdvrlib.JDvrRecorder.JDvrStreamInfo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Codec of JSON index lines working on bytes directly. It deals with the two line shapes written
+ * to JSON index, i.e. time/offset entries and stream entries carrying nb_pids:
+ *   {"time":%d, "offset":%d, "pts":%d[, "key_offset":%d]}
+ *   {"time":%d, "time_offset_from_origin":%d, "id":%d, "nb_pids":%d, "pids":[{"pid":%d, "type":%d, "format":%d},...]}
+ * key_offset is written only if the key frame offset is known.
+ * Lines it emits are byte identical to the ones formerly produced by String.format. Parsing accepts
+ * fields in any order and skips unknown ones, as JsonReader did, but creates no String, regular
+ * expression or boxed number on the way.
+ * An instance reuses its line buffer and parsed fields, so it must not be shared between threads.
+ */
+class JDvrIndexCodec {
+    final private static byte[] TAG_OFFSET = ascii("\"offset\":");
+    final private static byte[] TAG_NB_PIDS = ascii("nb_pids");
+    final private static byte[] KEY_TIME = ascii("time");
+    final private static byte[] KEY_OFFSET = ascii("offset");
+    final private static byte[] KEY_PTS = ascii("pts");
+    final private static byte[] KEY_KEY_OFFSET = ascii("key_offset");
+    final private static byte[] KEY_TIME_OFFSET_FROM_ORIGIN = ascii("time_offset_from_origin");
+    final private static byte[] KEY_ID = ascii("id");
+    final private static byte[] KEY_PIDS = ascii("pids");
+    final private static byte[] KEY_PID = ascii("pid");
+    final private static byte[] KEY_TYPE = ascii("type");
+    final private static byte[] KEY_FORMAT = ascii("format");
+    final private static byte[] TEXT_TIME = ascii("{\"time\":");
+    final private static byte[] TEXT_OFFSET = ascii(", \"offset\":");
+    final private static byte[] TEXT_PTS = ascii(", \"pts\":");
+    final private static byte[] TEXT_KEY_OFFSET = ascii(", \"key_offset\":");
+    final private static byte[] TEXT_TIME_OFFSET_FROM_ORIGIN = ascii(", \"time_offset_from_origin\":");
+    final private static byte[] TEXT_ID = ascii(", \"id\":");
+    final private static byte[] TEXT_NB_PIDS = ascii(", \"nb_pids\":");
+    final private static byte[] TEXT_PIDS = ascii(", \"pids\":[");
+    final private static byte[] TEXT_PID = ascii("{\"pid\":");
+    final private static byte[] TEXT_TYPE = ascii(", \"type\":");
+    final private static byte[] TEXT_FORMAT = ascii(", \"format\":");
+    final private static byte[] TEXT_END = ascii("}\n");
+    final private static byte[] TEXT_PIDS_END = ascii("]}\n");
+    // Upper bounds of line length, taking 20 chars for every number
+    final private static int MAX_TIME_OFFSET_LINE = 160;
+    final private static int MAX_TIME_STREAM_LINE = 192;
+    final private static int MAX_STREAM_TEXT = 96;
+
+    // Fields of the latest line parsed
+    public long mTime;
+    public long mOffset;
+    public long mPts;
+    public long mKeyOffset;     // -1 if it is not present
+    public long mTimeOffsetFromOrigin;
+    public int mId;
+
+    private byte[] mLine = new byte[MAX_TIME_OFFSET_LINE];
+    private int mLineLength = 0;
+    // Parser state
+    private byte[] mBuf;
+    private int mPos;
+    private int mEnd;
+    private int mKeyStart;
+    private int mKeyEnd;
+    private long mNumber;
+
+    // Buffer holding the latest line emitted
+    public byte[] line() {
+        return mLine;
+    }
+    /**
+     * Emit a time/offset index line into line buffer.
+     *
+     * @return length of the line in bytes.
+     */
+    public int encodeTimeOffsetIndex(long time, long offset, long pts) {
+        return encodeTimeOffsetIndex(time, offset, pts, -1L);
+    }
+    /**
+     * Emit a time/offset index line with key frame offset into line buffer. The offset is left
+     * out if it is negative.
+     *
+     * @return length of the line in bytes.
+     */
+    public int encodeTimeOffsetIndex(long time, long offset, long pts, long keyOffset) {
+        mLineLength = 0;
+        put(TEXT_TIME);
+        putLong(time);
+        put(TEXT_OFFSET);
+        putLong(offset);
+        put(TEXT_PTS);
+        putLong(pts);
+        if (keyOffset >= 0) {
+            put(TEXT_KEY_OFFSET);
+            putLong(keyOffset);
+        }
+        put(TEXT_END);
+        return mLineLength;
+    }
+    /**
+     * Emit a stream index line into line buffer.
+     *
+     * @return length of the line in bytes.
+     */
+    public int encodeTimeStreamIndex(long time, long timeOffsetFromOrigin, int id, ArrayList<JDvrStreamInfo> streams) {
+        final int capacity = MAX_TIME_STREAM_LINE + MAX_STREAM_TEXT * streams.size();
+        if (mLine.length < capacity) {
+            mLine = new byte[capacity];
+        }
+        mLineLength = 0;
+        put(TEXT_TIME);
+        putLong(time);
+        put(TEXT_TIME_OFFSET_FROM_ORIGIN);
+        putLong(timeOffsetFromOrigin);
+        put(TEXT_ID);
+        putLong(id);
+        put(TEXT_NB_PIDS);
+        putLong(streams.size());
+        put(TEXT_PIDS);
+        for (int i = 0; i < streams.size(); i++) {
+            final JDvrStreamInfo info = streams.get(i);
+            if (i > 0) {
+                mLine[mLineLength++] = ',';
+            }
+            put(TEXT_PID);
+            putLong(info.pid);
+            put(TEXT_TYPE);
+            putLong(info.type);
+            put(TEXT_FORMAT);
+            putLong(info.format);
+            mLine[mLineLength++] = '}';
+        }
+        put(TEXT_PIDS_END);
+        return mLineLength;
+    }
+    // Whether a line is a time/offset entry, the same as matching it against .*"offset":.*
+    public static boolean isTimeOffsetIndex(byte[] buf, int start, int end) {
+        return indexOf(buf, start, end, TAG_OFFSET) >= 0;
+    }
+    // Whether a line is a stream entry, the same as matching it against .*nb_pids.*
+    public static boolean isTimeStreamIndex(byte[] buf, int start, int end) {
+        return indexOf(buf, start, end, TAG_NB_PIDS) >= 0;
+    }
+    /**
+     * Parse a time/offset index line. Results are left in mTime, mOffset, mPts and mKeyOffset.
+     *
+     * @return true if the line is a valid entry, or false otherwise.
+     */
+    public boolean parseTimeOffsetIndex(byte[] buf, int start, int end) {
+        reset(buf, start, end);
+        mTime = -1;
+        mOffset = -1;
+        mPts = 0;
+        mKeyOffset = -1;
+        if (!consume('{')) {
+            return false;
+        }
+        if (!consume('}')) {
+            do {
+                if (!nextKey()) {
+                    return false;
+                }
+                if (keyIs(KEY_TIME)) {
+                    if (!nextLong()) {
+                        return false;
+                    }
+                    mTime = mNumber;
+                } else if (keyIs(KEY_OFFSET)) {
+                    if (!nextLong()) {
+                        return false;
+                    }
+                    mOffset = mNumber;
+                } else if (keyIs(KEY_PTS)) {
+                    if (!nextLong()) {
+                        return false;
+                    }
+                    mPts = mNumber;
+                } else if (keyIs(KEY_KEY_OFFSET)) {
+                    if (!nextLong()) {
+                        return false;
+                    }
+                    mKeyOffset = mNumber;
+                } else if (!skipValue()) {
+                    return false;
+                }
+            } while (consume(','));
+            if (!consume('}')) {
+                return false;
+            }
+        }
+        return (mTime >= 0 && mOffset >= 0);
+    }
+    /**
+     * Parse a stream index line. Results are left in mTime, mTimeOffsetFromOrigin and mId, and
+     * streams are appended to given list. A line without any complete stream is still valid.
+     *
+     * @return true if the line is a valid entry, or false otherwise.
+     */
+    public boolean parseTimeStreamIndex(byte[] buf, int start, int end, ArrayList<JDvrStreamInfo> pids) {
+        reset(buf, start, end);
+        mTime = -1;
+        mTimeOffsetFromOrigin = -1;
+        mId = -1;
+        if (!consume('{')) {
+            return false;
+        }
+        if (!consume('}')) {
+            do {
+                if (!nextKey()) {
+                    return false;
+                }
+                if (keyIs(KEY_TIME)) {
+                    if (!nextLong()) {
+                        return false;
+                    }
+                    mTime = mNumber;
+                } else if (keyIs(KEY_TIME_OFFSET_FROM_ORIGIN)) {
+                    if (!nextLong()) {
+                        return false;
+                    }
+                    mTimeOffsetFromOrigin = mNumber;
+                } else if (keyIs(KEY_ID)) {
+                    if (!nextInt()) {
+                        return false;
+                    }
+                    mId = (int)mNumber;
+                } else if (keyIs(KEY_PIDS)) {
+                    if (!parsePids(pids)) {
+                        return false;
+                    }
+                } else if (!skipValue()) {
+                    return false;
+                }
+            } while (consume(','));
+            if (!consume('}')) {
+                return false;
+            }
+        }
+        return (mTime >= 0 && mTimeOffsetFromOrigin >= 0);
+    }
+
+    // Private functions
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+    private static int indexOf(byte[] buf, int start, int end, byte[] tag) {
+        outer:
+        for (int i = start; i <= end - tag.length; i++) {
+            for (int j = 0; j < tag.length; j++) {
+                if (buf[i + j] != tag[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+    private void put(byte[] text) {
+        System.arraycopy(text, 0, mLine, mLineLength, text.length);
+        mLineLength += text.length;
+    }
+    private void putLong(long v) {
+        if (v < 0) {
+            mLine[mLineLength++] = '-';
+        } else {
+            v = -v;
+        }
+        // Digits are taken from the negated value, so that Long.MIN_VALUE needs no special care
+        int digits = 1;
+        for (long t = v; t <= -10; t /= 10) {
+            digits++;
+        }
+        for (int i = mLineLength + digits - 1; i >= mLineLength; i--) {
+            mLine[i] = (byte)('0' - v % 10);
+            v /= 10;
+        }
+        mLineLength += digits;
+    }
+    private void reset(byte[] buf, int start, int end) {
+        mBuf = buf;
+        mPos = start;
+        mEnd = end;
+    }
+    private void skipWhitespace() {
+        while (mPos < mEnd) {
+            final byte c = mBuf[mPos];
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                break;
+            }
+            mPos++;
+        }
+    }
+    // Take the given char if it comes next
+    private boolean consume(char c) {
+        skipWhitespace();
+        if (mPos < mEnd && mBuf[mPos] == c) {
+            mPos++;
+            return true;
+        }
+        return false;
+    }
+    // Take a member name and the colon after it. The name is left in mKeyStart and mKeyEnd.
+    private boolean nextKey() {
+        if (!consume('"')) {
+            return false;
+        }
+        mKeyStart = mPos;
+        if (!skipStringBody()) {
+            return false;
+        }
+        mKeyEnd = mPos - 1;
+        return consume(':');
+    }
+    private boolean keyIs(byte[] key) {
+        if (mKeyEnd - mKeyStart != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (mBuf[mKeyStart + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    // Take an integral number. It is left in mNumber.
+    private boolean nextLong() {
+        skipWhitespace();
+        final boolean negative = (mPos < mEnd && mBuf[mPos] == '-');
+        if (negative) {
+            mPos++;
+        }
+        final int start = mPos;
+        long value = 0;
+        while (mPos < mEnd && mBuf[mPos] >= '0' && mBuf[mPos] <= '9') {
+            value = value * 10 - (mBuf[mPos] - '0');
+            mPos++;
+        }
+        final boolean cond1 = (mPos == start);
+        final boolean cond2 = (mPos < mEnd && (mBuf[mPos] == '.' || mBuf[mPos] == 'e' || mBuf[mPos] == 'E'));
+        if (cond1 || cond2) {
+            return false;
+        }
+        mNumber = negative ? value : -value;
+        return true;
+    }
+    private boolean nextInt() {
+        return nextLong() && mNumber >= Integer.MIN_VALUE && mNumber <= Integer.MAX_VALUE;
+    }
+    // Move past the closing quote of a string whose opening quote has been taken
+    private boolean skipStringBody() {
+        while (mPos < mEnd) {
+            final byte c = mBuf[mPos++];
+            if (c == '\\') {
+                mPos++;
+            } else if (c == '"') {
+                return true;
+            }
+        }
+        return false;
+    }
+    private boolean skipValue() {
+        skipWhitespace();
+        if (mPos >= mEnd) {
+            return false;
+        }
+        final byte first = mBuf[mPos];
+        if (first == '"') {
+            mPos++;
+            return skipStringBody();
+        }
+        if (first == '{' || first == '[') {
+            int depth = 0;
+            while (mPos < mEnd) {
+                final byte c = mBuf[mPos++];
+                if (c == '"') {
+                    if (!skipStringBody()) {
+                        return false;
+                    }
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if ((c == '}' || c == ']') && --depth == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        // Number or literal
+        final int start = mPos;
+        while (mPos < mEnd) {
+            final byte c = mBuf[mPos];
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                break;
+            }
+            mPos++;
+        }
+        return mPos > start;
+    }
+    private boolean parsePids(ArrayList<JDvrStreamInfo> pids) {
+        if (!consume('[')) {
+            return false;
+        }
+        if (consume(']')) {
+            return true;
+        }
+        do {
+            int pid = -1;
+            int type = -1;
+            int format = -1;
+            if (!consume('{')) {
+                return false;
+            }
+            if (!consume('}')) {
+                do {
+                    if (!nextKey()) {
+                        return false;
+                    }
+                    if (keyIs(KEY_PID)) {
+                        if (!nextInt()) {
+                            return false;
+                        }
+                        pid = (int)mNumber;
+                    } else if (keyIs(KEY_TYPE)) {
+                        if (!nextInt()) {
+                            return false;
+                        }
+                        type = (int)mNumber;
+                    } else if (keyIs(KEY_FORMAT)) {
+                        if (!nextInt()) {
+                            return false;
+                        }
+                        format = (int)mNumber;
+                    } else if (!skipValue()) {
+                        return false;
+                    }
+                } while (consume(','));
+                if (!consume('}')) {
+                    return false;
+                }
+            }
+            if (pid != -1 && type != -1 && format != -1) {
+                pids.add(new JDvrStreamInfo(pid, type, format));
+            }
+        } while (consume(','));
+        return consume(']');
+    }
+}
@@ -77,6 +77,9 @@ public class JDvrPlayer {
         public int firstSegmentId;
         public int lastSegmentId;
         public int numberOfSegments;
+        public int readAheadChunks;             // chunks of data read ahead and waiting for injection
+        public long readAheadBytes;             // bytes of data read ahead and waiting for injection
+        public int readAheadUnderruns;          // times read-ahead queue ran dry since playback started
         @Override
         public String toString() {
             return "{" +
@@ -91,6 +94,9 @@ public class JDvrPlayer {
                     ", \"firstSegmentId\":" + firstSegmentId +
                     ", \"lastSegmentId\":" + lastSegmentId +
                     ", \"numberOfSegments\":" + numberOfSegments +
+                    ", \"readAheadChunks\":" + readAheadChunks +
+                    ", \"readAheadBytes\":" + readAheadBytes +
+                    ", \"readAheadUnderruns\":" + readAheadUnderruns +
                     '}';
         }
     }
@@ -109,6 +115,11 @@ public class JDvrPlayer {
     private final Handler mPlaybackHandler;
     private final Object mOnJDvrPlayerEventLock = new Object();
     private InputBuffer mPendingInputBuffer;
+    // Data injection reuses a single InputBuffer over chunks from read-ahead stage.
+    // mPendingInputBuffer is either null or mInputBuffer, which wraps mPendingChunk.
+    private final InputBuffer mInputBuffer = new InputBuffer(new byte[0], 0, 0);
+    private JDvrReadAhead mReadAhead;
+    private JDvrReadAhead.JDvrReadAheadChunk mPendingChunk = null;
     private long mLastTrickModeTimestamp = 0L;
     private long mLastTrickModeTimeOffset = 0L;
     private final ArrayList<Pair<Long,Long>> mLastModifiedRecords = new ArrayList<>();
@@ -295,6 +306,10 @@ public class JDvrPlayer {
         mASPlayer = asplayer;
         mJDvrFile = file;
         mSettings = (settings == null) ? JDvrPlayerSettings.builder().build() : settings;
+        mJDvrFile.setReadMode(mSettings.mReadMode);
+        mJDvrFile.setPrefetchThreshold(mSettings.mSegmentPrefetchThreshold);
+        mReadAhead = new JDvrReadAhead(mJDvrFile, READ_LEN, mSettings.mReadAheadSize);
+        mReadAhead.start();
         mListenerExecutor = ((executor != null) ? executor : mPlayerExecutor);
         mListener = ((listener != null) ? listener : new JNIJDvrPlayerListener(this));
         Log.d(TAG,"calling ASPlayer.addPlaybackListener at "+JDvrCommon.getCallerInfo(3));
@@ -517,6 +532,7 @@ public class JDvrPlayer {
                 Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
             }
             mPlaybackThread.quitSafely();
+            mReadAhead.stop();
             mJDvrFile.close();
             mJDvrFile = null;
             mSession.mControllerToExit = false;
@@ -562,9 +578,8 @@ public class JDvrPlayer {
         if (cond4) {
             Log.d(TAG, "calling ASPlayer.flushDvr at " + JDvrCommon.getCallerInfo(3));
             mASPlayer.flushDvr();
-            mJDvrFile.seek(mSession.mTargetSeekPos * 1000);
+            seekData(mSession.mTargetSeekPos * 1000);
             Log.d(TAG,"Seek to "+mSession.mTargetSeekPos+"s in starting phase");
-            mPendingInputBuffer = null;
             mSession.mTargetSeekPos = null;
             mPlaybackHandler.removeCallbacks(mPtsRunnable);
         }
@@ -632,8 +647,7 @@ public class JDvrPlayer {
             Log.d(TAG,"calling ASPlayer.flushDvr/flush at "+JDvrCommon.getCallerInfo(3));
             mASPlayer.flushDvr();
             mASPlayer.flush();
-            mJDvrFile.seek(mSession.mTargetSeekPos*1000);
-            mPendingInputBuffer = null;
+            seekData(mSession.mTargetSeekPos*1000);
             mSession.mTargetSeekPos = null;
             mPlaybackHandler.removeCallbacks(mPtsRunnable);
         }
@@ -690,8 +704,7 @@ public class JDvrPlayer {
             Log.d(TAG, "calling ASPlayer.flushDvr/flush at " + JDvrCommon.getCallerInfo(3));
             mASPlayer.flushDvr();
             mASPlayer.flush();
-            mJDvrFile.seek(mSession.mTargetSeekPos * 1000);
-            mPendingInputBuffer = null;
+            seekData(mSession.mTargetSeekPos * 1000);
             mLastTrickModeTimestamp = curTs;
             mLastTrickModeTimeOffset = mSession.mTargetSeekPos * 1000;
             mSession.mTargetSeekPos = null;
@@ -711,8 +724,7 @@ public class JDvrPlayer {
             Log.d(TAG,"calling ASPlayer.flushDvr/flush at "+JDvrCommon.getCallerInfo(3));
             mASPlayer.flushDvr();
             mASPlayer.flush();
-            mJDvrFile.seek((int)newOffset);
-            mPendingInputBuffer = null;
+            seekData((int)newOffset);
             mPlaybackHandler.removeCallbacks(mPtsRunnable);
             if (!mSession.mTrickModeBySeekIsOn) {
                 Log.d(TAG, "calling ASPlayer.setTrickMode(BY_SEEK) at " + JDvrCommon.getCallerInfo(3));
@@ -777,8 +789,7 @@ public class JDvrPlayer {
             Log.d(TAG,"calling ASPlayer.flushDvr/flush at "+JDvrCommon.getCallerInfo(3));
             mASPlayer.flushDvr();
             mASPlayer.flush();
-            mJDvrFile.seek(mSession.mTargetSeekPos*1000);
-            mPendingInputBuffer = null;
+            seekData(mSession.mTargetSeekPos*1000);
             Log.d(TAG,"calling ASPlayer.setTrickMode(BY_SEEK) at "+JDvrCommon.getCallerInfo(3));
             mASPlayer.setTrickMode(VideoTrickMode.TRICK_MODE_BY_SEEK);
             Log.d(TAG,"calling ASPlayer.startFast(1.0) at "+JDvrCommon.getCallerInfo(3));
@@ -822,18 +833,20 @@ public class JDvrPlayer {
         }
     }
     private int injectData() {
-        byte[] buffer = new byte [READ_LEN];
         if (mPendingInputBuffer == null) {
-            // Only allow to read new data when there is no pending data.
-            final int len = mJDvrFile.read(buffer,0,READ_LEN);
-            //Log.d(TAG,"injectData, JDvrFile.read returns: "+len);
-            if (len == 0 || len == -1) {
-                return len;
+            // Only allow to take new data when there is no pending data.
+            final JDvrReadAhead.JDvrReadAheadChunk chunk = mReadAhead.poll();
+            if (chunk == null) {
+                return mReadAhead.isEndOfData() ? -1 : 0;
             }
-            mPendingInputBuffer = new InputBuffer(buffer, 0, len);
+            mPendingChunk = chunk;
+            mInputBuffer.mBuffer = chunk.mBuffer;
+            mInputBuffer.mOffset = 0;
+            mInputBuffer.mBufferSize = chunk.mLength;
+            mPendingInputBuffer = mInputBuffer;
         }
         if (mPendingInputBuffer.mBufferSize <= 0) {
-            mPendingInputBuffer = null;
+            dropPendingData();
             return 0;
         }
         int len2;
@@ -845,7 +858,7 @@ public class JDvrPlayer {
             return 0;
         }
         if (len2 == mPendingInputBuffer.mBufferSize) {
-            mPendingInputBuffer = null;
+            dropPendingData();
         } else if (len2 > 0 && len2 < mPendingInputBuffer.mBufferSize) {
             mPendingInputBuffer.mOffset += len2;
             mPendingInputBuffer.mBufferSize -= len2;
@@ -855,6 +868,26 @@ public class JDvrPlayer {
         //Log.d(TAG,"injectData, injected "+len2+" bytes, remains:"+(mPendingInputBuffer!=null?mPendingInputBuffer.mBufferSize:0)+" bytes");
         return len2;
     }
+    // Give the chunk being injected back to read-ahead stage
+    private void dropPendingData() {
+        mReadAhead.recycle(mPendingChunk);
+        mPendingChunk = null;
+        mPendingInputBuffer = null;
+    }
+    // Reposition playback data. Data pending or read ahead is dropped. Playing time and pts are
+    // those of the new position once it returns, and pts reported before it are no longer applied.
+    private void seekData(int ms) {
+        dropPendingData();
+        if (!mReadAhead.seek(ms)) {
+            return;
+        }
+        mPlaybackHandler.removeCallbacks(mPtsRunnable);
+        mLastPts = mJDvrFile.getLastPts();
+        final long playingTime = mJDvrFile.getPlayingTime();
+        if (playingTime >= 0) {
+            mPlayingTime = playingTime;
+        }
+    }
     private boolean isSmoothPlaySpeed(double speed) {
         return (speed > 0.0d && speed <= 2.0d);
     }
@@ -865,6 +898,7 @@ public class JDvrPlayer {
         Log.d(TAG,"Speed transition: "+mSession.mCurrentSpeed+" => "+mSession.mTargetSpeed
                 +" (at "+JDvrCommon.getCallerInfo(4)+")");
         mSession.mCurrentSpeed = mSession.mTargetSpeed;
+        mReadAhead.setSpeed(mSession.mCurrentSpeed);
     }
     private boolean innerSeek(int seconds) {
         Log.d(TAG,"JDvrPlayer.innerSeek to "+seconds+"s");
@@ -893,7 +927,10 @@ public class JDvrPlayer {
         progress.numberOfSegments = mJDvrFile.getNumberOfSegments();
         progress.firstSegmentId = mJDvrFile.getFirstSegmentId();
         progress.lastSegmentId = mJDvrFile.getLastSegmentId();
-        progress.currSegmentId = mJDvrFile.getSegmentIdBeingRead();
+        progress.currSegmentId = mJDvrFile.getSegmentIdOfPlayingTime();
+        progress.readAheadChunks = mReadAhead.getQueuedChunks();
+        progress.readAheadBytes = mReadAhead.getQueuedBytes();
+        progress.readAheadUnderruns = mReadAhead.getUnderruns();
         mPlayingTime = progress.currTime;
         mEndTime = progress.endTime;
         Message msg = new Message();
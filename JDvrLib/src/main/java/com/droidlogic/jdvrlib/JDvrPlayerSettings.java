@@ -1,15 +1,42 @@
 package com.droidlogic.jdvrlib;
 
+import com.droidlogic.jdvrlib.JDvrCommon.JDvrReadMode;
+
 public class JDvrPlayerSettings {
-    private JDvrPlayerSettings() {
+    public int mReadMode;           // JDvrReadMode
+    public long mReadAheadSize;     // in bytes
+    public double mSegmentPrefetchThreshold;
 
+    private JDvrPlayerSettings(int readMode, long readAheadSize, double segmentPrefetchThreshold) {
+        mReadMode = readMode;
+        mReadAheadSize = readAheadSize;
+        mSegmentPrefetchThreshold = segmentPrefetchThreshold;
     }
     public static Builder builder() {
         return new Builder();
     }
     public static final class Builder {
+        private int mReadMode = JDvrReadMode.READ_MODE_POSITIONAL;
+        private long mReadAheadSize = 8*188*1024;
+        private double mSegmentPrefetchThreshold = 0.8d;
+
+        // Read ts files with positional reads, or through memory mappings for finished segments
+        public Builder setReadMode(int mode) {
+            this.mReadMode = mode;
+            return this;
+        }
+        // Bytes of data read ahead of play position at normal speed. It grows at fast smooth speeds.
+        public Builder setReadAheadSize(long size) {
+            this.mReadAheadSize = size;
+            return this;
+        }
+        // Warm next segment once this fraction of current segment has been read. Out of (0,1) disables it.
+        public Builder setSegmentPrefetchThreshold(double threshold) {
+            this.mSegmentPrefetchThreshold = threshold;
+            return this;
+        }
         public JDvrPlayerSettings build() {
-            return new JDvrPlayerSettings();
+            return new JDvrPlayerSettings(mReadMode, mReadAheadSize, mSegmentPrefetchThreshold);
         }
     }
 }
@@ -0,0 +1,226 @@
+package com.droidlogic.jdvrlib;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Read-ahead stage of playback. It reads ts data of a JDvrFile on a dedicated I/O thread and keeps
+ * a bounded queue of filled chunks ahead of the play position, so that a slow read never blocks
+ * the playback state machine. All reads and seeks of the JDvrFile go through this stage.
+ */
+class JDvrReadAhead {
+    public static class JDvrReadAheadChunk {
+        public final byte[] mBuffer;
+        public int mLength = 0;
+
+        private JDvrReadAheadChunk(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+    }
+
+    // The interval to retry reading when there is no more data for now, e.g. at the end of timeshift
+    private final static int RETRY_INTERVAL = 20;  // in ms
+    // Upper bound of queue size relative to its base size at fast smooth speeds
+    private final static int MAX_SPEED_FACTOR = 4;
+
+    private final String TAG = JDvrReadAhead.class.getSimpleName();
+    private final JDvrFile mJDvrFile;
+    private final int mChunkSize;
+    private final long mBaseQueueSize;
+    private final HandlerThread mIOThread = new HandlerThread("JDvrPlayer read-ahead task");
+    private volatile Handler mIOHandler = null;   // read by caller threads, null once stopped
+    private final Object mLock = new Object();
+    // Following fields are guarded by mLock
+    private final ArrayDeque<JDvrReadAheadChunk> mFilledChunks = new ArrayDeque<>();
+    private final ArrayDeque<JDvrReadAheadChunk> mFreeChunks = new ArrayDeque<>();
+    private int mGeneration = 0;            // increased on every seek, chunks of older generations are dropped
+    private long mQueuedBytes = 0L;
+    private long mTargetQueueSize;
+    private boolean mEndOfData = false;     // the latest read of current generation hit the end of recording
+    private boolean mDelivered = false;     // any chunk of current generation has been handed out
+    private int mUnderruns = 0;
+
+    private final Runnable mFillRunnable = this::fill;
+
+    /**
+     * @param file the JDvrFile to read from.
+     * @param chunkSize size of each chunk in bytes.
+     * @param queueSize bytes to read ahead at normal speed.
+     */
+    public JDvrReadAhead(JDvrFile file, int chunkSize, long queueSize) {
+        mJDvrFile = file;
+        mChunkSize = chunkSize;
+        mBaseQueueSize = Math.max(queueSize, chunkSize);
+        mTargetQueueSize = mBaseQueueSize;
+    }
+    public void start() {
+        mIOThread.start();
+        mIOHandler = new Handler(mIOThread.getLooper());
+        mIOHandler.post(mFillRunnable);
+    }
+    /**
+     * Stop the I/O thread. It waits for the read in progress, so the JDvrFile can be closed safely
+     * after it returns.
+     */
+    public void stop() {
+        final Handler handler = mIOHandler;
+        if (handler == null) {
+            return;
+        }
+        mIOHandler = null;
+        handler.removeCallbacksAndMessages(null);
+        mIOThread.quitSafely();
+        // No timeout here, as a read still in progress would race with closing of the file
+        try {
+            mIOThread.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+        }
+    }
+    /**
+     * Drop all queued data and continue reading from a new position. The JDvrFile is repositioned
+     * before it returns, so playing time and segment reflect the new position right away. Only
+     * refilling of the queue is left to I/O thread.
+     *
+     * @param ms the position in ms from origin, see JDvrFile.seek.
+     * @return true if the JDvrFile is repositioned, or false otherwise.
+     */
+    public boolean seek(int ms) {
+        final boolean ret;
+        synchronized (mLock) {
+            // JDvrFile.seek waits for the read in progress, if any. Holding mLock meanwhile keeps I/O
+            // thread from starting another read, so the next read is the first of new generation
+            // and it starts from the new position.
+            ret = mJDvrFile.seek(ms);
+            mGeneration++;
+            while (!mFilledChunks.isEmpty()) {
+                mFreeChunks.add(mFilledChunks.poll());
+            }
+            mQueuedBytes = 0L;
+            mEndOfData = false;
+            mDelivered = false;
+        }
+        final Handler handler = mIOHandler;
+        if (handler != null) {
+            handler.removeCallbacks(mFillRunnable);
+            handler.post(mFillRunnable);
+        }
+        return ret;
+    }
+    /**
+     * Adapt queue size to playback speed. Smooth fast playback consumes data faster, so it reads
+     * further ahead. Skipping playback seeks every second, so it keeps only a small queue.
+     */
+    public void setSpeed(double speed) {
+        synchronized (mLock) {
+            if (speed < 0.0d || speed > 2.0d) {
+                mTargetQueueSize = mChunkSize * 2L;
+            } else {
+                final double factor = Math.min(Math.max(speed, 1.0d), MAX_SPEED_FACTOR);
+                mTargetQueueSize = Math.max((long)(mBaseQueueSize * factor), mChunkSize);
+            }
+        }
+        final Handler handler = mIOHandler;
+        if (handler != null && !handler.hasCallbacks(mFillRunnable)) {
+            handler.post(mFillRunnable);
+        }
+    }
+    /**
+     * Take the next filled chunk. It must be given back by recycle() once its data is consumed.
+     *
+     * @return the next chunk, or null if no data is ready.
+     */
+    public JDvrReadAheadChunk poll() {
+        JDvrReadAheadChunk chunk;
+        synchronized (mLock) {
+            chunk = mFilledChunks.poll();
+            if (chunk != null) {
+                mQueuedBytes -= chunk.mLength;
+                mDelivered = true;
+            } else if (mDelivered && !mEndOfData) {
+                mUnderruns++;
+                mDelivered = false;
+            }
+        }
+        final Handler handler = mIOHandler;
+        if (chunk != null && handler != null && !handler.hasCallbacks(mFillRunnable)) {
+            handler.post(mFillRunnable);
+        }
+        return chunk;
+    }
+    public void recycle(JDvrReadAheadChunk chunk) {
+        if (chunk == null) {
+            return;
+        }
+        synchronized (mLock) {
+            mFreeChunks.add(chunk);
+        }
+    }
+    // Whether all data available for now has been handed out
+    public boolean isEndOfData() {
+        synchronized (mLock) {
+            return mEndOfData && mFilledChunks.isEmpty();
+        }
+    }
+    public int getQueuedChunks() {
+        synchronized (mLock) {
+            return mFilledChunks.size();
+        }
+    }
+    public long getQueuedBytes() {
+        synchronized (mLock) {
+            return mQueuedBytes;
+        }
+    }
+    // Number of times the queue ran dry in the middle of data delivery
+    public int getUnderruns() {
+        synchronized (mLock) {
+            return mUnderruns;
+        }
+    }
+
+    // Runs on I/O thread only
+    private void fill() {
+        while (true) {
+            JDvrReadAheadChunk chunk;
+            int generation;
+            synchronized (mLock) {
+                generation = mGeneration;
+                if (mQueuedBytes >= mTargetQueueSize) {
+                    return;
+                }
+                chunk = mFreeChunks.poll();
+                if (chunk == null) {
+                    chunk = new JDvrReadAheadChunk(mChunkSize);
+                }
+            }
+            final int len = mJDvrFile.read(chunk.mBuffer, 0, mChunkSize);
+            synchronized (mLock) {
+                if (generation != mGeneration) {
+                    // A seek came in during the read, so the data is out of date
+                    mFreeChunks.add(chunk);
+                    continue;
+                }
+                if (len <= 0) {
+                    mFreeChunks.add(chunk);
+                    mEndOfData = (len == -1);
+                } else {
+                    chunk.mLength = len;
+                    mFilledChunks.add(chunk);
+                    mQueuedBytes += len;
+                    mEndOfData = false;
+                    continue;
+                }
+            }
+            // No more data for now, try again later
+            final Handler handler = mIOHandler;
+            if (handler != null) {
+                handler.postDelayed(mFillRunnable, RETRY_INTERVAL);
+            }
+            return;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.droidlogic.jdvrlib;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashSet;
+
+/**
+ * Background remover of recording files. A file handed to it is renamed into a trash directory
+ * next to it, which is quick, and unlinked later on a background thread, so that the caller never
+ * waits for unlinking of a large file. It is shared by all JDvrFile instances.
+ * All work runs on a single thread in order, which bounds the I/O load of deletion, and also lets a
+ * task posted by execute() know that files reaped before it have been unlinked when it runs.
+ */
+class JDvrReaper {
+    final private static String TAG = JDvrReaper.class.getSimpleName();
+    final private static String TRASH_DIR_NAME = ".jdvr_trash";
+    private static JDvrReaper mInstance = null;
+
+    private final HandlerThread mReaperThread = new HandlerThread("JDvrReaper task");
+    private final Handler mReaperHandler;
+    private final Object mLock = new Object();
+    // Following fields are guarded by mLock
+    private long mPendingBytes = 0L;
+    private int mPendingFiles = 0;
+    private final HashSet<String> mCheckedTrashDirs = new HashSet<>();
+
+    public static synchronized JDvrReaper getInstance() {
+        if (mInstance == null) {
+            mInstance = new JDvrReaper();
+        }
+        return mInstance;
+    }
+    private JDvrReaper() {
+        mReaperThread.start();
+        mReaperHandler = new Handler(mReaperThread.getLooper());
+    }
+    /**
+     * Remove a file in background. It disappears from its directory before this returns, unless
+     * it cannot be moved into trash, in which case it is simply removed later.
+     *
+     * @param file the file to be removed.
+     */
+    public void reap(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        final long length = file.length();
+        schedule(moveToTrash(file), length);
+    }
+    /**
+     * Run a task on reaper thread after all work queued so far.
+     */
+    public void execute(Runnable task) {
+        mReaperHandler.post(task);
+    }
+    /**
+     * Get bytes of files waiting to be removed. Storage they occupy is about to be freed, so it is
+     * supposed to be taken as available in disk space accounting.
+     */
+    public long getPendingBytes() {
+        synchronized (mLock) {
+            return mPendingBytes;
+        }
+    }
+    public int getPendingFiles() {
+        synchronized (mLock) {
+            return mPendingFiles;
+        }
+    }
+
+    // Private functions
+    private void schedule(File trashed, long length) {
+        synchronized (mLock) {
+            mPendingBytes += length;
+            mPendingFiles++;
+        }
+        mReaperHandler.post(() -> {
+            Log.d(TAG,"removing "+trashed.getAbsolutePath());
+            if (!trashed.delete()) {
+                Log.w(TAG,"Fails to remove "+trashed.getAbsolutePath());
+            }
+            synchronized (mLock) {
+                mPendingBytes -= length;
+                mPendingFiles--;
+            }
+        });
+    }
+    private File moveToTrash(File file) {
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (dir == null) {
+            return file;
+        }
+        final File trashDir = new File(dir, TRASH_DIR_NAME);
+        boolean firstVisit;
+        synchronized (mLock) {
+            firstVisit = mCheckedTrashDirs.add(trashDir.getPath());
+        }
+        if (firstVisit) {
+            // Files left in trash by an interrupted process are removed as well
+            purgeTrash(trashDir);
+        }
+        if (!trashDir.isDirectory() && !trashDir.mkdir() && !trashDir.isDirectory()) {
+            return file;
+        }
+        final File trashed = new File(trashDir, file.getName() + "." + System.nanoTime());
+        return file.renameTo(trashed) ? trashed : file;
+    }
+    private void purgeTrash(File trashDir) {
+        final File[] files = trashDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            schedule(file, file.length());
+        }
+    }
+}
@@ -91,6 +91,8 @@ public class JDvrRecorder {
         private boolean mFilesReady = false;
         private final ArrayList<JDvrStreamInfo> mStreams = new ArrayList<>();
         private final ArrayList<JDvrStreamInfo> mStreamsPending = new ArrayList<>();
+        private int mVideoPid = -1;         // key frames are looked for on this pid only
+        private int mKeyFrameScMask = 0;
         private final ArrayList<TsRecordEvent> mTsDataToProcess = new ArrayList<>();
 
         private final int mSessionNumber;
@@ -181,12 +183,20 @@ public class JDvrRecorder {
     final static private int interval2 = 10000;   // in ms
     // The minimum time interval for PROGRESS messages
     final static private int interval3 = 1000;   // in ms
+    // The size of chunks in which coming data is taken out of DvrRecorder, a multiple of TS packet size
+    final static private int DRAIN_CHUNK_SIZE = 188*1024;   // in bytes
+    // HEVC start codes of pictures decoding can start from, i.e. IDR, CRA and BLA slices
+    final static private int HEVC_KEY_FRAME_SC_MASK = RecordSettings.SC_HEVC_INDEX_SLICE_IDR_W_RADL
+            | RecordSettings.SC_HEVC_INDEX_SLICE_IDR_N_LP | RecordSettings.SC_HEVC_INDEX_SLICE_CRA
+            | RecordSettings.SC_HEVC_INDEX_SLICE_BLA_W_RADL | RecordSettings.SC_HEVC_INDEX_SLICE_BLA_N_LP
+            | RecordSettings.SC_HEVC_INDEX_SLICE_CE_BLA_W_LP;
 
     // Member Variables
     private final JDvrRecordingSession mSession = new JDvrRecordingSession();
     private final String TAG = getLogTAG();
     private final Tuner mTuner;
     private DvrRecorder mDvrRecorder = null;
+    private JDvrDataSource mDataSource = null;
     private final JDvrRecorderSettings mSettings;
     private final HashMap<Integer,Filter> mFilters = new HashMap<>();
     private final HandlerThread mRecordingThread = new HandlerThread("JDvrRecorder task");
@@ -196,6 +206,7 @@ public class JDvrRecorder {
     private final Handler mRecordingHandler;
     private JDvrFile mJDvrFile;
     private TsRecordEvent mLastEvent = null;
+    private byte[] mDrainBuffer = null;
 
     // Callbacks
     private final Handler.Callback mRecordingCallback = message -> {
@@ -360,6 +371,10 @@ public class JDvrRecorder {
     }
     private void handlingStartState() {
         JDvrSegment.setMaxSegmentSize(mSettings.mSegmentSize);
+        mJDvrFile.setSyncPolicy(mSettings.mSyncPolicy, mSettings.mSyncInterval, mSettings.mSyncIntervalBytes);
+        mJDvrFile.setWriteBuffer(mSettings.mWriteBufferSize, mSettings.mWriteBufferMaxLatency);
+        mJDvrFile.setIndexFormat(mSettings.mIndexFormat);
+        mJDvrFile.setPreallocation(mSettings.mPreallocation);
         if (mTuner == null) {
             Log.e(TAG, "Tuner is invalid");
             return;
@@ -376,6 +391,7 @@ public class JDvrRecorder {
             Log.e(TAG, "Failed to openDvrRecorder");
             return;
         }
+        mDataSource = new JDvrDataSource.JDvrTunerDataSource(mDvrRecorder);
         mDvrRecorder.configure(mSettings.getDvrSettings());
     }
     private void handlingInitialState() {
@@ -500,12 +516,12 @@ public class JDvrRecorder {
             final int len = (int)(lastEvent.getDataLength() - mLastEvent.getDataLength());
             mLastEvent = lastEvent;
             if (len > 0) {
-                byte[] buffer = new byte[len];
-                mDvrRecorder.write(buffer, 0, len);
                 // In Paused state, it just discards coming data, so there is no further handling of the data
+                discardRecorderData(len);
             }
         }
         mSession.mTsDataToProcess.clear();
+        mJDvrFile.flushStaleData();
         if (mSession.mControllerToStart) {
             mSession.mControllerToPause = false;
             mSession.mControllerToStart = false;
@@ -661,8 +677,15 @@ public class JDvrRecorder {
                 RecordSettings.Builder builder = RecordSettings.builder(Filter.TYPE_TS);
                 builder.setTsIndexMask(flags);
                 if (cond5 && stream.type == JDvrStreamType.STREAM_TYPE_VIDEO) {
-                    // INDEX_TYPE_SC should be used only on video
-                    builder.setScIndexType(RecordSettings.INDEX_TYPE_SC);
+                    // INDEX_TYPE_SC should be used only on video. Start codes of key frames are
+                    // reported, so that they can be noted in index.
+                    if (stream.format == JDvrVideoFormat.VIDEO_FORMAT_HEVC) {
+                        builder.setScIndexType(RecordSettings.INDEX_TYPE_SC_HEVC);
+                        builder.setScIndexMask(HEVC_KEY_FRAME_SC_MASK);
+                    } else {
+                        builder.setScIndexType(RecordSettings.INDEX_TYPE_SC);
+                        builder.setScIndexMask(RecordSettings.SC_INDEX_I_FRAME);
+                    }
                 }
                 Settings recordSettings = builder.build();
                 FilterConfiguration filterConfig = TsFilterConfiguration
@@ -696,6 +719,13 @@ public class JDvrRecorder {
         });
         mSession.mStreams.removeIf(stream -> ((stream.flags & JDvrStreamInfo.TO_BE_REMOVED) > 0));
         mSession.mStreamsPending.clear();
+        // Taken once here rather than on every recorder event
+        final JDvrStreamInfo video = mSession.mStreams.stream()
+                .filter(s -> s.type == JDvrStreamType.STREAM_TYPE_VIDEO)
+                .findFirst().orElse(null);
+        mSession.mVideoPid = (video != null) ? video.pid : -1;
+        mSession.mKeyFrameScMask = (video == null) ? 0
+                : (video.format == JDvrVideoFormat.VIDEO_FORMAT_HEVC) ? HEVC_KEY_FRAME_SC_MASK : RecordSettings.SC_INDEX_I_FRAME;
         mJDvrFile.updateRecordingStreams(mSession.mStreams);
         mSession.mPidChanged = false;
         Log.d(TAG,"Streams after: "+(mSession.mStreams.size()>0 ? mSession.mStreams.stream().map(JDvrStreamInfo::toString2).collect(Collectors.joining(", ")) : "null"));
@@ -778,8 +808,10 @@ public class JDvrRecorder {
                 Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
                 return;
             }
-            final long diskAvailable = stat.getAvailableBlocksLong() * stat.getBlockSizeLong();
-            Log.d(TAG,"Free disk space: " + (diskAvailable>>20) + " MB");
+            // Space of evicted segments waiting to be removed is about to be freed
+            final long diskPending = JDvrReaper.getInstance().getPendingBytes();
+            final long diskAvailable = stat.getAvailableBlocksLong() * stat.getBlockSizeLong() + diskPending;
+            Log.d(TAG,"Free disk space: " + (diskAvailable>>20) + " MB (" + (diskPending>>20) + " MB pending removal)");
             mSession.mDiskFull = diskAvailable <= 0;
         }
     };
@@ -947,13 +979,30 @@ public class JDvrRecorder {
             }
             TsRecordEvent lastEvent = mSession.mTsDataToProcess.get(size-1);
             final int len = (int)(lastEvent.getDataLength() - mLastEvent.getDataLength());
+            if (!mSession.mIOError) {
+                noteKeyFrames(mLastEvent.getDataLength());
+            }
             mLastEvent = lastEvent;
             //Log.d(TAG,"delta:"+len+", getDataLength:"+mLastEvent.getDataLength());
-            if (len > 0) {
-                byte[] buffer = new byte[len];
-                final int sum = (int)mDvrRecorder.write(buffer, 0, len);
-                if (sum > 0 && !mSession.mIOError) {
-                    final long pts = mLastEvent.getPts();
+            if (len > 0 && mSession.mIOError) {
+                discardRecorderData(len);
+            } else if (len > 0 && mSettings.mFileDescriptorMode) {
+                try {
+                    mJDvrFile.write(mDataSource, len, mLastEvent.getPts());
+                } catch (Exception e) {
+                    Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+                    throw e;
+                }
+            } else if (len > 0) {
+                final byte[] buffer = getDrainBuffer();
+                final long pts = mLastEvent.getPts();
+                int remaining = len;
+                while (remaining > 0) {
+                    final int sum = (int)mDataSource.write(buffer, 0, Math.min(remaining, buffer.length));
+                    if (sum <= 0) {
+                        break;
+                    }
+                    remaining -= sum;
                     try {
                         mJDvrFile.write(buffer, 0, sum, pts);
                     } catch (Exception e) {
@@ -969,5 +1018,51 @@ public class JDvrRecorder {
             }
         }
         mSession.mTsDataToProcess.clear();
+        // Keep buffered data fresh for timeshift playback even if no data comes
+        mJDvrFile.flushStaleData();
+    }
+    // Pass key frames among coming events to JDvrFile. Data length of such an event is the position
+    // of the TS packet where the key frame starts, so it is relative to the data written so far.
+    private void noteKeyFrames(long writtenDataLength) {
+        final ArrayList<TsRecordEvent> events = mSession.mTsDataToProcess;
+        for (int i = 0; i < events.size(); i++) {
+            final TsRecordEvent event = events.get(i);
+            final boolean cond1 = isKeyFrameEvent(event);
+            final boolean cond2 = (event.getDataLength() >= writtenDataLength);
+            if (cond1 && cond2) {
+                //Log.d(TAG,"key frame on pid "+event.getPacketId()+" at "+event.getDataLength());
+                mJDvrFile.addKeyFrame(event.getDataLength() - writtenDataLength);
+            }
+        }
+    }
+    private boolean isKeyFrameEvent(TsRecordEvent event) {
+        final boolean cond1 = (event.getPacketId() == mSession.mVideoPid);
+        final boolean cond2 = ((event.getScIndexMask() & mSession.mKeyFrameScMask) != 0);
+        return cond1 && cond2;
+    }
+    // Coming data is drained in chunks through this buffer, so a burst of data never causes a big allocation
+    private byte[] getDrainBuffer() {
+        if (mDrainBuffer == null) {
+            mDrainBuffer = new byte[DRAIN_CHUNK_SIZE];
+        }
+        return mDrainBuffer;
+    }
+    // Take coming data out of DvrRecorder without keeping it
+    private void discardRecorderData(int len) {
+        try {
+            mJDvrFile.discard(mDataSource, len);
+            return;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to discard data through file descriptor, fall back to drain buffer: " + e);
+        }
+        final byte[] buffer = getDrainBuffer();
+        int remaining = len;
+        while (remaining > 0) {
+            final int sum = (int)mDataSource.write(buffer, 0, Math.min(remaining, buffer.length));
+            if (sum <= 0) {
+                break;
+            }
+            remaining -= sum;
+        }
     }
 }
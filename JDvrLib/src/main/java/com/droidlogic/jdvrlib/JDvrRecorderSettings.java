@@ -2,6 +2,9 @@ package com.droidlogic.jdvrlib;
 
 import android.media.tv.tuner.dvr.DvrSettings;
 
+import com.droidlogic.jdvrlib.JDvrCommon.JDvrIndexFormat;
+import com.droidlogic.jdvrlib.JDvrCommon.JDvrSyncPolicy;
+
 public class JDvrRecorderSettings {
     private final int mStatusMask;
     private final long mLowThreshold;
@@ -12,12 +15,24 @@ public class JDvrRecorderSettings {
     public int mRecorderBufferSize;
     public int mFilterBufferSize;
     public int mSegmentSize;
+    public int mSyncPolicy;         // JDvrSyncPolicy
+    public int mSyncInterval;       // in ms
+    public long mSyncIntervalBytes; // in bytes
+    public int mWriteBufferSize;
+    public int mWriteBufferMaxLatency;  // in ms
+    public int mIndexFormat;        // JDvrIndexFormat
+    public boolean mFileDescriptorMode;
+    public boolean mPreallocation;
 
     private JDvrRecorderSettings(int statusMask, long lowThreshold,
                                  long highThreshold, long packetSize,
                                  int dataFormat,
                                  int recorderBufferSize, int filterBufferSize,
-                                 int segmentSize
+                                 int segmentSize,
+                                 int syncPolicy, int syncInterval, long syncIntervalBytes,
+                                 int writeBufferSize, int writeBufferMaxLatency,
+                                 int indexFormat, boolean fileDescriptorMode,
+                                 boolean preallocation
     ) {
         mStatusMask = statusMask;
         mLowThreshold = lowThreshold;
@@ -27,6 +42,14 @@ public class JDvrRecorderSettings {
         mRecorderBufferSize = recorderBufferSize;
         mFilterBufferSize = filterBufferSize;
         mSegmentSize = segmentSize;
+        mSyncPolicy = syncPolicy;
+        mSyncInterval = syncInterval;
+        mSyncIntervalBytes = syncIntervalBytes;
+        mWriteBufferSize = writeBufferSize;
+        mWriteBufferMaxLatency = writeBufferMaxLatency;
+        mIndexFormat = indexFormat;
+        mFileDescriptorMode = fileDescriptorMode;
+        mPreallocation = preallocation;
     }
     public static Builder builder() {
         return new Builder();
@@ -40,6 +63,14 @@ public class JDvrRecorderSettings {
         private int mRecorderBufferSize = 188 * 32768;
         private int mFilterBufferSize = 188 * 4096;
         private int mSegmentSize = 30 * 1024 * 1024;
+        private int mSyncPolicy = JDvrSyncPolicy.SYNC_POLICY_PERIODIC;
+        private int mSyncInterval = 1000;
+        private long mSyncIntervalBytes = 8 * 1024 * 1024;
+        private int mWriteBufferSize = JDvrSegment.WRITE_ALIGNMENT;
+        private int mWriteBufferMaxLatency = 200;
+        private int mIndexFormat = JDvrIndexFormat.INDEX_FORMAT_JSON;
+        private boolean mFileDescriptorMode = false;
+        private boolean mPreallocation = false;
 
         public Builder setStatusMask(int statusMask) {
             this.mStatusMask = statusMask;
@@ -73,10 +104,53 @@ public class JDvrRecorderSettings {
             this.mFilterBufferSize = size;
             return this;
         }
+        // JDvrSyncPolicy value
+        public Builder setSyncPolicy(int policy) {
+            this.mSyncPolicy = policy;
+            return this;
+        }
+        // Group commit interval of SYNC_POLICY_PERIODIC in ms
+        public Builder setSyncInterval(int ms) {
+            this.mSyncInterval = ms;
+            return this;
+        }
+        // Group commit interval of SYNC_POLICY_PERIODIC in bytes
+        public Builder setSyncIntervalBytes(long bytes) {
+            this.mSyncIntervalBytes = bytes;
+            return this;
+        }
+        // Rounded down to a multiple of 188*4096 bytes, 0 means no write buffering
+        public Builder setWriteBufferSize(int size) {
+            this.mWriteBufferSize = size;
+            return this;
+        }
+        // The longest time in ms that data can stay in write buffer
+        public Builder setWriteBufferMaxLatency(int ms) {
+            this.mWriteBufferMaxLatency = ms;
+            return this;
+        }
+        // JDvrIndexFormat value of segment index files
+        public Builder setIndexFormat(int format) {
+            this.mIndexFormat = format;
+            return this;
+        }
+        // Let DvrRecorder write data straight to segment files instead of copying it through Java heap
+        public Builder setFileDescriptorMode(boolean enable) {
+            this.mFileDescriptorMode = enable;
+            return this;
+        }
+        // Preallocate ts file of each segment to max segment size to avoid fragmentation on storage
+        public Builder setPreallocation(boolean enable) {
+            this.mPreallocation = enable;
+            return this;
+        }
 
         public JDvrRecorderSettings build() {
             return new JDvrRecorderSettings(mStatusMask,mLowThreshold,mHighThreshold,mPacketSize,
-                    mDataFormat,mRecorderBufferSize,mFilterBufferSize,mSegmentSize);
+                    mDataFormat,mRecorderBufferSize,mFilterBufferSize,mSegmentSize,
+                    mSyncPolicy,mSyncInterval,mSyncIntervalBytes,
+                    mWriteBufferSize,mWriteBufferMaxLatency,mIndexFormat,
+                    mFileDescriptorMode,mPreallocation);
         }
     }
     public DvrSettings getDvrSettings() {
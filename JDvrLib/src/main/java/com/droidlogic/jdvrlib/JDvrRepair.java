@@ -0,0 +1,458 @@
+package com.droidlogic.jdvrlib;
+
+import android.util.Log;
+
+import com.droidlogic.jdvrlib.JDvrCommon.*;
+import com.droidlogic.jdvrlib.JDvrRecorder.JDvrStreamInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Repair of a recording whose .stat/.list files are missing, e.g. after a power cut.
+ * Segments are checked in parallel on a bounded pool shared by all repairs. A segment whose index
+ * is usable only has its index loaded, while a segment whose index is missing or falls short of
+ * its ts data has the index rebuilt by scanning ts packets for PES headers, PTS and random access
+ * indicators, the latter of which give key frame offsets of index entries. Then .stat and .list
+ * files are regenerated from all segments.
+ * A repair can be cancelled from another thread, and its progress can be polled or listened to.
+ */
+public class JDvrRepair {
+    public interface OnJDvrRepairProgressListener {
+        void onProgress(String pathPrefix, int segmentsDone, int segmentsTotal);
+    }
+
+    final private static String TAG = JDvrRepair.class.getSimpleName();
+    final private static int REPAIR_THREADS = 4;
+    final private static int TS_PACKET_SIZE = 188;
+    final private static int SCAN_BUFFER_SIZE = TS_PACKET_SIZE * 4096;
+    // An index is rebuilt if ts data not covered by it is more than this
+    final private static long REBUILD_THRESHOLD = 4 * 1024 * 1024;
+    // A PTS jump larger than this is taken as a discontinuity rather than elapsed time
+    final private static long MAX_PTS_GAP = 10 * 1000;  // in ms
+    private static ExecutorService mRepairExecutor = null;
+
+    private final String mPathPrefix;
+    private volatile boolean mCancelled = false;
+    private final AtomicInteger mSegmentsDone = new AtomicInteger(0);
+    private volatile int mSegmentsTotal = 0;
+    private OnJDvrRepairProgressListener mListener = null;
+
+    // Outcome of checking a segment
+    private static class JDvrSegmentRepair {
+        final int id;
+        long size = 0L;
+        long duration = 0L;
+        long startTime = -1L;   // unknown if it is negative
+        ArrayList<JDvrStreamInfo> streams = new ArrayList<>();
+        JDvrIndexEntries rebuiltIndex = null;   // null if existing index is usable
+
+        JDvrSegmentRepair(int _id) {
+            id = _id;
+        }
+    }
+    // Time/offset/pts/key offset entries of a rebuilt index
+    private static class JDvrIndexEntries {
+        long[] time = new long[64];
+        long[] offset = new long[64];
+        long[] pts = new long[64];
+        long[] keyOffset = new long[64];
+        int size = 0;
+
+        void add(long t, long o, long p, long k) {
+            if (size == time.length) {
+                time = Arrays.copyOf(time, size * 2);
+                offset = Arrays.copyOf(offset, size * 2);
+                pts = Arrays.copyOf(pts, size * 2);
+                keyOffset = Arrays.copyOf(keyOffset, size * 2);
+            }
+            time[size] = t;
+            offset[size] = o;
+            pts[size] = p;
+            keyOffset[size] = k;
+            size++;
+        }
+    }
+    // Index entries built from PES of a single PID
+    private static class JDvrIndexBuilder {
+        final JDvrIndexEntries entries = new JDvrIndexEntries();
+        int pid = -1;
+        long lastPts = -1L;     // 33-bit PTS of the latest PES
+        long timeBase = 0L;     // in ms, time of ptsBase
+        long ptsBase = 0L;      // unwrapped
+        long wrap = 0L;
+        long lastTime = 0L;     // in ms, time of the latest PES
+        long keyOffset = -1L;   // offset of the latest PES with random access indicator
+
+        void add(long pts, long offset, boolean randomAccess) {
+            if (randomAccess) {
+                keyOffset = offset;
+            }
+            if (lastPts < 0) {
+                ptsBase = pts;
+                lastPts = pts;
+                entries.add(0L, offset, pts, keyOffset);
+                return;
+            }
+            final long diff = pts - lastPts;
+            if (diff < -(1L << 32)) {
+                wrap += (1L << 33);
+            } else if (diff > (1L << 32)) {
+                wrap -= (1L << 33);
+            }
+            lastPts = pts;
+            long time = timeBase + (pts + wrap - ptsBase) / 90;
+            if (Math.abs(time - lastTime) > MAX_PTS_GAP) {
+                // Timeline restarts, so time goes on from where it was
+                timeBase = lastTime;
+                ptsBase = pts + wrap;
+                time = lastTime;
+            }
+            lastTime = Math.max(lastTime, time);
+            final long elapsed = time - entries.time[entries.size - 1];
+            final boolean cond1 = (randomAccess && elapsed >= JDvrFile.mMinIndexInterval);
+            final boolean cond2 = (elapsed >= 3 * JDvrFile.mMinIndexInterval);
+            if (cond1 || cond2) {
+                entries.add(time, offset, pts, keyOffset);
+            }
+        }
+    }
+
+    /**
+     * @param pathPrefix the path prefix of the recording to be repaired.
+     */
+    public JDvrRepair(String pathPrefix) {
+        mPathPrefix = pathPrefix;
+    }
+    public void setOnProgressListener(OnJDvrRepairProgressListener listener) {
+        mListener = listener;
+    }
+    /**
+     * Stop the repair as soon as possible. Files of the recording are left as they were, unless
+     * they are being regenerated at the moment.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+    public int getSegmentsDone() {
+        return mSegmentsDone.get();
+    }
+    public int getSegmentsTotal() {
+        return mSegmentsTotal;
+    }
+    /**
+     * Repair the recording. It blocks until all segments are processed.
+     *
+     * @return true if .stat/.list files have been regenerated, or false if it fails or is cancelled.
+     */
+    public boolean run() {
+        Log.d(TAG,"Repairing "+mPathPrefix);
+        final File dir = new File(mPathPrefix.substring(0,mPathPrefix.lastIndexOf('/')));
+        final String baseName = mPathPrefix.substring(mPathPrefix.lastIndexOf('/')+1);
+        final String[] names = dir.list();
+        if (names == null) {
+            Log.w(TAG,"Cannot repair recording, for "+dir.getAbsolutePath()+" doesn't exist.");
+            return false;
+        }
+        final Pattern pattern = Pattern.compile(Pattern.quote(baseName) + "-(\\d+)\\.ts");
+        final TreeSet<Integer> ids = new TreeSet<>();
+        for (String name : names) {
+            final Matcher matcher = pattern.matcher(name);
+            if (matcher.matches()) {
+                ids.add(Integer.parseInt(matcher.group(1)));
+            }
+        }
+        if (ids.isEmpty()) {
+            Log.w(TAG,"Cannot repair recording "+mPathPrefix+", for there is not any associated .ts files");
+            return false;
+        }
+        mSegmentsTotal = ids.size();
+        final ExecutorService executor = getExecutor();
+        final ArrayList<Future<JDvrSegmentRepair>> futures = new ArrayList<>();
+        for (final int id : ids) {
+            futures.add(executor.submit(() -> {
+                final JDvrSegmentRepair ret = mCancelled ? null : repairSegment(id);
+                final int done = mSegmentsDone.incrementAndGet();
+                final OnJDvrRepairProgressListener listener = mListener;
+                if (listener != null) {
+                    listener.onProgress(mPathPrefix, done, mSegmentsTotal);
+                }
+                return ret;
+            }));
+        }
+        final ArrayList<JDvrSegmentRepair> segments = new ArrayList<>();
+        for (Future<JDvrSegmentRepair> future : futures) {
+            try {
+                final JDvrSegmentRepair segment = future.get();
+                if (segment != null) {
+                    segments.add(segment);
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+                e.printStackTrace();
+                mCancelled = true;
+            }
+        }
+        if (mCancelled || segments.isEmpty()) {
+            Log.w(TAG,"Repair of "+mPathPrefix+" is "+(mCancelled ? "cancelled" : "fruitless"));
+            return false;
+        }
+        // Segments with rebuilt index follow on from the previous ones in time, and take streams
+        // from the nearest segment that still has them in its index
+        for (int i = 0; i < segments.size(); i++) {
+            final JDvrSegmentRepair segment = segments.get(i);
+            if (segment.startTime < 0) {
+                final JDvrSegmentRepair prev = (i > 0) ? segments.get(i-1) : null;
+                segment.startTime = (prev != null) ? prev.startTime + prev.duration : 0L;
+            }
+            if (segment.rebuiltIndex != null) {
+                final ArrayList<JDvrStreamInfo> streams = findStreams(segments, i);
+                if (streams != null) {
+                    segment.streams = streams;
+                }
+            }
+        }
+        try {
+            for (JDvrSegmentRepair segment : segments) {
+                if (segment.rebuiltIndex != null) {
+                    writeIndex(segment);
+                }
+            }
+            final long size = segments.stream().mapToLong(s -> s.size).sum();
+            final long duration = segments.stream().mapToLong(s -> s.duration).sum();
+            final String statContent = String.format(Locale.US,"{\"size\":%d, \"duration\":%d, "
+                    +"\"packets\":%d, \"first_segment_id\":%d, \"last_segment_id\":%d, "
+                    +"\"limit_size\":0, \"limit_duration\":0}",
+                    size,duration,size/188,segments.get(0).id,segments.get(segments.size()-1).id);
+            final StringBuilder listContent = new StringBuilder();
+            segments.forEach(s -> listContent.append(String.format(Locale.US, "%d,%d,%d\n", s.id, s.startTime, s.duration)));
+            JDvrFile.publishFile(mPathPrefix+".stat", statContent, true);
+            JDvrFile.publishFile(mPathPrefix+".list", listContent.toString(), true);
+        } catch (IOException e) {
+            Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+            return false;
+        }
+        // A header left behind may not agree with repaired .stat
+        JDvrHeader.delete(mPathPrefix);
+        Log.d(TAG,"Repaired "+mPathPrefix+" with "+segments.size()+" segments");
+        return true;
+    }
+
+    // Private functions
+    private static synchronized ExecutorService getExecutor() {
+        if (mRepairExecutor == null) {
+            mRepairExecutor = Executors.newFixedThreadPool(REPAIR_THREADS, r -> {
+                Thread thread = new Thread(r, "JDvrRepair task");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return mRepairExecutor;
+    }
+    private JDvrSegmentRepair repairSegment(int id) throws IOException {
+        final JDvrSegmentRepair ret = new JDvrSegmentRepair(id);
+        final JDvrSegment segment = new JDvrSegment(mPathPrefix, id, 1, 0);
+        final File tsFile = new File(segment.getTsPath());
+        final File indexFile = new File(segment.getIndexPath());
+        if (indexFile.length() > 0) {
+            final long indexedSize = segment.getIndexedSize();
+            // File length is no measure of data, as a preallocated ts file is longer than data in it
+            final long dataEnd = (indexedSize > 0) ? scanPackets(tsFile, indexedSize, null, null, null) : -1L;
+            if (mCancelled) {
+                segment.close();
+                return null;
+            }
+            if (dataEnd >= 0 && dataEnd - indexedSize <= REBUILD_THRESHOLD) {
+                ret.size = dataEnd;
+                ret.duration = segment.duration();
+                ret.startTime = segment.getStartTime();
+                ret.streams = new ArrayList<>(segment.getStreamsInfo());
+                segment.close();
+                return truncateTs(tsFile, ret);
+            }
+        }
+        segment.close();
+        Log.i(TAG,"Rebuilding index of "+tsFile.getPath()+" from ts data");
+        return truncateTs(tsFile, scanTs(tsFile, ret));
+    }
+    // Build index of a segment from its ts data
+    private JDvrSegmentRepair scanTs(File tsFile, JDvrSegmentRepair ret) throws IOException {
+        final JDvrIndexBuilder video = new JDvrIndexBuilder();
+        final JDvrIndexBuilder audio = new JDvrIndexBuilder();
+        final ArrayList<JDvrStreamInfo> streams = new ArrayList<>();
+        ret.size = scanPackets(tsFile, 0L, video, audio, streams);
+        if (mCancelled) {
+            return null;
+        }
+        final JDvrIndexBuilder builder = (video.entries.size > 0) ? video : audio;
+        final JDvrIndexEntries entries = builder.entries;
+        if (entries.size == 0) {
+            entries.add(0L, 0L, 0L, -1L);
+        } else if (builder.lastTime > entries.time[entries.size-1]) {
+            // Closing entry covering data up to the end, as recorder does on rollover
+            entries.add(builder.lastTime, ret.size, builder.lastPts, builder.keyOffset);
+        }
+        ret.duration = entries.time[entries.size-1];
+        ret.streams = streams;
+        ret.rebuiltIndex = entries;
+        return ret;
+    }
+    // Go through ts packets of a file from given offset on, passing each one to scanPacket() if
+    // builders are given. Returns the end of the last valid packet, which is where data ends.
+    private long scanPackets(File tsFile, long from, JDvrIndexBuilder video, JDvrIndexBuilder audio,
+            ArrayList<JDvrStreamInfo> streams) throws IOException {
+        final byte[] buf = new byte[SCAN_BUFFER_SIZE];
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(buf);
+        long dataEnd = from;
+        try (FileChannel channel = new RandomAccessFile(tsFile, "r").getChannel()) {
+            long base = from;   // file offset of buf[0]
+            int len = 0;
+            boolean inSync = true;
+            while (!mCancelled) {
+                byteBuffer.clear().position(len);
+                final int n = channel.read(byteBuffer, base + len);
+                if (n <= 0) {
+                    break;
+                }
+                len += n;
+                int i = 0;
+                while (i + TS_PACKET_SIZE <= len) {
+                    final boolean cond1 = (buf[i] == 0x47);
+                    if (!cond1 || !inSync) {
+                        // Sync is regained only on two packets in a row, so that a stray 0x47 in
+                        // garbage or preallocated space is not taken for a packet
+                        if (i + 2 * TS_PACKET_SIZE > len) {
+                            break;
+                        }
+                        inSync = cond1 && buf[i + TS_PACKET_SIZE] == 0x47;
+                        if (!inSync) {
+                            i++;
+                            continue;
+                        }
+                    }
+                    if (video != null) {
+                        scanPacket(buf, i, base + i, video, audio, streams);
+                    }
+                    dataEnd = base + i + TS_PACKET_SIZE;
+                    i += TS_PACKET_SIZE;
+                }
+                System.arraycopy(buf, i, buf, 0, len - i);
+                base += i;
+                len -= i;
+            }
+        }
+        return dataEnd;
+    }
+    // Cut off anything beyond data end of a segment, e.g. space left preallocated by an interrupted
+    // recording, so that playback does not read it as ts data
+    private static JDvrSegmentRepair truncateTs(File tsFile, JDvrSegmentRepair ret) throws IOException {
+        if (ret == null || tsFile.length() <= ret.size) {
+            return ret;
+        }
+        Log.i(TAG,"Truncating "+tsFile.getPath()+" from "+tsFile.length()+" to "+ret.size+" bytes of data");
+        try (RandomAccessFile file = new RandomAccessFile(tsFile, "rw")) {
+            file.setLength(ret.size);
+        }
+        return ret;
+    }
+    private static void scanPacket(byte[] buf, int i, long offset, JDvrIndexBuilder video,
+            JDvrIndexBuilder audio, ArrayList<JDvrStreamInfo> streams) {
+        final boolean pusi = (buf[i+1] & 0x40) != 0;
+        final int pid = ((buf[i+1] & 0x1f) << 8) | (buf[i+2] & 0xff);
+        final int afc = (buf[i+3] >> 4) & 0x3;
+        if (!pusi || pid == 0x1fff || (afc & 0x1) == 0) {
+            return;
+        }
+        int p = i + 4;
+        boolean randomAccess = false;
+        if ((afc & 0x2) != 0) {
+            final int afLength = buf[p] & 0xff;
+            randomAccess = (afLength > 0 && (buf[p+1] & 0x40) != 0);
+            p += 1 + afLength;
+        }
+        // PES header up to PTS
+        if (p + 14 > i + TS_PACKET_SIZE || buf[p] != 0 || buf[p+1] != 0 || buf[p+2] != 1) {
+            return;
+        }
+        final int streamId = buf[p+3] & 0xff;
+        int type;
+        JDvrIndexBuilder builder;
+        if (streamId >= 0xe0 && streamId <= 0xef) {
+            type = JDvrStreamType.STREAM_TYPE_VIDEO;
+            builder = video;
+        } else if ((streamId >= 0xc0 && streamId <= 0xdf) || streamId == 0xbd) {
+            type = JDvrStreamType.STREAM_TYPE_AUDIO;
+            builder = audio;
+        } else {
+            return;
+        }
+        if (streams.stream().noneMatch(s -> s.pid == pid)) {
+            final int format = (type == JDvrStreamType.STREAM_TYPE_VIDEO)
+                    ? JDvrVideoFormat.VIDEO_FORMAT_UNDEFINED : JDvrAudioFormat.AUDIO_FORMAT_UNDEFINED;
+            streams.add(new JDvrStreamInfo(pid, type, format));
+        }
+        if (builder.pid == -1) {
+            builder.pid = pid;
+        }
+        if (builder.pid != pid || (buf[p+7] & 0x80) == 0) {
+            return;
+        }
+        final long pts = ((long)(buf[p+9] & 0x0e) << 29) | ((buf[p+10] & 0xff) << 22)
+                | ((buf[p+11] & 0xfe) << 14) | ((buf[p+12] & 0xff) << 7) | ((buf[p+13] & 0xfe) >> 1);
+        builder.add(pts, offset, randomAccess);
+    }
+    // Streams of the nearest segment whose index is intact, as formats cannot be told from PES
+    private static ArrayList<JDvrStreamInfo> findStreams(ArrayList<JDvrSegmentRepair> segments, int i) {
+        for (int d = 1; d < segments.size(); d++) {
+            for (int j : new int[]{i - d, i + d}) {
+                if (j >= 0 && j < segments.size() && segments.get(j).rebuiltIndex == null
+                        && !segments.get(j).streams.isEmpty()) {
+                    return segments.get(j).streams;
+                }
+            }
+        }
+        return null;
+    }
+    // Write rebuilt index in JSON format, replacing the old one at once
+    private void writeIndex(JDvrSegmentRepair segment) throws IOException {
+        final JDvrIndexCodec codec = new JDvrIndexCodec();
+        final JDvrIndexEntries entries = segment.rebuiltIndex;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(entries.size * 64);
+        // Encoding may grow line buffer, so it is done before the buffer is taken
+        int length = codec.encodeTimeStreamIndex(0L, segment.startTime, segment.id, segment.streams);
+        out.write(codec.line(), 0, length);
+        for (int i = 0; i < entries.size; i++) {
+            length = codec.encodeTimeOffsetIndex(entries.time[i], entries.offset[i], entries.pts[i], entries.keyOffset[i]);
+            out.write(codec.line(), 0, length);
+        }
+        final String path = String.format(Locale.US, "%s-%04d.idx", mPathPrefix, segment.id);
+        final File tmpFile = new File(path + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmpFile)) {
+            out.writeTo(stream);
+            stream.getFD().sync();
+        }
+        if (!tmpFile.renameTo(new File(path))) {
+            tmpFile.delete();
+            throw new IOException("Fails to rename "+tmpFile.getPath()+" to "+path);
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package com.droidlogic.jdvrlib;
 
 import android.media.MediaFormat;
+import android.os.ParcelFileDescriptor;
 import android.os.SystemClock;
-import android.util.JsonReader;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import com.droidlogic.jdvrlib.JDvrCommon.*;
@@ -11,22 +13,18 @@ import com.droidlogic.jdvrlib.JDvrRecorder.JDvrStreamInfo;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.io.StringReader;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Locale;
-import java.util.Objects;
-import java.util.stream.IntStream;
 
 class JDvrSegment {
     final private String TAG = JDvrSegment.class.getSimpleName();
     final private String mPathPrefix;
-    final private int mMode;  // 0: for recording, 1: for playback, 2: for comparator
+    final private int mMode;  // 0: for recording, 1: for playback
     final private int mSegmentID;
     final private String mTsPath;
     private File mTsFile = null;
@@ -35,30 +33,108 @@ class JDvrSegment {
     private File mIndexFile = null;
     private RandomAccessFile mIndexStream = null;
     private long mLastReadOffset = 0L;  // for playback only
+    private FileChannel mTsChannel = null;              // for playback only
+    private ByteBuffer mReadByteBuffer = null;          // wrapper of the latest buffer given to read()
+    private MappedByteBuffer mTsMappedBuffer = null;    // for READ_MODE_MMAP only
+    private long mTsMappedStart = 0L;                   // offset of the window mapped in ts file
+    private long mTsMappedFileLength = 0L;              // length of the sealed ts file being mapped
+    // Window of ts file mapped at a time, a multiple of page size
+    final private static int MAP_WINDOW_SIZE = 188*4096*4;   // in bytes
+    private int mReadMode = JDvrReadMode.READ_MODE_POSITIONAL;
+    private byte[] mWarmData = null;    // first chunk of ts data read in advance, for playback only
+    private int mWarmLength = 0;
+    final private static int WARM_SIZE = 188*1024;  // in bytes
+    // Ts file is preallocated, so its physical size can be larger than data written so far
+    private boolean mPreallocate = false;
+    private long mPreallocatedSize = 0L;    // for recording only
+    private volatile boolean mPrecreated = false;   // precreate() has finished, for recording only
+    private long mReadableEnd = 0L;         // for playback only
     private static int mMaxSegmentSize = 100*1024*1024;
     private long mFirstWriteTimestamp = 0;  // for recording only
     private long mLastWriteTimestamp = 0;   // for recording only
     private long mDuration = 0L;    // in ms
     private long mStartTime = 0L;   // in ms
     private int mLoadLevel = 0;     // mainly for playback
-    final private static String regex1 = ".*\"offset\":.*";
-    final private static String regex2 = ".*nb_pids.*";
-    private int mProcessedLines = 0;
+    private long mIndexReadPosition = 0L;   // bytes of JSON index consumed so far, for playback only
+    private final JDvrIndexCodec mIndexCodec = new JDvrIndexCodec();    // for JSON index only
+    private byte[] mIndexReadBuffer = null;     // reused for reading JSON index
     private boolean mLastSegment = false;
-    private final ArrayList<JDvrSegmentTimeOffsetIndex> mTimeOffsetIndexArray = new ArrayList<>();
-    private final Comparator<JDvrSegmentTimeOffsetIndex> mIndexTimeCmp = Comparator.comparingLong(idx -> idx.time);
-    private final Comparator<JDvrSegmentTimeOffsetIndex> mIndexOffsetCmp = Comparator.comparingLong(idx -> idx.offset);
+    private boolean mSealed = false;        // size and duration no longer change once sealed
+    private long mSealedSize = 0L;
+    private long mSealedDuration = 0L;
+    private boolean mSyncOnWrite = true;    // for recording only
+    // Write-behind buffer for recording. TS data are accumulated in it and written out in chunks
+    // aligned to both TS packet size and page size.
+    final public static int WRITE_ALIGNMENT = 188 * 4096;
+    private byte[] mWriteBuffer = null;     // for recording only
+    private int mWriteBufferLength = 0;     // for recording only
+    private long mTimestampOfBufferedData = 0L;  // for recording only
+    private long mWrittenSize = 0L;         // bytes actually written to ts file, for recording only
+    private ParcelFileDescriptor mTsFileDescriptor = null;  // for recording in file descriptor mode only
+    private final Object mStreamLock = new Object();
+    // Binary index file layout (little-endian):
+    //   header:          magic(8), version(4), record size(4), records start(4),
+    //                    stream section size(4), stream section used bytes(4), reserved
+    //   stream section:  from end of header on, entries of time(8), time_offset_from_origin(8),
+    //                    id(4), nb_pids(4), followed by nb_pids of pid(4), type(4), format(4)
+    //   records:         from records start on, fixed-width records of time(8), offset(8), pts(8),
+    //                    key offset(8) since version 2, or reserved(8) in version 1
+    final private static byte[] BINARY_INDEX_MAGIC = {'J','D','V','R','I','D','X',0};
+    final private static int BINARY_INDEX_VERSION = 2;
+    final private static int BINARY_INDEX_HEADER_SIZE = 64;
+    final private static int BINARY_INDEX_RECORDS_START = 4096;
+    final private static int BINARY_INDEX_RECORD_SIZE = 32;
+    final private static int BINARY_INDEX_STREAMS_USED_POS = 24;
+    private int mIndexFormat = -1;          // JDvrIndexFormat, or -1 if it is not known yet
+    private int mIndexRecordSize = BINARY_INDEX_RECORD_SIZE;        // for binary index only
+    private int mIndexRecordsStart = BINARY_INDEX_RECORDS_START;    // for binary index only
+    private int mIndexRecordCount = 0;      // for binary index only
+    private int mIndexVersion = BINARY_INDEX_VERSION;   // for binary index only
+    private int mStreamSectionUsed = 0;     // for binary index only
+    private MappedByteBuffer mIndexBuffer = null;   // for playback of binary index only
+    private final ByteBuffer mIndexRecordBuffer = ByteBuffer.allocate(BINARY_INDEX_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final JDvrSegmentTimeOffsetIndexArray mTimeOffsetIndexArray = new JDvrSegmentTimeOffsetIndexArray(0);  // for JSON index only
     private final ArrayList<JDvrSegmentTimeStreamIndex> mTimeStreamIndexArray = new ArrayList<>();
+    // Lookups run without the segment lock, possibly while index is being loaded on another thread,
+    // so they go through the view published by the latest load rather than the fields above.
+    private volatile JDvrSegmentIndexView mIndexView = JDvrSegmentIndexView.EMPTY;
 
-    private static class JDvrSegmentTimeOffsetIndex {
-        long time;
-        long offset;
-        long pts;
+    // Time/offset/pts index entries kept in growable primitive arrays rather than one object per
+    // entry, so that they take little memory and can be searched without any allocation.
+    private static class JDvrSegmentTimeOffsetIndexArray {
+        long[] time;
+        long[] offset;
+        long[] pts;
+        long[] keyOffset;
+        int size = 0;
 
-        public JDvrSegmentTimeOffsetIndex(long time, long offset, long pts) {
-            this.time = time;
-            this.offset = offset;
-            this.pts = pts;
+        public JDvrSegmentTimeOffsetIndexArray(int capacity) {
+            time = new long[capacity];
+            offset = new long[capacity];
+            pts = new long[capacity];
+            keyOffset = new long[capacity];
+        }
+        void add(long time, long offset, long pts, long keyOffset) {
+            if (size == this.time.length) {
+                final int capacity = Math.max(size * 2, 16);
+                this.time = Arrays.copyOf(this.time, capacity);
+                this.offset = Arrays.copyOf(this.offset, capacity);
+                this.pts = Arrays.copyOf(this.pts, capacity);
+                this.keyOffset = Arrays.copyOf(this.keyOffset, capacity);
+            }
+            this.time[size] = time;
+            this.offset[size] = offset;
+            this.pts[size] = pts;
+            this.keyOffset[size] = keyOffset;
+            size++;
+        }
+        // Arrays are replaced rather than overwritten, as published views may still refer to them
+        void clear() {
+            time = new long[0];
+            offset = new long[0];
+            pts = new long[0];
+            keyOffset = new long[0];
+            size = 0;
         }
     }
     private static class JDvrSegmentTimeStreamIndex {
@@ -74,6 +150,53 @@ class JDvrSegment {
             this.pids = pids;
         }
     }
+    // Immutable snapshot of index entries and of the streams a segment starts with. Entries are either
+    // records of a mapped binary index, or the columnar arrays of a JSON index.
+    private static class JDvrSegmentIndexView {
+        final static JDvrSegmentIndexView EMPTY = new JDvrSegmentIndexView(null,0,0,false,null,0,null);
+        final MappedByteBuffer buffer;      // for binary index only
+        final int recordsStart;
+        final int recordSize;
+        final boolean hasKeyOffset;
+        final JDvrSegmentTimeOffsetIndexArray array;    // for JSON index only
+        final long[] time;
+        final long[] offset;
+        final long[] pts;
+        final long[] keyOffset;
+        final int count;
+        final ArrayList<JDvrStreamInfo> streams;   // or null if there is none yet
+
+        JDvrSegmentIndexView(MappedByteBuffer buffer, int recordsStart, int recordSize, boolean hasKeyOffset,
+                JDvrSegmentTimeOffsetIndexArray array, int count, ArrayList<JDvrStreamInfo> streams) {
+            this.buffer = buffer;
+            this.recordsStart = recordsStart;
+            this.recordSize = recordSize;
+            this.hasKeyOffset = hasKeyOffset;
+            this.array = array;
+            this.time = (array != null) ? array.time : null;
+            this.offset = (array != null) ? array.offset : null;
+            this.pts = (array != null) ? array.pts : null;
+            this.keyOffset = (array != null) ? array.keyOffset : null;
+            this.count = count;
+            this.streams = streams;
+        }
+        long timeAt(int i) {
+            return (buffer != null) ? buffer.getLong(recordsStart + i * recordSize) : time[i];
+        }
+        long offsetAt(int i) {
+            return (buffer != null) ? buffer.getLong(recordsStart + i * recordSize + 8) : offset[i];
+        }
+        long ptsAt(int i) {
+            return (buffer != null) ? buffer.getLong(recordsStart + i * recordSize + 16) : pts[i];
+        }
+        // Key frame offset of an entry, or -1 if it is not known
+        long keyOffsetAt(int i) {
+            if (buffer != null) {
+                return hasKeyOffset ? buffer.getLong(recordsStart + i * recordSize + 24) : -1L;
+            }
+            return keyOffset[i];
+        }
+    }
 
     @Override
     public String toString() {
@@ -83,16 +206,10 @@ class JDvrSegment {
     public JDvrSegment(String path_prefix, int segment_id, int mode, int level) {
         mSegmentID = segment_id;
         mMode = mode;
-        if (mMode == 2) {
-            mPathPrefix = "";
-            mTsPath = "";
-            mIndexPath = "";
-        } else {
-            mPathPrefix = String.format(Locale.US, "%s-%04d", path_prefix, mSegmentID);
-            mTsPath = String.format(Locale.US, "%s.ts", mPathPrefix);
-            mIndexPath = String.format(Locale.US, "%s.idx", mPathPrefix);
-            load(level);
-        }
+        mPathPrefix = String.format(Locale.US, "%s-%04d", path_prefix, mSegmentID);
+        mTsPath = String.format(Locale.US, "%s.ts", mPathPrefix);
+        mIndexPath = String.format(Locale.US, "%s.idx", mPathPrefix);
+        load(level);
     }
 
     public int id() {
@@ -102,10 +219,11 @@ class JDvrSegment {
         if (mLoadLevel < 3) {
             load(3);
         }
-        if (mTimeStreamIndexArray.size() == 0) {
+        final ArrayList<JDvrStreamInfo> streams = mIndexView.streams;
+        if (streams == null) {
             return 0x1fff;
         }
-        JDvrStreamInfo info = mTimeStreamIndexArray.get(0).pids.stream()
+        JDvrStreamInfo info = streams.stream()
                 .filter(i -> (i.type == JDvrStreamType.STREAM_TYPE_VIDEO))
                 .findFirst().orElse(null);
         return (info!=null) ? info.pid : 0x1fff;
@@ -114,10 +232,11 @@ class JDvrSegment {
         if (mLoadLevel < 3) {
             load(3);
         }
-        if (mTimeStreamIndexArray.size() == 0) {
+        final ArrayList<JDvrStreamInfo> streams = mIndexView.streams;
+        if (streams == null) {
             return null;
         }
-        JDvrStreamInfo info = mTimeStreamIndexArray.get(0).pids.stream()
+        JDvrStreamInfo info = streams.stream()
                 .filter(i -> (i.type == JDvrStreamType.STREAM_TYPE_VIDEO))
                 .findFirst().orElse(null);
         if (info == null) {
@@ -135,10 +254,11 @@ class JDvrSegment {
         if (mLoadLevel < 3) {
             load(3);
         }
-        if (mTimeStreamIndexArray.size() == 0) {
+        final ArrayList<JDvrStreamInfo> streams = mIndexView.streams;
+        if (streams == null) {
             return JDvrVideoFormat.VIDEO_FORMAT_UNDEFINED;
         }
-        JDvrStreamInfo info = mTimeStreamIndexArray.get(0).pids.stream()
+        JDvrStreamInfo info = streams.stream()
                 .filter(i -> (i.type == JDvrStreamType.STREAM_TYPE_VIDEO))
                 .findFirst().orElse(null);
         if (info == null) {
@@ -156,10 +276,11 @@ class JDvrSegment {
         if (mLoadLevel < 3) {
             load(3);
         }
-        if (mTimeStreamIndexArray.size() == 0) {
+        final ArrayList<JDvrStreamInfo> streams = mIndexView.streams;
+        if (streams == null) {
             return 0x1fff;
         }
-        JDvrStreamInfo info = mTimeStreamIndexArray.get(0).pids.stream()
+        JDvrStreamInfo info = streams.stream()
                 .filter(i -> (i.type == JDvrStreamType.STREAM_TYPE_AUDIO))
                 .findFirst().orElse(null);
         return (info!=null) ? info.pid : 0x1fff;
@@ -168,10 +289,11 @@ class JDvrSegment {
         if (mLoadLevel < 3) {
             load(3);
         }
-        if (mTimeStreamIndexArray.size() == 0) {
+        final ArrayList<JDvrStreamInfo> streams = mIndexView.streams;
+        if (streams == null) {
             return null;
         }
-        JDvrStreamInfo info = mTimeStreamIndexArray.get(0).pids.stream()
+        JDvrStreamInfo info = streams.stream()
                 .filter(i -> (i.type == JDvrStreamType.STREAM_TYPE_AUDIO))
                 .findFirst().orElse(null);
         if (info == null) {
@@ -183,10 +305,11 @@ class JDvrSegment {
         if (mLoadLevel < 3) {
             load(3);
         }
-        if (mTimeStreamIndexArray.size() == 0) {
+        final ArrayList<JDvrStreamInfo> streams = mIndexView.streams;
+        if (streams == null) {
             return JDvrAudioFormat.AUDIO_FORMAT_UNDEFINED;
         }
-        JDvrStreamInfo info = mTimeStreamIndexArray.get(0).pids.stream()
+        JDvrStreamInfo info = streams.stream()
                 .filter(i -> (i.type == JDvrStreamType.STREAM_TYPE_AUDIO))
                 .findFirst().orElse(null);
         if (info == null) {
@@ -206,13 +329,12 @@ class JDvrSegment {
         }
         return JDvrAudioFormat.AUDIO_FORMAT_UNDEFINED;
     }
-    private int load(int level) {
+    private synchronized int load(int level) {
         //final long ts1 = SystemClock.elapsedRealtime();
         if (level <= 0 || level > 4) {
             return 0;
         }
         try {
-            Path path = Paths.get(mIndexPath);
             if (level == 1 && mLoadLevel < 1) {
                 mLoadLevel = (mDuration > 0) ? 1 : 0;
             }
@@ -220,76 +342,93 @@ class JDvrSegment {
                 if (mTsFile == null) {
                     mTsFile = new File(mTsPath);
                 }
+                final String openMode = (mMode == 0) ? (mSyncOnWrite ? "rws" : "rw") : "r";
                 if (mTsStream == null) {
-                    mTsStream = new RandomAccessFile(mTsFile, ((mMode == 0) ? "rws" : "r"));
+                    mTsStream = new RandomAccessFile(mTsFile, openMode);
+                    mTsChannel = (mMode == 1) ? mTsStream.getChannel() : null;
                 }
                 if (mIndexFile == null) {
                     mIndexFile = new File(mIndexPath);
                 }
                 if (mIndexStream == null) {
-                    mIndexStream = new RandomAccessFile(mIndexFile, ((mMode == 0) ? "rws" : "r"));
+                    mIndexStream = new RandomAccessFile(mIndexFile, openMode);
                 }
                 if (!mTsFile.exists() || !mIndexFile.exists()) {
                     Log.w(TAG, "Trying to load segment " + mPathPrefix + ", but files don't exist");
                 } else {
                     mLoadLevel = 2;
+                    if (mMode == 0) {
+                        mWrittenSize = mTsStream.length();
+                        if (mIndexStream.length() > 0) {
+                            detectIndexFormat();
+                        } else if (mIndexFormat == JDvrIndexFormat.INDEX_FORMAT_BINARY) {
+                            writeBinaryIndexHeader();
+                        } else {
+                            mIndexFormat = JDvrIndexFormat.INDEX_FORMAT_JSON;
+                        }
+                        if (mPreallocate && mWrittenSize == mMaxSegmentSize) {
+                            // Left untrimmed by an interrupted recording. Data beyond the latest
+                            // index entry cannot be told from preallocated space, so it is dropped.
+                            mWrittenSize = lastIndexedOffset();
+                            mPreallocatedSize = mMaxSegmentSize;
+                        }
+                    }
                 }
             }
-            if (level == 3) {
-                final String[] lines = Files.readAllLines(path).toArray(new String[0]);
-                if (lines.length > 0) {
+            if (level >= 3 && !detectIndexFormat()) {
+                return mLoadLevel;
+            }
+            if (level == 3 && mIndexFormat == JDvrIndexFormat.INDEX_FORMAT_BINARY) {
+                if (loadBinaryIndex()) {
+                    mLoadLevel = 3;
+                }
+            } else if (level == 4 && mIndexFormat == JDvrIndexFormat.INDEX_FORMAT_BINARY) {
+                if (loadBinaryIndex()) {
+                    mLoadLevel = 4;
+                }
+            } else if (level == 3 && mIndexReadPosition == 0) {
+                final int length = readIndexBytes(0L);
+                if (length > 0) {
+                    final byte[] buf = mIndexReadBuffer;
                     boolean cond1 = false;
                     boolean cond2 = false;
-                    String indexInfo = IntStream.rangeClosed(1, lines.length)
-                            .mapToObj(i -> lines[lines.length - i])
-                            .filter(s -> s.matches(regex1)).findFirst().orElse(null);
-                    if (indexInfo != null) {
-                        JDvrSegmentTimeOffsetIndex idx1 = parseTimeOffsetIndex(indexInfo);
-                        if (idx1 != null) {
-                            mDuration = idx1.time;
-                            cond1 = true;
+                    // Duration comes from the last time/offset line, so lines are scanned backwards
+                    for (int end = (buf[length-1] == '\n') ? length-1 : length, start; end >= 0; end = start-1) {
+                        start = end;
+                        while (start > 0 && buf[start-1] != '\n') {
+                            start--;
+                        }
+                        if (JDvrIndexCodec.isTimeOffsetIndex(buf, start, end)) {
+                            if (mIndexCodec.parseTimeOffsetIndex(buf, start, end)) {
+                                mDuration = mIndexCodec.mTime;
+                                cond1 = true;
+                            }
+                            break;
                         }
                     }
-                    String streamInfo = Arrays.stream(lines).filter(s -> s.matches(regex2))
-                            .findFirst().orElse(null);
-                    if (streamInfo != null) {
-                        JDvrSegmentTimeStreamIndex idx2 = parseTimeStreamIndex(streamInfo);
-                        if (idx2 != null) {
-                            mTimeStreamIndexArray.clear();
-                            mTimeStreamIndexArray.add(idx2);
-                            mStartTime = idx2.timeOffsetFromOrigin - idx2.time;
-                            cond2 = true;
+                    for (int start = 0, end; start < length; start = end+1) {
+                        end = lineEnd(buf, start, length);
+                        if (JDvrIndexCodec.isTimeStreamIndex(buf, start, end)) {
+                            JDvrSegmentTimeStreamIndex idx2 = parseTimeStreamIndex(buf, start, end);
+                            if (idx2 != null) {
+                                mTimeStreamIndexArray.clear();
+                                mTimeStreamIndexArray.add(idx2);
+                                publishIndexView();
+                                mStartTime = idx2.timeOffsetFromOrigin - idx2.time;
+                                cond2 = true;
+                            }
+                            break;
                         }
                     }
                     if (cond1 && cond2) {
                         mLoadLevel = 3;
                     }
                 }
-            } else if (level == 4) {
-                final String[] lines = Files.readAllLines(path).toArray(new String[0]);
-                if (lines.length > 0) {
-                    Arrays.stream(lines).skip(mProcessedLines).filter(s -> s.matches(regex1))
-                            .forEach(line -> mTimeOffsetIndexArray.add(parseTimeOffsetIndex(line)));
-                    mTimeOffsetIndexArray.removeIf(Objects::isNull);
-                    if (mProcessedLines == 0) {
-                       mTimeStreamIndexArray.clear();
-                    }
-                    Arrays.stream(lines).skip(mProcessedLines).filter(s -> s.matches(regex2))
-                            .forEach(line -> mTimeStreamIndexArray.add(parseTimeStreamIndex(line)));
-                    mTimeStreamIndexArray.removeIf(Objects::isNull);
-                    JDvrSegmentTimeOffsetIndex idx1 = mTimeOffsetIndexArray.get(mTimeOffsetIndexArray.size() - 1);
-                    if (idx1 != null) {
-                        mDuration = idx1.time;
-                    }
-                    JDvrSegmentTimeStreamIndex idx2 = mTimeStreamIndexArray.get(mTimeStreamIndexArray.size() - 1);
-                    if (idx2 != null) {
-                        mStartTime = idx2.timeOffsetFromOrigin - idx2.time;
-                    }
-                    if (idx1 != null && idx2 != null) {
-                        mLoadLevel = 4;
-                    }
+            } else if (level >= 3) {
+                // Either full index is requested, or it has been loaded before and is only caught up
+                if (loadJsonIndexIncrementally()) {
+                    mLoadLevel = 4;
                 }
-                mProcessedLines = lines.length;
             }
         } catch (IOException e) {
             Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
@@ -306,8 +445,36 @@ class JDvrSegment {
             load(2);
         }
         try {
-            mTsStream.seek(mTsStream.length());
-            mTsStream.write(buffer, offset, size);
+            if (mWriteBuffer == null) {
+                writeThrough(buffer, offset, size);
+            } else {
+                final int capacity = mWriteBuffer.length;
+                int pos = offset;
+                int remaining = size;
+                while (remaining > 0) {
+                    if (mWriteBufferLength == 0 && mWrittenSize % capacity == 0 && remaining >= capacity) {
+                        // Large aligned chunk, no need to copy it to write buffer
+                        final int len = remaining - remaining % capacity;
+                        writeThrough(buffer, pos, len);
+                        pos += len;
+                        remaining -= len;
+                        continue;
+                    }
+                    // Only fill the buffer up to next aligned boundary of the ts file
+                    final int room = capacity - (int)((mWrittenSize + mWriteBufferLength) % capacity);
+                    final int len = Math.min(room, remaining);
+                    if (mWriteBufferLength == 0) {
+                        mTimestampOfBufferedData = SystemClock.elapsedRealtime();
+                    }
+                    System.arraycopy(buffer, pos, mWriteBuffer, mWriteBufferLength, len);
+                    mWriteBufferLength += len;
+                    pos += len;
+                    remaining -= len;
+                    if (len == room) {
+                        flushWriteBuffer();
+                    }
+                }
+            }
             if (mFirstWriteTimestamp == 0) {
                 mFirstWriteTimestamp = SystemClock.elapsedRealtime();
             }
@@ -319,69 +486,217 @@ class JDvrSegment {
         }
         return size;
     }
-    public int writeIndex(byte[] buffer, int size) {
+    /**
+     * Write data from a data source straight into ts file. The data source writes through a file
+     * descriptor duplicated from the ts file, which shares file position with it, so the position
+     * is moved to the logical end of data before writing.
+     *
+     * @return number of bytes written.
+     */
+    public int write(JDvrDataSource source, int size) {
         if (mMode == 1) { throw new RuntimeException("Cannot do this under Playback situation"); }
         if (mLoadLevel < 2) {
             load(2);
         }
-        JsonReader reader = new JsonReader(new StringReader(new String(buffer)));
-        long timeOffset = -1;
-        long timeOffsetFromOrigin = -1;
-        long offset = -1;
+        long n;
         try {
-            reader.beginObject();
-            while (reader.hasNext()) {
-                String name = reader.nextName();
-                switch (name) {
-                    case "time":
-                        timeOffset = reader.nextLong();
-                        break;
-                    case "time_offset_from_origin":
-                        timeOffsetFromOrigin = reader.nextLong();
-                        break;
-                    case "offset":
-                        offset = reader.nextLong();
-                        break;
-                    default:
-                        reader.skipValue();
-                        break;
-                }
+            flushWriteBuffer();
+            if (mTsFileDescriptor == null) {
+                mTsFileDescriptor = ParcelFileDescriptor.dup(mTsStream.getFD());
+            }
+            mTsStream.seek(mWrittenSize);
+            source.setFileDescriptor(mTsFileDescriptor);
+            n = source.write(size);
+            if (n > 0) {
+                mWrittenSize += n;
             }
-            reader.endObject();
+            if (mFirstWriteTimestamp == 0) {
+                mFirstWriteTimestamp = SystemClock.elapsedRealtime();
+            }
+            mLastWriteTimestamp = SystemClock.elapsedRealtime();
         } catch (IOException e) {
             Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
             e.printStackTrace();
+            return 0;
+        }
+        return (int)Math.max(n, 0);
+    }
+    /**
+     * Write out all data pending in write buffer.
+     *
+     * @return number of bytes written out, or -1 if there is any IO problem.
+     */
+    public int flush() {
+        if (mMode == 1) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        final int len = mWriteBufferLength;
+        try {
+            flushWriteBuffer();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+            e.printStackTrace();
+            return -1;
+        }
+        return len;
+    }
+    // Returns the time at which the earliest data pending in write buffer arrived, or 0 if
+    // there is no pending data.
+    public long getTimestampOfBufferedData() {
+        return (mWriteBufferLength > 0) ? mTimestampOfBufferedData : 0L;
+    }
+    // Set size of write buffer. It is rounded down to a multiple of WRITE_ALIGNMENT, and 0 means
+    // writing through without buffering.
+    public void setWriteBufferSize(int size) {
+        setWriteBufferSize(size, null);
+    }
+    // Same as above, but the given buffer, e.g. one taken from previous segment by takeWriteBuffer(),
+    // is used instead of a new one if it is of the right size.
+    public void setWriteBufferSize(int size, byte[] buffer) {
+        if (mMode == 1) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        if (mWriteBufferLength > 0) {
+            flush();
+        }
+        final int capacity = (size <= 0) ? 0 : Math.max(size - size % WRITE_ALIGNMENT, WRITE_ALIGNMENT);
+        if (capacity == 0) {
+            mWriteBuffer = null;
+        } else if (buffer != null && buffer.length == capacity) {
+            mWriteBuffer = buffer;
+        } else if (mWriteBuffer == null || mWriteBuffer.length != capacity) {
+            mWriteBuffer = new byte[capacity];
+        }
+    }
+    /**
+     * Write out data pending in write buffer and give the buffer up, as the segment is not going
+     * to be written any more.
+     *
+     * @return the write buffer, or null if there is none or its data cannot be written out.
+     */
+    public byte[] takeWriteBuffer() {
+        if (mMode == 1) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        if (mWriteBufferLength > 0 && flush() < 0) {
+            return null;
+        }
+        final byte[] buffer = mWriteBuffer;
+        mWriteBuffer = null;
+        return buffer;
+    }
+    // Set the format of index file. It takes effect only if it is called before the segment files
+    // are created for recording.
+    public void setIndexFormat(int format) {
+        if (mMode == 1) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        mIndexFormat = format;
+    }
+    public int writeTimeOffsetIndex(long time, long offset, long pts) {
+        return writeTimeOffsetIndex(time, offset, pts, -1L);
+    }
+    /**
+     * Write a time/offset index entry.
+     *
+     * @param keyOffset offset of the latest key frame at or before offset, or -1 if it is not known.
+     */
+    public int writeTimeOffsetIndex(long time, long offset, long pts, long keyOffset) {
+        if (mMode == 1) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        if (mLoadLevel < 2) {
+            load(2);
         }
-        if (timeOffset >= 0) {
-            mDuration = timeOffset;
-            if (offset >= 0) {
-                mTimeOffsetIndexArray.add(new JDvrSegmentTimeOffsetIndex(timeOffset,offset,0L));
+        if (time >= 0) {
+            mDuration = time;
+        }
+        try {
+            Log.d(TAG,"writing index: time:"+time+", offset:"+offset+", pts:"+pts+", key offset:"+keyOffset);
+            // Playback reads a preallocated ts file up to latest index entry, so data it covers
+            // must be in the file rather than in write buffer
+            if (mPreallocatedSize > 0) {
+                flushWriteBuffer();
+            }
+            if (mIndexFormat == JDvrIndexFormat.INDEX_FORMAT_BINARY) {
+                // An index going on from version 1 keeps its reserved field zeroed
+                final long reserved = (mIndexVersion >= 2) ? keyOffset : 0L;
+                mIndexRecordBuffer.clear();
+                mIndexRecordBuffer.putLong(time).putLong(offset).putLong(pts).putLong(reserved);
+                mIndexStream.seek(mIndexRecordsStart + (long)mIndexRecordCount * mIndexRecordSize);
+                mIndexStream.write(mIndexRecordBuffer.array(), 0, BINARY_INDEX_RECORD_SIZE);
+                mIndexRecordCount++;
+            } else {
+                writeIndexLine(mIndexCodec.encodeTimeOffsetIndex(time,offset,pts,keyOffset));
             }
+        } catch (IOException e) {
+            Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+            e.printStackTrace();
+        }
+        return 0;
+    }
+    public int writeTimeStreamIndex(long time, long timeOffsetFromOrigin, ArrayList<JDvrStreamInfo> streams) {
+        if (mMode == 1) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        if (mLoadLevel < 2) {
+            load(2);
+        }
+        if (time >= 0) {
+            mDuration = time;
         }
         if (timeOffsetFromOrigin > 0 && mStartTime == 0) {
-            mStartTime = timeOffsetFromOrigin - timeOffset;
+            mStartTime = timeOffsetFromOrigin - time;
         }
         try {
-            mIndexStream.seek(mIndexStream.length());
-            Log.d(TAG,"writing index: "+new String(buffer));
-            mIndexStream.write(buffer, 0, size);
+            Log.d(TAG,"writing index: time:"+time+", time_offset_from_origin:"+timeOffsetFromOrigin+", pids:"+streams);
+            if (mIndexFormat == JDvrIndexFormat.INDEX_FORMAT_BINARY) {
+                final int entrySize = 24 + 12 * streams.size();
+                if (BINARY_INDEX_HEADER_SIZE + mStreamSectionUsed + entrySize > mIndexRecordsStart) {
+                    // Callers roll over to a new segment before it comes to this
+                    Log.e(TAG,"No room for stream change of "+streams.size()+" streams in "+mIndexPath);
+                    return 0;
+                }
+                ByteBuffer entry = ByteBuffer.allocate(entrySize).order(ByteOrder.LITTLE_ENDIAN);
+                entry.putLong(time).putLong(timeOffsetFromOrigin).putInt(mSegmentID).putInt(streams.size());
+                streams.forEach(info -> entry.putInt(info.pid).putInt(info.type).putInt(info.format));
+                mIndexStream.seek(BINARY_INDEX_HEADER_SIZE + mStreamSectionUsed);
+                mIndexStream.write(entry.array(), 0, entrySize);
+                // Publish the entry only after it has been completely written
+                mStreamSectionUsed += entrySize;
+                ByteBuffer used = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, mStreamSectionUsed);
+                mIndexStream.seek(BINARY_INDEX_STREAMS_USED_POS);
+                mIndexStream.write(used.array(), 0, 4);
+            } else {
+                writeIndexLine(mIndexCodec.encodeTimeStreamIndex(time,timeOffsetFromOrigin,mSegmentID,streams));
+            }
         } catch (IOException e) {
             Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
             e.printStackTrace();
-            return 0;
         }
         return 0;
     }
-    public int read(byte[] buffer, int offset, int size) throws IOException {
+    public synchronized int read(byte[] buffer, int offset, int size) throws IOException {
         if (mMode == 0) { throw new RuntimeException("Cannot do this under Recording situation"); }
         if (mLoadLevel < 2) {
             load(2);
         }
+        if (mWarmData != null) {
+            if (mLastReadOffset < mWarmLength) {
+                final int len = (int)Math.min(size, mWarmLength - mLastReadOffset);
+                System.arraycopy(mWarmData,(int)mLastReadOffset,buffer,offset,len);
+                mLastReadOffset += len;
+                return len;
+            }
+            mWarmData = null;
+        }
         int ret;
         try {
-            mTsStream.seek(mLastReadOffset);
-            ret = mTsStream.read(buffer,offset,size);
-            mLastReadOffset = (ret == -1) ? mTsStream.length() : mLastReadOffset + ret;
+            // Data of a preallocated segment being recorded is readable up to its latest index entry
+            if (mPreallocate && !mSealed && mLastReadOffset + size > mReadableEnd) {
+                mReadableEnd = readableEnd();
+                if (mLastReadOffset >= mReadableEnd) {
+                    return (size == 0) ? 0 : -1;
+                }
+                size = (int)Math.min(size, mReadableEnd - mLastReadOffset);
+            }
+            // Only a segment no longer growing can be mapped once and for all
+            final boolean cond1 = (mReadMode == JDvrReadMode.READ_MODE_MMAP);
+            final boolean cond2 = (mSealed && !mLastSegment);
+            if (cond1 && cond2) {
+                ret = readMapped(buffer,offset,size);
+            } else {
+                ret = readPositional(buffer,offset,size);
+            }
+            mLastReadOffset = (ret == -1) ? mTsChannel.size() : mLastReadOffset + ret;
         } catch (IOException e) {
             Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
             e.printStackTrace();
@@ -389,7 +704,7 @@ class JDvrSegment {
         }
         return ret;
     }
-    public void seek(long pos) {
+    public synchronized void seek(long pos) {
         if (mMode == 0) { throw new RuntimeException("Cannot do this under Recording situation"); }
         if (pos == mLastReadOffset || pos < 0) {
             return;
@@ -398,28 +713,120 @@ class JDvrSegment {
             load(2);
         }
         try {
-            pos = Math.min(pos,mTsStream.length());
-            mTsStream.seek(pos);
-            mLastReadOffset = pos;
+            // Reads are positional, so there is no need to move file position here
+            mLastReadOffset = Math.min(pos,mTsChannel.size());
         } catch (IOException e) {
             Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
             e.printStackTrace();
         }
     }
-    public void close() {
+    public synchronized void close() {
+        mWarmData = null;
         if (mLoadLevel < 2) {
             return;
         }
-        try {
-            mTsStream.close();
-            mTsStream = null;
-            mIndexStream.close();
-            mIndexStream = null;
-        } catch (IOException | NullPointerException e) {
-            Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
-            e.printStackTrace();
+        if (mMode == 0 && mWriteBufferLength > 0) {
+            flush();
+        }
+        if (mMode == 0) {
+            trim();
+            mWriteBuffer = null;
+        }
+        synchronized (mStreamLock) {
+            try {
+                if (mTsFileDescriptor != null) {
+                    mTsFileDescriptor.close();
+                    mTsFileDescriptor = null;
+                }
+                mTsStream.close();
+                mTsStream = null;
+                mTsChannel = null;
+                mTsMappedBuffer = null;
+                mReadByteBuffer = null;
+                mIndexStream.close();
+                mIndexStream = null;
+                mIndexBuffer = null;
+            } catch (IOException | NullPointerException e) {
+                Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+    /**
+     * Force written ts/index data of the segment to storage.
+     * It may be called from a thread other than the writing one, and it does nothing if the
+     * segment has not been opened or has already been closed.
+     */
+    public void sync() {
+        if (mMode != 0) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        synchronized (mStreamLock) {
+            if (mTsStream == null || mIndexStream == null) {
+                return;
+            }
+            try {
+                mTsStream.getChannel().force(false);
+                mIndexStream.getChannel().force(false);
+            } catch (IOException e) {
+                Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+                e.printStackTrace();
+            }
         }
     }
+    // Decides whether files are opened in "rws" mode. It takes effect only if it is called
+    // before the segment files are opened for recording.
+    public void setSyncOnWrite(boolean isOrNot) {
+        mSyncOnWrite = isOrNot;
+    }
+    /**
+     * Create and open segment files for recording ahead of time. Files are created under temporary
+     * names, so playback does not see the segment until publish() is called. Settings that decide
+     * how files are opened need to be given before it is called.
+     * It may be called from a thread other than the writing one.
+     *
+     * @param preallocate whether ts file is also preallocated if preallocation is set. The writing
+     *                    thread must not wait for storage to be allocated, so it checks
+     *                    isPrecreated() instead of calling it.
+     */
+    public synchronized void precreate(boolean preallocate) {
+        if (mMode == 1) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        if (mLoadLevel >= 2) {
+            return;
+        }
+        mTsFile = new File(mTsPath + ".tmp");
+        mIndexFile = new File(mIndexPath + ".tmp");
+        // Leftovers of an interrupted recording are not reused
+        mTsFile.delete();
+        mIndexFile.delete();
+        load(2);
+        if (preallocate && mPreallocate && mLoadLevel >= 2 && mWrittenSize == 0) {
+            preallocate(mMaxSegmentSize);
+        }
+        mPrecreated = (mLoadLevel >= 2);
+    }
+    // Whether files have been created by precreate(). It never blocks.
+    public boolean isPrecreated() {
+        return mPrecreated;
+    }
+    /**
+     * Give files created by precreate() their real names. Opened files stay valid across renaming.
+     *
+     * @return true if segment files have their real names, or false if renaming fails.
+     */
+    public synchronized boolean publish() {
+        if (mTsFile == null || mTsFile.getPath().equals(mTsPath)) {
+            return true;
+        }
+        final File tsFile = new File(mTsPath);
+        final File indexFile = new File(mIndexPath);
+        // Index file goes last, because playback looks for new segments by their index files
+        final boolean ret = mTsFile.renameTo(tsFile) && mIndexFile.renameTo(indexFile);
+        if (!ret) {
+            Log.e(TAG,"Fails to rename segment files of " + mPathPrefix);
+        }
+        mTsFile = tsFile;
+        mIndexFile = indexFile;
+        return ret;
+    }
     public void delete() {
         Log.i(TAG,"Deleting segment: " + mTsPath);
         if (mLoadLevel < 2) {
@@ -428,11 +835,40 @@ class JDvrSegment {
         mTsFile.delete();
         mIndexFile.delete();
         mTimeOffsetIndexArray.clear();
+        mIndexBuffer = null;
+        mIndexView = JDvrSegmentIndexView.EMPTY;
+    }
+    /**
+     * Same as delete(), except that files are handed to JDvrReaper, which removes them in
+     * background. Segment files disappear from their directory right away.
+     */
+    public void reap() {
+        Log.i(TAG,"Reaping segment: " + mTsPath);
+        final JDvrReaper reaper = JDvrReaper.getInstance();
+        reaper.reap(new File(mTsPath));
+        reaper.reap(new File(mIndexPath));
+        mTimeOffsetIndexArray.clear();
+        mIndexBuffer = null;
+        mIndexView = JDvrSegmentIndexView.EMPTY;
     }
     public int size() {
+        if (mSealed) {
+            return (int)mSealedSize;
+        }
         if (mLoadLevel < 2) {
             load(2);
         }
+        if (mMode == 0) {
+            // Logical size including data still pending in write buffer
+            return (int)(mWrittenSize + mWriteBufferLength);
+        }
+        if (mPreallocate) {
+            try {
+                return (int)readableEnd();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+            }
+        }
         return (int)mTsFile.length();
     }
     static public void setMaxSegmentSize(int size) {
@@ -442,6 +878,9 @@ class JDvrSegment {
         return mMaxSegmentSize;
     }
     public long duration() {
+        if (mSealed) {
+            return mSealedDuration;
+        }
         if (mMode == 1 && mLastSegment) {
             load(3);
         }
@@ -452,9 +891,6 @@ class JDvrSegment {
         load(1);
     }
     public long getStartTime() {
-        if (mMode == 2) {
-            return mStartTime;
-        }
         if (mLoadLevel < 1) {
             load(1);
         }
@@ -488,206 +924,552 @@ class JDvrSegment {
     }
     public long getOffsetOf(final long time) {
         if (mMode == 0) { throw new RuntimeException("Cannot do this under Recording situation"); }
-        Integer i = findMatchingIndexByTimeOffset(time);
-        if (i == null) {
-            i = mTimeOffsetIndexArray.size()-1;
+        final JDvrSegmentIndexView view = findMatchingIndexByTimeOffset(time);
+        final int i = floorIndexOf(view, time, false);
+        return (i >= 0) ? view.offsetAt(i) : 0L;
+    }
+    // Offset of the latest key frame before the index entry of the given time, so that decoding
+    // can start right from it. It is the entry offset itself if key frames are not indexed.
+    public long getKeyFrameOffsetOf(final long time) {
+        if (mMode == 0) { throw new RuntimeException("Cannot do this under Recording situation"); }
+        final JDvrSegmentIndexView view = findMatchingIndexByTimeOffset(time);
+        final int i = floorIndexOf(view, time, false);
+        if (i < 0) {
+            return 0L;
         }
-        return mTimeOffsetIndexArray.get(i).offset;
+        final long offset = view.offsetAt(i);
+        final long keyOffset = view.keyOffsetAt(i);
+        return (keyOffset >= 0 && keyOffset <= offset) ? keyOffset : offset;
     }
     public long getPtsOf(final long time) {
         if (mMode == 0) { throw new RuntimeException("Cannot do this under Recording situation"); }
-        Integer i = findMatchingIndexByTimeOffset(time);
-        if (i == null) {
-            i = mTimeOffsetIndexArray.size()-1;
-        }
-        return mTimeOffsetIndexArray.get(i).pts;
+        final JDvrSegmentIndexView view = findMatchingIndexByTimeOffset(time);
+        final int i = floorIndexOf(view, time, false);
+        return (i >= 0) ? view.ptsAt(i) : 0L;
     }
-    public Long getTimeOffsetOf(final long offset) {
+    // Time offset of the latest index entry at or before given offset, or -1 if there is none
+    public long getTimeOffsetOf(final long offset) {
         if (mMode == 0) { throw new RuntimeException("Cannot do this under Recording situation"); }
-        Integer i = findMatchingIndexByOffset(offset);
-        return (i != null) ? mTimeOffsetIndexArray.get(i).time : null;
+        final JDvrSegmentIndexView view = findMatchingIndexByOffset(offset);
+        final int i = floorIndexOf(view, offset, true);
+        return (i >= 0) ? view.timeAt(i) : -1L;
     }
     public void setLastSegment(boolean isOrNot) {
         this.mLastSegment = isOrNot;
     }
-    public ArrayList<JDvrStreamInfo> findMatchingStreamsInfo(long time) {
+    /**
+     * Freeze size and duration of a segment which is no longer growing, so that later queries
+     * are answered from memory. File length is taken without opening the segment if it is not loaded yet.
+     */
+    public void seal() {
+        if (mSealed) {
+            return;
+        }
+        if (mLoadLevel >= 2) {
+            mSealedSize = size();
+        } else {
+            mSealedSize = new File(mTsPath).length();
+        }
+        mSealedDuration = duration();
+        mSealed = true;
+        if (mMode == 0 && mLoadLevel >= 2) {
+            trim();
+            // A sealed segment stays in memory as long as the recording does, so it must not hold
+            // a write buffer any longer
+            takeWriteBuffer();
+        }
+    }
+    /**
+     * Undo seal() for a segment which becomes the last one again, e.g. after the segment following
+     * it is removed, so that its size and duration are no longer taken as frozen.
+     */
+    public void unseal() {
+        mSealed = false;
+    }
+    public boolean isSealed() {
+        return mSealed;
+    }
+    // For recording, it decides whether ts file is preallocated to max segment size when it is
+    // created, and it needs to be called before the segment files are opened. For playback, it
+    // tells that ts file of the segment being recorded is longer than data written.
+    public void setPreallocation(boolean isOrNot) {
+        mPreallocate = isOrNot;
+    }
+    // Set how ts data is read for playback, see JDvrReadMode.
+    public void setReadMode(int mode) {
         if (mMode == 0) { throw new RuntimeException("Cannot do this under Recording situation"); }
-        if (mLoadLevel < 4) {
-            load(4);
+        mReadMode = mode;
+        if (mode != JDvrReadMode.READ_MODE_MMAP) {
+            mTsMappedBuffer = null;
         }
-        return mTimeStreamIndexArray.get(0).pids;
     }
-    // Private functions
-    private JDvrSegmentTimeOffsetIndex parseTimeOffsetIndex(final String line) {
+    /**
+     * Get ready for playback ahead of time: open segment files, load index and read the first chunk
+     * of ts data, so that reading can enter the segment without touching storage.
+     * It may be called from a thread other than the reading one.
+     */
+    public synchronized void warm() {
+        if (mMode == 0) { throw new RuntimeException("Cannot do this under Recording situation"); }
+        if (mLoadLevel < 3) {
+            load(3);
+        }
+        if (mLoadLevel < 2 || mWarmData != null) {
+            return;
+        }
         try {
-            JsonReader reader = new JsonReader(new StringReader(line));
-            long timeOffset = -1;
-            long offset = -1;
-            long pts = 0;
-            reader.beginObject();
-            while (reader.hasNext()) {
-                String name = reader.nextName();
-                switch (name) {
-                    case "time":
-                        timeOffset = reader.nextLong();
-                        break;
-                    case "offset":
-                        offset = reader.nextLong();
-                        break;
-                    case "pts":
-                        pts = reader.nextLong();
-                        break;
-                    default:
-                        reader.skipValue();
-                        break;
-                }
+            final byte[] data = new byte[WARM_SIZE];
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (mPreallocate && !mSealed) {
+                buffer.limit((int)Math.min(WARM_SIZE, readableEnd()));
             }
-            reader.endObject();
-            if (timeOffset >= 0 && offset >= 0) {
-                return new JDvrSegmentTimeOffsetIndex(timeOffset,offset,pts);
+            final int len = mTsChannel.read(buffer, 0);
+            if (len > 0) {
+                mWarmData = data;
+                mWarmLength = len;
             }
         } catch (IOException e) {
             Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
             e.printStackTrace();
         }
-        return null;
     }
-    private JDvrSegmentTimeStreamIndex parseTimeStreamIndex(final String line) {
-        JsonReader reader = new JsonReader(new StringReader(line));
-        long timeOffset = -1;
-        long timeOffsetFromOrigin = -1;
-        int id = -1;
-        ArrayList<JDvrStreamInfo> pids = new ArrayList<>();
+    // Drop memory mapping of ts data once playback has left the segment. The segment is mapped
+    // again if it is read later.
+    public synchronized void unmap() {
+        mTsMappedBuffer = null;
+    }
+    // Offset of ts data to be read next, for playback only
+    public long getReadOffset() {
+        return mLastReadOffset;
+    }
+    public ArrayList<JDvrStreamInfo> findMatchingStreamsInfo(long time) {
+        if (mMode == 0) { throw new RuntimeException("Cannot do this under Recording situation"); }
+        if (mLoadLevel < 4) {
+            load(4);
+        }
+        return mIndexView.streams;
+    }
+    // Streams the segment starts with. It needs only load(3), so it is cheaper than findMatchingStreamsInfo.
+    public ArrayList<JDvrStreamInfo> getStreamsInfo() {
+        if (mMode == 0) { throw new RuntimeException("Cannot do this under Recording situation"); }
+        if (mLoadLevel < 3) {
+            load(3);
+        }
+        final ArrayList<JDvrStreamInfo> streams = mIndexView.streams;
+        return (streams != null) ? streams : new ArrayList<>();
+    }
+    // Offset of the latest index entry, i.e. the amount of ts data covered by index
+    public long getIndexedSize() {
+        if (mMode == 0) { throw new RuntimeException("Cannot do this under Recording situation"); }
+        if (mLoadLevel < 4) {
+            load(4);
+        }
+        final JDvrSegmentIndexView view = mIndexView;
+        return (view.count > 0) ? view.offsetAt(view.count - 1) : 0L;
+    }
+    // Whether a stream change of given number of streams can still be written to index. Binary index
+    // keeps stream changes in a section of fixed size, so a segment may run out of room for them and
+    // the change has to go to a new segment instead.
+    public boolean hasRoomForTimeStreamIndex(int numberOfStreams) {
+        if (mMode == 1) { throw new RuntimeException("Cannot do this under Playback situation"); }
+        if (mLoadLevel < 2) {
+            load(2);
+        }
+        if (mIndexFormat != JDvrIndexFormat.INDEX_FORMAT_BINARY) {
+            return true;
+        }
+        final int entrySize = 24 + 12 * numberOfStreams;
+        return (BINARY_INDEX_HEADER_SIZE + mStreamSectionUsed + entrySize <= mIndexRecordsStart);
+    }
+    // Private functions
+    // Read ts data at mLastReadOffset with a single pread, straight into caller's buffer
+    private int readPositional(byte[] buffer, int offset, int size) throws IOException {
+        if (mReadByteBuffer == null || mReadByteBuffer.array() != buffer) {
+            mReadByteBuffer = ByteBuffer.wrap(buffer);
+        }
+        mReadByteBuffer.clear();
+        mReadByteBuffer.limit(offset+size);
+        mReadByteBuffer.position(offset);
+        return mTsChannel.read(mReadByteBuffer, mLastReadOffset);
+    }
+    // Read ts data at mLastReadOffset through a memory mapping. Only a window of the file around
+    // read position is mapped, and it is moved along with reading, so the address space taken by
+    // a segment is bounded however large its file is.
+    private int readMapped(byte[] buffer, int offset, int size) throws IOException {
+        if (mTsMappedBuffer == null) {
+            mTsMappedFileLength = mTsChannel.size();
+        }
+        final long length = mTsMappedFileLength;
+        if (mLastReadOffset >= length) {
+            return (size == 0) ? 0 : -1;
+        }
+        final long end = Math.min(mLastReadOffset + size, length);
+        final boolean cond1 = (mTsMappedBuffer == null);
+        final boolean cond2 = (!cond1 && mLastReadOffset < mTsMappedStart);
+        final boolean cond3 = (!cond1 && end > mTsMappedStart + mTsMappedBuffer.capacity());
+        if (cond1 || cond2 || cond3) {
+            // The window taken before is left to GC to unmap
+            mTsMappedStart = mLastReadOffset - mLastReadOffset % 4096;
+            final long windowSize = Math.max(MAP_WINDOW_SIZE, end - mTsMappedStart);
+            mTsMappedBuffer = mTsChannel.map(FileChannel.MapMode.READ_ONLY, mTsMappedStart,
+                    Math.min(windowSize, length - mTsMappedStart));
+        }
+        final int len = (int)(end - mLastReadOffset);
+        mTsMappedBuffer.position((int)(mLastReadOffset - mTsMappedStart));
+        mTsMappedBuffer.get(buffer,offset,len);
+        return len;
+    }
+    private void writeThrough(byte[] buffer, int offset, int size) throws IOException {
+        mTsStream.seek(mWrittenSize);
+        mTsStream.write(buffer, offset, size);
+        mWrittenSize += size;
+    }
+    // Reserve storage for ts file in one go, so that a segment is laid out contiguously
+    private void preallocate(long size) {
         try {
-            reader.beginObject();
-            while (reader.hasNext()) {
-                String name = reader.nextName();
-                switch (name) {
-                    case "time":
-                        timeOffset = reader.nextLong();
-                        break;
-                    case "time_offset_from_origin":
-                        timeOffsetFromOrigin = reader.nextLong();
-                        break;
-                    case "id":
-                        id = reader.nextInt();
-                        break;
-                    case "pids":
-                        reader.beginArray();
-                        while (reader.hasNext()) {
-                            int pid = -1;
-                            int type = -1;
-                            int format = -1;
-                            reader.beginObject();
-                            while (reader.hasNext()) {
-                                String name2 = reader.nextName();
-                                switch (name2) {
-                                    case "pid":
-                                        pid = reader.nextInt();
-                                        break;
-                                    case "type":
-                                        type = reader.nextInt();
-                                        break;
-                                    case "format":
-                                        format = reader.nextInt();
-                                        break;
-                                    default:
-                                        reader.skipValue();
-                                        break;
-                                }
-                            }
-                            reader.endObject();
-                            if (pid != -1 && type != -1 && format != -1) {
-                                pids.add(new JDvrStreamInfo(pid, type, format));
-                            }
-                        }
-                        reader.endArray();
-                        break;
-                    default:
-                        reader.skipValue();
-                        break;
+            Os.posix_fallocate(mTsStream.getFD(), 0, size);
+        } catch (ErrnoException | IOException e) {
+            // Filesystems without fallocate support, e.g. FAT, would have to write zeros over the
+            // whole file instead, which costs more than preallocation saves. Such a segment simply
+            // grows as data is written.
+            Log.w(TAG, "Skip preallocation of "+mTsPath+" as posix_fallocate fails: " + e);
+            return;
+        }
+        mPreallocatedSize = size;
+    }
+    // Cut off preallocated space beyond data written
+    private void trim() {
+        if (mPreallocatedSize == 0) {
+            return;
+        }
+        try {
+            flushWriteBuffer();
+            mTsStream.setLength(mWrittenSize);
+            mPreallocatedSize = 0;
+        } catch (IOException | NullPointerException e) {
+            Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+        }
+    }
+    // Ts offset of the latest index entry, read from index file for recording
+    private long lastIndexedOffset() throws IOException {
+        if (mIndexFormat == JDvrIndexFormat.INDEX_FORMAT_BINARY) {
+            if (mIndexRecordCount == 0) {
+                return 0L;
+            }
+            ByteBuffer record = ByteBuffer.allocate(BINARY_INDEX_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readIndexFully(record, mIndexRecordsStart + (long)(mIndexRecordCount - 1) * mIndexRecordSize);
+            return record.getLong(8);
+        }
+        final int length = readIndexBytes(0L);
+        long ret = 0L;
+        for (int start = 0, end; start < length; start = end+1) {
+            end = lineEnd(mIndexReadBuffer, start, length);
+            final boolean cond1 = JDvrIndexCodec.isTimeOffsetIndex(mIndexReadBuffer, start, end);
+            if (cond1 && mIndexCodec.parseTimeOffsetIndex(mIndexReadBuffer, start, end)) {
+                ret = mIndexCodec.mOffset;
+            }
+        }
+        return ret;
+    }
+    // End of ts data that can be read for playback. A preallocated ts file being recorded is longer
+    // than data written, so only data covered by index is readable.
+    private long readableEnd() throws IOException {
+        final long length = mTsChannel.size();
+        if (!mPreallocate || mSealed) {
+            return length;
+        }
+        load(3);
+        final JDvrSegmentIndexView view = mIndexView;
+        return (view.count > 0) ? Math.min(length, view.offsetAt(view.count - 1)) : 0L;
+    }
+    private void flushWriteBuffer() throws IOException {
+        if (mWriteBufferLength == 0) {
+            return;
+        }
+        writeThrough(mWriteBuffer, 0, mWriteBufferLength);
+        mWriteBufferLength = 0;
+        mTimestampOfBufferedData = 0L;
+    }
+    // Append the line just emitted by mIndexCodec to index file
+    private void writeIndexLine(int length) throws IOException {
+        mIndexStream.seek(mIndexStream.length());
+        mIndexStream.write(mIndexCodec.line(), 0, length);
+    }
+    // Read index file from given position on into mIndexReadBuffer. Returns the number of bytes read.
+    private int readIndexBytes(long position) throws IOException {
+        if (mIndexStream == null) {
+            return 0;
+        }
+        final int length = (int)Math.max(mIndexStream.length() - position, 0L);
+        if (mIndexReadBuffer == null || mIndexReadBuffer.length < length) {
+            mIndexReadBuffer = new byte[Math.max(length, 4096)];
+        }
+        mIndexStream.seek(position);
+        mIndexStream.readFully(mIndexReadBuffer, 0, length);
+        return length;
+    }
+    // End of the line starting at given position, i.e. position of its '\n' or the end of data
+    private static int lineEnd(byte[] buf, int start, int length) {
+        int i = start;
+        while (i < length && buf[i] != '\n') {
+            i++;
+        }
+        return i;
+    }
+    // Tell the format of index file by its leading bytes. Returns false if it cannot be told yet.
+    private boolean detectIndexFormat() throws IOException {
+        if (mIndexFormat != -1) {
+            return true;
+        }
+        if (mIndexStream == null || mIndexStream.length() < BINARY_INDEX_HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(BINARY_INDEX_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readIndexFully(header, 0);
+        final byte[] magic = new byte[BINARY_INDEX_MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, BINARY_INDEX_MAGIC)) {
+            mIndexFormat = JDvrIndexFormat.INDEX_FORMAT_JSON;
+            return true;
+        }
+        final int version = header.getInt(8);
+        if (version > BINARY_INDEX_VERSION) {
+            Log.w(TAG,"Index "+mIndexPath+" has newer version "+version+", only known fields are used");
+        }
+        mIndexVersion = version;
+        mIndexRecordSize = header.getInt(12);
+        mIndexRecordsStart = header.getInt(16);
+        if (mMode == 0) {
+            // Going on writing an existing index. For playback these are taken by loadBinaryIndex().
+            mStreamSectionUsed = header.getInt(BINARY_INDEX_STREAMS_USED_POS);
+            if (mIndexStream.length() > mIndexRecordsStart) {
+                mIndexRecordCount = (int)((mIndexStream.length() - mIndexRecordsStart) / mIndexRecordSize);
+            }
+        }
+        mIndexFormat = JDvrIndexFormat.INDEX_FORMAT_BINARY;
+        return true;
+    }
+    private void writeBinaryIndexHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BINARY_INDEX_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(BINARY_INDEX_MAGIC)
+                .putInt(BINARY_INDEX_VERSION)
+                .putInt(BINARY_INDEX_RECORD_SIZE)
+                .putInt(BINARY_INDEX_RECORDS_START)
+                .putInt(BINARY_INDEX_RECORDS_START - BINARY_INDEX_HEADER_SIZE)
+                .putInt(0);
+        mIndexStream.seek(0);
+        mIndexStream.write(header.array(), 0, BINARY_INDEX_HEADER_SIZE);
+        mIndexStream.setLength(BINARY_INDEX_RECORDS_START);
+        mIndexVersion = BINARY_INDEX_VERSION;
+        mIndexRecordSize = BINARY_INDEX_RECORD_SIZE;
+        mIndexRecordsStart = BINARY_INDEX_RECORDS_START;
+        mIndexRecordCount = 0;
+        mStreamSectionUsed = 0;
+    }
+    private void readIndexFully(ByteBuffer buffer, long position) throws IOException {
+        final FileChannel channel = mIndexStream.getChannel();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of "+mIndexPath);
+            }
+        }
+        buffer.flip();
+    }
+    // Load binary index for playback. Records are not parsed, but looked up in place through a
+    // memory mapping which is renewed only if the file has grown. Only complete records and
+    // published stream entries are taken into account.
+    private boolean loadBinaryIndex() throws IOException {
+        final long length = mIndexStream.length();
+        if (length < mIndexRecordsStart) {
+            return false;
+        }
+        if (mIndexBuffer == null || mIndexBuffer.capacity() < length) {
+            mIndexBuffer = mIndexStream.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            mIndexBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mIndexRecordCount = (int)((mIndexBuffer.capacity() - mIndexRecordsStart) / mIndexRecordSize);
+        final int used = mIndexBuffer.getInt(BINARY_INDEX_STREAMS_USED_POS);
+        if (used > mStreamSectionUsed) {
+            if (mStreamSectionUsed == 0) {
+                mTimeStreamIndexArray.clear();
+            }
+            int pos = BINARY_INDEX_HEADER_SIZE + mStreamSectionUsed;
+            while (pos < BINARY_INDEX_HEADER_SIZE + used) {
+                final long time = mIndexBuffer.getLong(pos);
+                final long timeOffsetFromOrigin = mIndexBuffer.getLong(pos+8);
+                final int id = mIndexBuffer.getInt(pos+16);
+                final int nbPids = mIndexBuffer.getInt(pos+20);
+                pos += 24;
+                ArrayList<JDvrStreamInfo> pids = new ArrayList<>();
+                for (int i=0; i<nbPids; i++, pos+=12) {
+                    pids.add(new JDvrStreamInfo(mIndexBuffer.getInt(pos),mIndexBuffer.getInt(pos+4),mIndexBuffer.getInt(pos+8)));
+                }
+                mTimeStreamIndexArray.add(new JDvrSegmentTimeStreamIndex(time,timeOffsetFromOrigin,id,pids));
+            }
+            mStreamSectionUsed = used;
+        }
+        publishIndexView();
+        final boolean cond1 = (mIndexRecordCount > 0);
+        final boolean cond2 = (mTimeStreamIndexArray.size() > 0);
+        if (cond1) {
+            mDuration = mIndexView.timeAt(mIndexRecordCount - 1);
+        }
+        if (cond2) {
+            final JDvrSegmentTimeStreamIndex idx2 = mTimeStreamIndexArray.get(0);
+            mStartTime = idx2.timeOffsetFromOrigin - idx2.time;
+        }
+        return cond1 && cond2;
+    }
+    // Parse JSON index lines appended since last time. Only complete lines are consumed, so a line
+    // being written by recorder is picked up next time. Cost is proportional to new data only.
+    private boolean loadJsonIndexIncrementally() throws IOException {
+        if (mIndexStream == null) {
+            return false;
+        }
+        final long length = mIndexStream.length();
+        if (length < mIndexReadPosition) {
+            Log.w(TAG,"Index "+mIndexPath+" shrank, reloading it");
+            mIndexReadPosition = 0L;
+            mTimeOffsetIndexArray.clear();
+        }
+        if (mIndexReadPosition == 0L) {
+            mTimeStreamIndexArray.clear();
+        }
+        if (length > mIndexReadPosition) {
+            final int size = readIndexBytes(mIndexReadPosition);
+            final byte[] buf = mIndexReadBuffer;
+            int start = 0;
+            for (int i = 0; i < size; i++) {
+                if (buf[i] != '\n') {
+                    continue;
+                }
+                if (JDvrIndexCodec.isTimeOffsetIndex(buf, start, i)) {
+                    if (mIndexCodec.parseTimeOffsetIndex(buf, start, i)) {
+                        mTimeOffsetIndexArray.add(mIndexCodec.mTime, mIndexCodec.mOffset, mIndexCodec.mPts, mIndexCodec.mKeyOffset);
+                    }
+                } else if (JDvrIndexCodec.isTimeStreamIndex(buf, start, i)) {
+                    JDvrSegmentTimeStreamIndex idx2 = parseTimeStreamIndex(buf, start, i);
+                    if (idx2 != null) {
+                        mTimeStreamIndexArray.add(idx2);
+                    }
                 }
+                start = i + 1;
             }
-            reader.endObject();
-            if (timeOffset >= 0 && timeOffsetFromOrigin >= 0 && pids.size() > 0) {
-                return new JDvrSegmentTimeStreamIndex(timeOffset,timeOffsetFromOrigin,id,pids);
+            mIndexReadPosition += start;
+        }
+        publishIndexView();
+        final boolean cond1 = (mTimeOffsetIndexArray.size > 0);
+        final boolean cond2 = (mTimeStreamIndexArray.size() > 0);
+        if (cond1) {
+            mDuration = mTimeOffsetIndexArray.time[mTimeOffsetIndexArray.size - 1];
+        }
+        if (cond2) {
+            final JDvrSegmentTimeStreamIndex idx2 = mTimeStreamIndexArray.get(mTimeStreamIndexArray.size() - 1);
+            mStartTime = idx2.timeOffsetFromOrigin - idx2.time;
+        }
+        return cond1 && cond2;
+    }
+    // Publish index loaded so far to lookups. A new view is made only if anything has changed.
+    private void publishIndexView() {
+        final JDvrSegmentIndexView view = mIndexView;
+        final ArrayList<JDvrStreamInfo> streams = (mTimeStreamIndexArray.size() > 0) ? mTimeStreamIndexArray.get(0).pids : null;
+        if (mIndexFormat == JDvrIndexFormat.INDEX_FORMAT_BINARY) {
+            final boolean cond1 = (view.buffer == mIndexBuffer);
+            final boolean cond2 = (view.count == mIndexRecordCount);
+            if (!cond1 || !cond2 || view.streams != streams) {
+                mIndexView = new JDvrSegmentIndexView(mIndexBuffer, mIndexRecordsStart, mIndexRecordSize,
+                        mIndexVersion >= 2, null, mIndexRecordCount, streams);
+            }
+        } else {
+            final boolean cond1 = (view.array == mTimeOffsetIndexArray && view.time == mTimeOffsetIndexArray.time);
+            final boolean cond2 = (view.count == mTimeOffsetIndexArray.size);
+            if (!cond1 || !cond2 || view.streams != streams) {
+                mIndexView = new JDvrSegmentIndexView(null, 0, 0, false,
+                        mTimeOffsetIndexArray, mTimeOffsetIndexArray.size, streams);
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
-            e.printStackTrace();
         }
-        return null;
     }
-    Long findPtsFrom(long pts, long timeOffsetFrom) {
+    // Binary search for the last index entry whose time (or offset) is not greater than the given
+    // one. The first entry is returned if all entries are greater, and -1 if there is no entry at all.
+    private static int floorIndexOf(JDvrSegmentIndexView view, long key, boolean byOffset) {
+        int lo = 0;
+        int hi = view.count - 1;
+        int ret = (hi >= 0) ? 0 : -1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final long value = byOffset ? view.offsetAt(mid) : view.timeAt(mid);
+            if (value <= key) {
+                ret = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return ret;
+    }
+    private JDvrSegmentTimeStreamIndex parseTimeStreamIndex(byte[] buf, int start, int end) {
+        ArrayList<JDvrStreamInfo> pids = new ArrayList<>();
+        if (!mIndexCodec.parseTimeStreamIndex(buf, start, end, pids)) {
+            return null;
+        }
+        return new JDvrSegmentTimeStreamIndex(mIndexCodec.mTime,mIndexCodec.mTimeOffsetFromOrigin,mIndexCodec.mId,pids);
+    }
+    // Time offset of the index entry matching given pts, or -1 if there is none
+    long findPtsFrom(long pts, long timeOffsetFrom) {
         if (mMode == 0) { throw new RuntimeException("Cannot do this under Recording situation"); }
         load(4);
-        final int len = mTimeOffsetIndexArray.size();
-        final Integer i = findMatchingIndexByTimeOffset(timeOffsetFrom);
-        if (i == null) {
-            return null;
+        final JDvrSegmentIndexView view = findMatchingIndexByTimeOffset(timeOffsetFrom);
+        final int len = view.count;
+        final int i = floorIndexOf(view, timeOffsetFrom, false);
+        if (i < 0) {
+            return -1L;
         }
-        for (int j=i; j<mTimeOffsetIndexArray.size()-1; j++) {
-            final JDvrSegmentTimeOffsetIndex idx0 = mTimeOffsetIndexArray.get(j);
-            final JDvrSegmentTimeOffsetIndex idx1 = mTimeOffsetIndexArray.get(j+1);
-            if ( j >= 0 && idx0.pts <= pts && pts < idx1.pts) { // handle common condition
-                return idx0.time;
-            } else if (j == 0 && pts < idx0.pts && idx0.pts - pts <= JDvrFile.mPtsMargin) { // handle boundary condition 1
-                return idx0.time;
-            } else if (j+2 == len && pts > idx1.pts && pts - idx1.pts <= JDvrFile.mPtsMargin) { // handle boundary condition 2
-                return idx1.time;
-            } else if (idx0.pts > idx1.pts) { // handle loop condition
-                if (idx1.pts > pts && idx1.pts - pts <= JDvrFile.mPtsMargin) {
-                    return idx1.time;
-                } else if (pts > idx0.pts && pts - idx0.pts <= JDvrFile.mPtsMargin) {
-                    return idx1.time;
+        for (int j=i; j<len-1; j++) {
+            final long pts0 = view.ptsAt(j);
+            final long pts1 = view.ptsAt(j+1);
+            if ( j >= 0 && pts0 <= pts && pts < pts1) { // handle common condition
+                return view.timeAt(j);
+            } else if (j == 0 && pts < pts0 && pts0 - pts <= JDvrFile.mPtsMargin) { // handle boundary condition 1
+                return view.timeAt(j);
+            } else if (j+2 == len && pts > pts1 && pts - pts1 <= JDvrFile.mPtsMargin) { // handle boundary condition 2
+                return view.timeAt(j+1);
+            } else if (pts0 > pts1) { // handle loop condition
+                if (pts1 > pts && pts1 - pts <= JDvrFile.mPtsMargin) {
+                    return view.timeAt(j+1);
+                } else if (pts > pts0 && pts - pts0 <= JDvrFile.mPtsMargin) {
+                    return view.timeAt(j+1);
                 }
             }
         }
-        return null;
+        return -1L;
     }
-    private Integer findMatchingIndexByOffset(long offset) {
+    // Index view to look up given offset in, after catching up index if the offset is beyond it
+    private JDvrSegmentIndexView findMatchingIndexByOffset(long offset) {
         if (mMode == 0) { throw new RuntimeException("Cannot do this under Recording situation"); }
-        final int len = mTimeOffsetIndexArray.size();
+        final JDvrSegmentIndexView view = mIndexView;
+        final int len = view.count;
         final boolean cond1 = (len == 0);
-        final boolean cond2 = (!cond1 && mTimeOffsetIndexArray.get(len - 1).offset < offset);
+        final boolean cond2 = (!cond1 && view.offsetAt(len - 1) < offset);
         final boolean cond3 = (mLoadLevel < 4);
         final boolean cond4 = (mLoadLevel == 4);
         if (cond1 || cond3 || (cond2 && cond4)) {
             load(4);
+            return mIndexView;
         }
-        final JDvrSegmentTimeOffsetIndex ref = new JDvrSegmentTimeOffsetIndex(0L,offset,0L);
-        int i = Collections.binarySearch(mTimeOffsetIndexArray,ref,mIndexOffsetCmp);
-        if (i >= len) {
-            return null;
-        } else if (i < 0) {
-            i = -(i+2);
-            if (i == -1) {
-                i=0;
-            }
-        }
-        return i;
+        return view;
     }
-    private Integer findMatchingIndexByTimeOffset(long time) {
+    // Index view to look up given time offset in, after catching up index if the time is beyond it
+    private JDvrSegmentIndexView findMatchingIndexByTimeOffset(long time) {
         if (mMode == 0) { throw new RuntimeException("Cannot do this under Recording situation"); }
-        int len = mTimeOffsetIndexArray.size();
+        final JDvrSegmentIndexView view = mIndexView;
+        final int len = view.count;
         final boolean cond1 = (len == 0);
-        final boolean cond2 = (!cond1 && mTimeOffsetIndexArray.get(len - 1).time < time);
+        final boolean cond2 = (!cond1 && view.timeAt(len - 1) < time);
         final boolean cond3 = (mLoadLevel < 4);
         final boolean cond4 = (mLoadLevel == 4);
         if (cond1 || cond3 || (cond2 && cond4)) {
             load(4);
-            len = mTimeOffsetIndexArray.size();
+            return mIndexView;
         }
-        final JDvrSegmentTimeOffsetIndex ref = new JDvrSegmentTimeOffsetIndex(time,0L,0L);
-        int i = Collections.binarySearch(mTimeOffsetIndexArray,ref,mIndexTimeCmp);
-        if (i >= len) {
-            return null;
-        } else if (i < 0) {
-            i = -(i+2);
-            if (i == -1) {
-                i=0;
-            }
-        }
-        return i;
+        return view;
     }
 }
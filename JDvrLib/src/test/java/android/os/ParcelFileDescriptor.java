@@ -0,0 +1,44 @@
+package android.os;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Host stand-in for android.os.ParcelFileDescriptor. It is only on the test classpath.
+ * A descriptor given to dup() is shared rather than duplicated, and is left to its owner to close.
+ */
+public class ParcelFileDescriptor implements Closeable {
+    public static final int MODE_WRITE_ONLY = 0x20000000;
+
+    private final FileDescriptor mFd;
+    private final Closeable mOwner;
+
+    private ParcelFileDescriptor(FileDescriptor fd, Closeable owner) {
+        mFd = fd;
+        mOwner = owner;
+    }
+    public static ParcelFileDescriptor dup(FileDescriptor fd) throws IOException {
+        return new ParcelFileDescriptor(fd, null);
+    }
+    public static ParcelFileDescriptor open(File file, int mode) throws FileNotFoundException {
+        final FileOutputStream stream = new FileOutputStream(file);
+        try {
+            return new ParcelFileDescriptor(stream.getFD(), stream);
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.toString());
+        }
+    }
+    public FileDescriptor getFileDescriptor() {
+        return mFd;
+    }
+    @Override
+    public void close() throws IOException {
+        if (mOwner != null) {
+            mOwner.close();
+        }
+    }
+}
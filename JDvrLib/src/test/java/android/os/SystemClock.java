@@ -0,0 +1,13 @@
+package android.os;
+
+/**
+ * Host stand-in for android.os.SystemClock. It is only on the test classpath.
+ */
+public final class SystemClock {
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000L;
+    }
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000L;
+    }
+}
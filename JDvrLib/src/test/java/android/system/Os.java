@@ -0,0 +1,25 @@
+package android.system;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Host stand-in for android.system.Os. It is only on the test classpath.
+ * posix_fallocate() extends the file, so that preallocated space reads back as zeros as on device.
+ */
+public final class Os {
+    public static void posix_fallocate(FileDescriptor fd, long offset, long len) throws ErrnoException {
+        try {
+            // The stream is not closed, as the descriptor belongs to its caller
+            final FileChannel channel = new FileOutputStream(fd).getChannel();
+            if (channel.size() < offset + len) {
+                channel.write(ByteBuffer.wrap(new byte[1]), offset + len - 1);
+            }
+        } catch (IOException e) {
+            throw new ErrnoException("posix_fallocate", OsConstants.EIO);
+        }
+    }
+}
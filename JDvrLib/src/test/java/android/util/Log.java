@@ -0,0 +1,26 @@
+package android.util;
+
+/**
+ * Host stand-in for android.util.Log, so that library code can be unit tested on a JVM without
+ * the Android runtime. It is only on the test classpath and shadows the stub of the SDK jar.
+ */
+public final class Log {
+    public static int v(String tag, String msg) {
+        return 0;
+    }
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+    public static int w(String tag, String msg) {
+        return 0;
+    }
+    public static int e(String tag, String msg) {
+        return 0;
+    }
+    public static int e(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+}
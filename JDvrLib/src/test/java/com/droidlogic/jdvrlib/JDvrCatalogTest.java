@@ -0,0 +1,42 @@
+package com.droidlogic.jdvrlib;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class JDvrCatalogTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void cachedInfoFollowsHeaderSequence() throws Exception {
+        final String prefix = mFolder.getRoot().getPath() + "/rec";
+        final File stat = new File(prefix + ".stat");
+        Files.write(stat.toPath(), "{}\n".getBytes(StandardCharsets.US_ASCII));
+        final long statModified = stat.lastModified();
+        final JDvrHeader header = JDvrHeader.open(prefix, false);
+        header.mSize = 1000L;
+        header.mDuration = 2000L;
+        header.update();
+        final JDvrCatalog catalog = JDvrCatalog.getInstance();
+        catalog.invalidate(prefix);
+        final JDvrCatalog.JDvrRecordingInfo info = catalog.get(prefix);
+        assertEquals(1000L, info.size);
+        assertSame(info, catalog.get(prefix));
+        // .stat file looks the same as before, as it does if it is rewritten within the time
+        // granularity of the filesystem
+        header.mSize = 3000L;
+        header.update();
+        stat.setLastModified(statModified);
+        assertEquals(3000L, catalog.get(prefix).size);
+        header.close();
+        catalog.invalidate(prefix);
+    }
+}
@@ -0,0 +1,68 @@
+package com.droidlogic.jdvrlib;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * JDvrDataSource backed by a file or a named pipe of TS data, e.g. a dump of an earlier recording.
+ * It drives the recording data path in tests on a Linux host without Tuner.
+ */
+public class JDvrFileDataSource implements JDvrDataSource, Closeable {
+    final private static String TAG = JDvrFileDataSource.class.getSimpleName();
+    private final FileInputStream mStream;
+    private final FileChannel mChannel;
+    private ParcelFileDescriptor mTargetFd = null;
+    private FileChannel mTarget = null;
+
+    public JDvrFileDataSource(String path) throws IOException {
+        mStream = new FileInputStream(path);
+        mChannel = mStream.getChannel();
+    }
+    @Override
+    public long write(byte[] buffer, long offset, long size) {
+        try {
+            final int n = mChannel.read(ByteBuffer.wrap(buffer, (int)offset, (int)size));
+            return Math.max(n, 0);
+        } catch (IOException e) {
+            Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+            return -1;
+        }
+    }
+    @Override
+    public long write(long size) {
+        if (mTarget == null) {
+            Log.e(TAG, "No file descriptor to write to");
+            return -1;
+        }
+        try {
+            // Like DvrRecorder, data goes to the current position of the file descriptor and
+            // moves it on. The channel is not closed, for the caller owns the descriptor.
+            final long position = mTarget.position();
+            final long n = mTarget.transferFrom(mChannel, position, size);
+            mTarget.position(position + n);
+            return n;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception at "+JDvrCommon.getCallerInfo(3)+": " + e);
+            return -1;
+        }
+    }
+    @Override
+    public void setFileDescriptor(ParcelFileDescriptor fd) {
+        // It is set before every write, so the channel is only renewed for a new descriptor
+        if (fd != mTargetFd) {
+            mTargetFd = fd;
+            mTarget = new FileOutputStream(fd.getFileDescriptor()).getChannel();
+        }
+    }
+    @Override
+    public void close() throws IOException {
+        mStream.close();
+    }
+}
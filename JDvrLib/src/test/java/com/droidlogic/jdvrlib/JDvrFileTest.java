@@ -0,0 +1,172 @@
+package com.droidlogic.jdvrlib;
+
+import com.droidlogic.jdvrlib.JDvrCommon.JDvrIndexFormat;
+import com.droidlogic.jdvrlib.JDvrCommon.JDvrStreamType;
+import com.droidlogic.jdvrlib.JDvrRecorder.JDvrStreamInfo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Playback side of JDvrFile, on recordings laid out on disk by the tests themselves.
+ */
+public class JDvrFileTest {
+    final private static int PACKETS_PER_SEGMENT = 100;
+    final private static int PACKETS_PER_ENTRY = 10;
+    final private static long ENTRY_INTERVAL = 1000L;     // in ms
+    final private static long SEGMENT_DURATION = ENTRY_INTERVAL * PACKETS_PER_SEGMENT / PACKETS_PER_ENTRY;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void listJournalIsReplayedUpToLastCompleteLine() throws Exception {
+        final String prefix = writeRecording(4);
+        // Segment 0 is removed, the line of segment 2 is updated later, and the line of segment 3
+        // is still being appended.
+        writeList(prefix, "0,0,10000\n1,10000,10000\n2,20000,4000\n0,0,-1\n2,20000,10000\n3,30");
+        final JDvrFile file = openForPlayback(prefix);
+        assertEquals(2, file.getNumberOfSegments());
+        assertEquals(1, file.getFirstSegmentId());
+        assertEquals(2, file.getLastSegmentId());
+        assertEquals(10000, file.getStartTime());
+        assertEquals(2 * SEGMENT_DURATION, file.duration());
+        file.close();
+    }
+
+    @Test
+    public void listJournalWithOnlyIncompleteLineLoadsNothing() throws Exception {
+        final String prefix = writeRecording(1);
+        writeList(prefix, "0,0,10000");
+        try {
+            openForPlayback(prefix).close();
+        } catch (RuntimeException e) {
+            return;
+        }
+        throw new AssertionError("Recording without any complete .list line is loaded");
+    }
+
+    @Test
+    public void seekLandsInTargetSegmentOnly() throws Exception {
+        final String prefix = writeRecording(500);
+        final JDvrFile file = openForPlayback(prefix);
+        final byte[] buf = new byte[188];
+        for (int id : new int[]{321, 0, 499, 7}) {
+            // 3500 ms into a segment is covered by the entry of 3000 ms, i.e. packet 30
+            assertTrue(file.seek((int)(id * SEGMENT_DURATION + 3500)));
+            assertEquals(id, file.getSegmentIdBeingRead());
+            // Playing time is that of the entry reading starts from
+            assertEquals(id * SEGMENT_DURATION + 3000, file.getPlayingTime());
+            assertEquals(id, file.getSegmentIdOfPlayingTime());
+            assertEquals(188, file.read(buf, 0, buf.length));
+            assertPacket(buf, id, 30);
+        }
+        file.close();
+    }
+
+    @Test
+    public void readingMovesOnToNextSegmentFromItsStart() throws Exception {
+        final String prefix = writeRecording(3);
+        final JDvrFile file = openForPlayback(prefix);
+        final byte[] buf = new byte[188];
+        // Read some of segment 1 first, so that seeking back to segment 0 leaves it off its start
+        assertTrue(file.seek((int)(SEGMENT_DURATION + 5000)));
+        assertEquals(188, file.read(buf, 0, buf.length));
+        assertTrue(file.seek((int)(SEGMENT_DURATION - 500)));
+        for (int i = 90; i < PACKETS_PER_SEGMENT; i++) {
+            assertEquals(188, file.read(buf, 0, buf.length));
+            assertPacket(buf, 0, i);
+        }
+        assertEquals(188, file.read(buf, 0, buf.length));
+        assertEquals(1, file.getSegmentIdBeingRead());
+        assertPacket(buf, 1, 0);
+        file.close();
+    }
+
+    @Test
+    public void removingLastSegmentUnsealsNewLastOne() throws Exception {
+        final String prefix = writeRecording(3);
+        final JDvrFile file = openForPlayback(prefix);
+        assertTrue(file.removeSegment(2));
+        final JDvrSegment last = file.getLastSegment();
+        assertEquals(1, last.id());
+        assertFalse(last.isSealed());
+        assertEquals(2 * SEGMENT_DURATION, file.duration());
+        assertEquals(2L * PACKETS_PER_SEGMENT * 188, file.size());
+        // Time of the new last segment is looked up as that of the last one rather than in timeline
+        assertTrue(file.seek((int)(SEGMENT_DURATION + 3500)));
+        assertEquals(1, file.getSegmentIdBeingRead());
+        final byte[] buf = new byte[188];
+        assertEquals(188, file.read(buf, 0, buf.length));
+        assertPacket(buf, 1, 30);
+        file.close();
+    }
+
+    // Private functions
+    private static void assertPacket(byte[] buf, int segmentId, int packet) {
+        assertEquals(0x47, buf[0]);
+        assertEquals(segmentId, (buf[1] & 0xff) | (buf[2] & 0xff) << 8);
+        assertEquals(packet, buf[3]);
+    }
+    private String writeRecording(int segments) throws IOException {
+        final String prefix = mFolder.getRoot().getPath() + "/rec";
+        final ArrayList<JDvrStreamInfo> streams = new ArrayList<>();
+        streams.add(new JDvrStreamInfo(0x100, JDvrStreamType.STREAM_TYPE_VIDEO, 2));
+        final byte[] packet = new byte[188];
+        packet[0] = 0x47;
+        for (int id = 0; id < segments; id++) {
+            final JDvrSegment writer = new JDvrSegment(prefix, id, 0, 0);
+            writer.setIndexFormat(JDvrIndexFormat.INDEX_FORMAT_BINARY);
+            writer.write(new byte[0], 0, 0);
+            writer.writeTimeStreamIndex(0, id * SEGMENT_DURATION, streams);
+            for (int i = 0; i <= PACKETS_PER_SEGMENT; i++) {
+                if (i % PACKETS_PER_ENTRY == 0) {
+                    writer.writeTimeOffsetIndex(i / PACKETS_PER_ENTRY * ENTRY_INTERVAL, i * 188L, 90000 + i * 9000L);
+                }
+                if (i < PACKETS_PER_SEGMENT) {
+                    // Every packet tells where it comes from
+                    packet[1] = (byte)id;
+                    packet[2] = (byte)(id >> 8);
+                    packet[3] = (byte)i;
+                    writer.write(packet, 0, packet.length);
+                }
+            }
+            writer.close();
+        }
+        final StringBuilder list = new StringBuilder();
+        for (int id = 0; id < segments; id++) {
+            list.append(id).append(',').append(id * SEGMENT_DURATION).append(',').append(SEGMENT_DURATION).append('\n');
+        }
+        writeList(prefix, list.toString());
+        Files.write(Paths.get(prefix + ".stat"), "{}\n".getBytes(StandardCharsets.US_ASCII));
+        final JDvrHeader header = JDvrHeader.open(prefix, false);
+        header.mSize = 188L * PACKETS_PER_SEGMENT * segments;
+        header.mDuration = SEGMENT_DURATION * segments;
+        header.mFirstSegmentId = 0;
+        header.mLastSegmentId = segments - 1;
+        header.mStreams.addAll(streams);
+        header.update();
+        header.close();
+        return prefix;
+    }
+    private static void writeList(String prefix, String content) throws IOException {
+        Files.write(Paths.get(prefix + ".list"), content.getBytes(StandardCharsets.US_ASCII));
+    }
+    private static JDvrFile openForPlayback(String prefix) {
+        final JDvrFile file = new JDvrFile(prefix);
+        // Warming segments ahead needs a looper thread, which is not there on host
+        file.setPrefetchThreshold(0.0d);
+        return file;
+    }
+}
@@ -0,0 +1,168 @@
+package com.droidlogic.jdvrlib;
+
+import com.droidlogic.jdvrlib.JDvrRecorder.JDvrStreamInfo;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JDvrIndexCodecTest {
+    private final JDvrIndexCodec mCodec = new JDvrIndexCodec();
+
+    @Test
+    public void timeOffsetLineIsByteIdenticalToFormattedOne() {
+        final int length = mCodec.encodeTimeOffsetIndex(1200, 188000, 8589934591L);
+        assertEquals("{\"time\":1200, \"offset\":188000, \"pts\":8589934591}\n", text(mCodec.line(), length));
+    }
+
+    @Test
+    public void timeOffsetLineRoundTrips() {
+        final long[][] cases = {
+                {0, 0, 0, -1},
+                {1200, 188000, 8589934591L, 94000},
+                {Long.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, 0},
+        };
+        for (long[] c : cases) {
+            final byte[] line = copy(mCodec.line(), mCodec.encodeTimeOffsetIndex(c[0], c[1], c[2], c[3]));
+            assertTrue(JDvrIndexCodec.isTimeOffsetIndex(line, 0, line.length));
+            assertFalse(JDvrIndexCodec.isTimeStreamIndex(line, 0, line.length));
+            assertTrue(mCodec.parseTimeOffsetIndex(line, 0, line.length));
+            assertEquals(c[0], mCodec.mTime);
+            assertEquals(c[1], mCodec.mOffset);
+            assertEquals(c[2], mCodec.mPts);
+            assertEquals(c[3], mCodec.mKeyOffset);
+        }
+    }
+
+    @Test
+    public void keyOffsetIsWrittenOnlyIfKnown() {
+        assertEquals("{\"time\":1, \"offset\":2, \"pts\":3}\n",
+                text(mCodec.line(), mCodec.encodeTimeOffsetIndex(1, 2, 3, -1)));
+        assertEquals("{\"time\":1, \"offset\":2, \"pts\":3, \"key_offset\":0}\n",
+                text(mCodec.line(), mCodec.encodeTimeOffsetIndex(1, 2, 3, 0)));
+    }
+
+    @Test
+    public void timeOffsetLineAcceptsAnyFieldOrderAndUnknownFields() {
+        final byte[] line = ascii("{ \"pts\" : 7, \"extra\":{\"a\":[1,\"}\"]}, \"key_offset\":5, \"offset\":6, \"time\":4, \"s\":\"x\\\"y\" }");
+        assertTrue(mCodec.parseTimeOffsetIndex(line, 0, line.length));
+        assertEquals(4, mCodec.mTime);
+        assertEquals(6, mCodec.mOffset);
+        assertEquals(7, mCodec.mPts);
+        assertEquals(5, mCodec.mKeyOffset);
+    }
+
+    @Test
+    public void truncatedOrMalformedTimeOffsetLineIsRejected() {
+        final byte[] line = copy(mCodec.line(), mCodec.encodeTimeOffsetIndex(1200, 188000, 90000, 94000));
+        for (int end = 0; end < line.length - 2; end++) {
+            assertFalse("end " + end, mCodec.parseTimeOffsetIndex(line, 0, end));
+        }
+        final byte[] fraction = ascii("{\"time\":1.5, \"offset\":2, \"pts\":3}");
+        assertFalse(mCodec.parseTimeOffsetIndex(fraction, 0, fraction.length));
+        final byte[] noOffset = ascii("{\"time\":1, \"pts\":3}");
+        assertFalse(mCodec.parseTimeOffsetIndex(noOffset, 0, noOffset.length));
+    }
+
+    @Test
+    public void timeStreamLineRoundTrips() {
+        final ArrayList<JDvrStreamInfo> streams = new ArrayList<>();
+        streams.add(new JDvrStreamInfo(0x100, 0, 2));
+        streams.add(new JDvrStreamInfo(0x101, 1, 3));
+        final int length = mCodec.encodeTimeStreamIndex(300, 1700000000000L, 5, streams);
+        assertEquals("{\"time\":300, \"time_offset_from_origin\":1700000000000, \"id\":5, \"nb_pids\":2, \"pids\":["
+                + "{\"pid\":256, \"type\":0, \"format\":2},{\"pid\":257, \"type\":1, \"format\":3}]}\n",
+                text(mCodec.line(), length));
+        final byte[] line = copy(mCodec.line(), length);
+        assertTrue(JDvrIndexCodec.isTimeStreamIndex(line, 0, line.length));
+        assertFalse(JDvrIndexCodec.isTimeOffsetIndex(line, 0, line.length));
+        final ArrayList<JDvrStreamInfo> pids = new ArrayList<>();
+        assertTrue(mCodec.parseTimeStreamIndex(line, 0, line.length, pids));
+        assertEquals(300, mCodec.mTime);
+        assertEquals(1700000000000L, mCodec.mTimeOffsetFromOrigin);
+        assertEquals(5, mCodec.mId);
+        assertStreamsEqual(streams, pids);
+    }
+
+    @Test
+    public void timeStreamLineWithManyStreamsGrowsLineBuffer() {
+        final ArrayList<JDvrStreamInfo> streams = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            streams.add(new JDvrStreamInfo(Integer.MAX_VALUE - i, Integer.MIN_VALUE, i));
+        }
+        // Encoding comes first, as it may replace the line buffer
+        final int length = mCodec.encodeTimeStreamIndex(Long.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, streams);
+        final byte[] line = copy(mCodec.line(), length);
+        final ArrayList<JDvrStreamInfo> pids = new ArrayList<>();
+        assertTrue(mCodec.parseTimeStreamIndex(line, 0, line.length, pids));
+        assertStreamsEqual(streams, pids);
+    }
+
+    @Test
+    public void timeStreamLineWithoutStreamsIsAccepted() {
+        final int length = mCodec.encodeTimeStreamIndex(0, 1000, 0, new ArrayList<>());
+        final byte[] line = copy(mCodec.line(), length);
+        assertEquals("{\"time\":0, \"time_offset_from_origin\":1000, \"id\":0, \"nb_pids\":0, \"pids\":[]}\n",
+                text(line, line.length));
+        final ArrayList<JDvrStreamInfo> pids = new ArrayList<>();
+        assertTrue(mCodec.parseTimeStreamIndex(line, 0, line.length, pids));
+        assertEquals(0, pids.size());
+        final byte[] incomplete = ascii("{\"time\":0, \"time_offset_from_origin\":1000, \"nb_pids\":1, \"pids\":[{\"pid\":256}]}");
+        assertTrue(mCodec.parseTimeStreamIndex(incomplete, 0, incomplete.length, pids));
+        assertEquals(0, pids.size());
+    }
+
+    @Test
+    public void truncatedTimeStreamLineIsRejected() {
+        final ArrayList<JDvrStreamInfo> streams = new ArrayList<>();
+        streams.add(new JDvrStreamInfo(0x100, 0, 2));
+        final int length = mCodec.encodeTimeStreamIndex(300, 1000, 1, streams);
+        final byte[] line = copy(mCodec.line(), length);
+        for (int end = 0; end < line.length - 2; end++) {
+            assertFalse("end " + end, mCodec.parseTimeStreamIndex(line, 0, end, new ArrayList<>()));
+        }
+    }
+
+    @Test
+    public void linesAreParsedInPlaceWithinALargerBuffer() {
+        final byte[] first = copy(mCodec.line(), mCodec.encodeTimeOffsetIndex(1, 2, 3, 4));
+        final byte[] second = copy(mCodec.line(), mCodec.encodeTimeOffsetIndex(5, 6, 7));
+        final byte[] buf = new byte[first.length + second.length];
+        System.arraycopy(first, 0, buf, 0, first.length);
+        System.arraycopy(second, 0, buf, first.length, second.length);
+        assertTrue(mCodec.parseTimeOffsetIndex(buf, first.length, buf.length - 1));
+        assertEquals(5, mCodec.mTime);
+        assertEquals(-1, mCodec.mKeyOffset);
+        assertTrue(mCodec.parseTimeOffsetIndex(buf, 0, first.length - 1));
+        assertEquals(1, mCodec.mTime);
+        assertEquals(4, mCodec.mKeyOffset);
+        assertArrayEquals(first, copy(buf, first.length));
+    }
+
+    // Private functions
+    private static void assertStreamsEqual(ArrayList<JDvrStreamInfo> expected, ArrayList<JDvrStreamInfo> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).pid, actual.get(i).pid);
+            assertEquals(expected.get(i).type, actual.get(i).type);
+            assertEquals(expected.get(i).format, actual.get(i).format);
+        }
+    }
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+    private static byte[] copy(byte[] buf, int length) {
+        final byte[] ret = new byte[length];
+        System.arraycopy(buf, 0, ret, 0, length);
+        return ret;
+    }
+    private static String text(byte[] buf, int length) {
+        return new String(buf, 0, length, StandardCharsets.US_ASCII);
+    }
+}
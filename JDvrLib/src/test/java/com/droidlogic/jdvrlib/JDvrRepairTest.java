@@ -0,0 +1,158 @@
+package com.droidlogic.jdvrlib;
+
+import com.droidlogic.jdvrlib.JDvrCommon.JDvrIndexFormat;
+import com.droidlogic.jdvrlib.JDvrCommon.JDvrStreamType;
+import com.droidlogic.jdvrlib.JDvrRecorder.JDvrStreamInfo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Repair of recordings whose ts files are longer than data in them, as left by an interrupted
+ * recording with preallocation.
+ */
+public class JDvrRepairTest {
+    final private static int PACKETS = 1000;
+    final private static int PREALLOCATED_SIZE = 188 * 4096;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void intactIndexTakesDataEndRatherThanFileLength() throws Exception {
+        final String prefix = mFolder.getRoot().getPath() + "/rec";
+        final JDvrSegment writer = new JDvrSegment(prefix, 0, 0, 0);
+        writer.setIndexFormat(JDvrIndexFormat.INDEX_FORMAT_BINARY);
+        final ArrayList<JDvrStreamInfo> streams = new ArrayList<>();
+        streams.add(new JDvrStreamInfo(0x100, JDvrStreamType.STREAM_TYPE_VIDEO, 2));
+        writer.writeTimeStreamIndex(0, 0, streams);
+        final byte[] packet = pesPacket(0x100, 90000);
+        for (int i = 0; i < PACKETS; i++) {
+            if (i % 100 == 0) {
+                writer.writeTimeOffsetIndex(i * 10L, i * 188L, 90000 + i * 900L);
+            }
+            writer.write(packet, 0, packet.length);
+        }
+        writer.close();
+        final File ts = new File(prefix + "-0000.ts");
+        preallocate(ts);
+        assertTrue(new JDvrRepair(prefix).run());
+        assertEquals(188L * PACKETS, statSize(prefix));
+        assertEquals(188L * PACKETS, ts.length());
+    }
+
+    @Test
+    public void rebuiltIndexEndsAtLastValidPacket() throws Exception {
+        final String prefix = mFolder.getRoot().getPath() + "/rec";
+        final File ts = new File(prefix + "-0000.ts");
+        try (RandomAccessFile file = new RandomAccessFile(ts, "rw")) {
+            for (int i = 0; i < PACKETS; i++) {
+                file.write(pesPacket(0x100, 90000 + i * 3600L));
+                if (i == PACKETS / 2) {
+                    // Garbage with a stray sync byte, which is not followed by another packet
+                    final byte[] garbage = new byte[100];
+                    garbage[10] = 0x47;
+                    file.write(garbage);
+                }
+            }
+        }
+        final long dataEnd = ts.length();
+        preallocate(ts);
+        // A stray sync byte in preallocated space must not be taken for a packet either
+        try (RandomAccessFile file = new RandomAccessFile(ts, "rw")) {
+            file.seek(dataEnd + 188 * 3);
+            file.write(0x47);
+        }
+        new File(prefix + "-0000.idx").createNewFile();
+        assertTrue(new JDvrRepair(prefix).run());
+        assertEquals(dataEnd, statSize(prefix));
+        assertEquals(dataEnd, ts.length());
+        final JDvrSegment reader = new JDvrSegment(prefix, 0, 1, 0);
+        // The closing entry covers data up to its end, and packets after garbage are indexed
+        assertEquals(dataEnd, reader.getIndexedSize());
+        assertEquals((PACKETS - 1) * 40L, reader.duration());
+        reader.close();
+    }
+
+    // Private functions
+    @Test
+    public void catalogLeavesRecordingInProgressAlone() throws Exception {
+        final String prefix = mFolder.getRoot().getPath() + "/rec";
+        final JDvrSegment writer = new JDvrSegment(prefix, 0, 0, 0);
+        writer.setIndexFormat(JDvrIndexFormat.INDEX_FORMAT_BINARY);
+        final ArrayList<JDvrStreamInfo> streams = new ArrayList<>();
+        streams.add(new JDvrStreamInfo(0x100, JDvrStreamType.STREAM_TYPE_VIDEO, 2));
+        writer.writeTimeStreamIndex(0, 0, streams);
+        final byte[] packet = pesPacket(0x100, 90000);
+        for (int i = 0; i < PACKETS; i++) {
+            writer.write(packet, 0, packet.length);
+        }
+        writer.close();
+        final File ts = new File(prefix + "-0000.ts");
+        preallocate(ts);
+        final long length = ts.length();
+        final JDvrCatalog catalog = JDvrCatalog.getInstance();
+        // A recorder holds the recording lock range of .lock file, and .stat is not written yet
+        try (FileChannel lockChannel = new RandomAccessFile(prefix + ".lock", "rw").getChannel();
+             FileLock lock = lockChannel.lock(0, 100, false)) {
+            catalog.invalidate(prefix);
+            catalog.get(prefix);
+            assertEquals(length, ts.length());
+            assertFalse(new File(prefix + ".stat").exists());
+        }
+        catalog.invalidate(prefix);
+        catalog.get(prefix);
+        assertEquals(188L * PACKETS, ts.length());
+        catalog.invalidate(prefix);
+    }
+
+    private static void preallocate(File ts) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(ts, "rw")) {
+            file.setLength(ts.length() + PREALLOCATED_SIZE);
+        }
+    }
+    private static long statSize(String prefix) throws IOException {
+        final String stat = new String(Files.readAllBytes(new File(prefix + ".stat").toPath()), StandardCharsets.US_ASCII);
+        final Matcher matcher = Pattern.compile("\"size\":(\\d+)").matcher(stat);
+        assertTrue(stat, matcher.find());
+        return Long.parseLong(matcher.group(1));
+    }
+    // A video packet starting a PES with given PTS and random access indicator set
+    private static byte[] pesPacket(int pid, long pts) {
+        final byte[] buf = new byte[188];
+        buf[0] = 0x47;
+        buf[1] = (byte)(0x40 | (pid >> 8));
+        buf[2] = (byte)pid;
+        buf[3] = 0x30;  // adaptation field and payload
+        buf[4] = 1;
+        buf[5] = 0x40;
+        final int p = 6;
+        buf[p+2] = 1;
+        buf[p+3] = (byte)0xe0;
+        buf[p+6] = (byte)0x80;
+        buf[p+7] = (byte)0x80;
+        buf[p+8] = 5;
+        buf[p+9] = (byte)(0x21 | ((pts >> 29) & 0x0e));
+        buf[p+10] = (byte)(pts >> 22);
+        buf[p+11] = (byte)(((pts >> 14) & 0xfe) | 1);
+        buf[p+12] = (byte)(pts >> 7);
+        buf[p+13] = (byte)(((pts << 1) & 0xfe) | 1);
+        return buf;
+    }
+}
@@ -0,0 +1,345 @@
+package com.droidlogic.jdvrlib;
+
+import com.droidlogic.jdvrlib.JDvrCommon.JDvrIndexFormat;
+import com.droidlogic.jdvrlib.JDvrCommon.JDvrStreamType;
+import com.droidlogic.jdvrlib.JDvrRecorder.JDvrStreamInfo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JDvrSegmentTest {
+    final private static int ENTRIES = 1000;
+    final private static long START_TIME = 5000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void binaryIndexIsWrittenWithHeader() throws Exception {
+        final String prefix = writeSegment(JDvrIndexFormat.INDEX_FORMAT_BINARY, ENTRIES);
+        final byte[] idx = Files.readAllBytes(new File(prefix + "-0000.idx").toPath());
+        assertEquals("JDVRIDX", new String(idx, 0, 7, StandardCharsets.US_ASCII));
+        assertEquals(4096 + 32 * ENTRIES, idx.length);
+    }
+
+    @Test
+    public void binaryIndexAnswersLookups() throws Exception {
+        checkLookups(writeSegment(JDvrIndexFormat.INDEX_FORMAT_BINARY, ENTRIES));
+    }
+
+    @Test
+    public void jsonIndexAnswersLookups() throws Exception {
+        checkLookups(writeSegment(JDvrIndexFormat.INDEX_FORMAT_JSON, ENTRIES));
+    }
+
+    @Test
+    public void binaryIndexOfGrowingSegmentIsTailed() throws Exception {
+        final String prefix = mFolder.getRoot().getPath() + "/rec";
+        final JDvrSegment writer = new JDvrSegment(prefix, 0, 0, 0);
+        writer.setIndexFormat(JDvrIndexFormat.INDEX_FORMAT_BINARY);
+        writer.write(new byte[0], 0, 0);
+        writer.writeTimeStreamIndex(0, START_TIME, streams(0x100, 0x101));
+        writer.writeTimeOffsetIndex(0, 0, 90000);
+        final JDvrSegment reader = new JDvrSegment(prefix, 0, 1, 0);
+        reader.setLastSegment(true);
+        assertEquals(0, reader.duration());
+        for (int i = 1; i < 10; i++) {
+            writer.writeTimeOffsetIndex(i * 300L, i * 18800L, 90000 + i * 27000L);
+        }
+        assertEquals(2700, reader.duration());
+        assertEquals(18800 * 9, reader.getOffsetOf(3000));
+        writer.close();
+        reader.close();
+    }
+
+    @Test
+    public void lookupsDuringIndexLoadingSeeConsistentEntries() throws Exception {
+        for (int format : new int[] {JDvrIndexFormat.INDEX_FORMAT_BINARY, JDvrIndexFormat.INDEX_FORMAT_JSON}) {
+            final String prefix = mFolder.getRoot().getPath() + "/rec" + format;
+            final JDvrSegment writer = new JDvrSegment(prefix, 0, 0, 0);
+            writer.setIndexFormat(format);
+            writer.write(new byte[0], 0, 0);
+            writer.writeTimeStreamIndex(0, START_TIME, streams(0x100, 0x101));
+            writer.writeTimeOffsetIndex(0, 0, 90000);
+            final JDvrSegment reader = new JDvrSegment(prefix, 0, 1, 0);
+            reader.setLastSegment(true);
+            reader.duration();
+            final AtomicReference<String> failure = new AtomicReference<>();
+            final AtomicBoolean done = new AtomicBoolean(false);
+            // Lookups from another thread than the one loading index, as playback does
+            final Thread lookups = new Thread(() -> {
+                while (!done.get() && failure.get() == null) {
+                    final long time = reader.getTimeOffsetOf(Long.MAX_VALUE);
+                    final long offset = reader.getOffsetOf(time);
+                    final long pts = reader.getPtsOf(time);
+                    if (offset != time / 300 * 18800L || pts != 90000 + time / 300 * 27000L) {
+                        failure.set("time " + time + ", offset " + offset + ", pts " + pts);
+                    }
+                }
+            });
+            lookups.start();
+            for (int i = 1; i < ENTRIES; i++) {
+                writer.writeTimeOffsetIndex(i * 300L, i * 18800L, 90000 + i * 27000L);
+                reader.duration();
+            }
+            done.set(true);
+            lookups.join();
+            assertNull(failure.get());
+            assertEquals((ENTRIES - 1) * 300L, reader.duration());
+            writer.close();
+            reader.close();
+        }
+    }
+
+    @Test
+    public void binaryIndexRunsOutOfRoomForStreamChanges() throws Exception {
+        final String prefix = mFolder.getRoot().getPath() + "/rec";
+        final JDvrSegment writer = new JDvrSegment(prefix, 0, 0, 0);
+        writer.setIndexFormat(JDvrIndexFormat.INDEX_FORMAT_BINARY);
+        writer.write(new byte[0], 0, 0);
+        int changes = 0;
+        while (writer.hasRoomForTimeStreamIndex(2)) {
+            writer.writeTimeStreamIndex(changes * 100L, START_TIME + changes * 100L, streams(0x100 + changes, 0x200));
+            changes++;
+        }
+        // The 4032 bytes between header and records hold 84 entries of 2 streams
+        assertEquals(84, changes);
+        writer.writeTimeOffsetIndex(changes * 100L, 0, 0);
+        writer.close();
+        final JDvrSegment reader = new JDvrSegment(prefix, 0, 1, 0);
+        assertEquals(0x100, reader.getVideoPid());
+        assertEquals(START_TIME, reader.getStartTime());
+        reader.close();
+    }
+
+    @Test
+    public void jsonIndexAlwaysHasRoomForStreamChanges() throws Exception {
+        final JDvrSegment writer = new JDvrSegment(mFolder.getRoot().getPath() + "/rec", 0, 0, 0);
+        writer.setIndexFormat(JDvrIndexFormat.INDEX_FORMAT_JSON);
+        writer.write(new byte[0], 0, 0);
+        for (int i = 0; i < 100; i++) {
+            writer.writeTimeStreamIndex(i * 100L, START_TIME + i * 100L, streams(0x100 + i, 0x200));
+        }
+        assertTrue(writer.hasRoomForTimeStreamIndex(2));
+        writer.close();
+    }
+
+    @Test
+    public void version1BinaryIndexHasNoKeyFrameOffsets() throws Exception {
+        final String prefix = writeSegment(JDvrIndexFormat.INDEX_FORMAT_BINARY, ENTRIES);
+        final File idx = new File(prefix + "-0000.idx");
+        final byte[] bytes = Files.readAllBytes(idx.toPath());
+        // Turn it into a version 1 file, whose reserved field of a record is zero
+        bytes[8] = 1;
+        for (int i = 0; i < ENTRIES; i++) {
+            for (int j = 24; j < 32; j++) {
+                bytes[4096 + i * 32 + j] = 0;
+            }
+        }
+        Files.write(idx.toPath(), bytes);
+        final JDvrSegment reader = new JDvrSegment(prefix, 0, 1, 0);
+        assertEquals(18800L * 500, reader.getKeyFrameOffsetOf(500 * 300L));
+        reader.close();
+    }
+
+    @Test
+    public void recordingThroughFileDataSource() throws Exception {
+        final File input = mFolder.newFile("input.ts");
+        final byte[] data = new byte[188 * 1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)((i % 188 == 0) ? 0x47 : i / 188 + i % 188);
+        }
+        Files.write(input.toPath(), data);
+        final String prefix = mFolder.getRoot().getPath() + "/rec";
+        final JDvrSegment writer = new JDvrSegment(prefix, 0, 0, 0);
+        writer.setIndexFormat(JDvrIndexFormat.INDEX_FORMAT_BINARY);
+        writer.setWriteBufferSize(JDvrSegment.WRITE_ALIGNMENT);
+        try (JDvrFileDataSource source = new JDvrFileDataSource(input.getPath())) {
+            writer.writeTimeStreamIndex(0, START_TIME, streams(0x100, 0x101));
+            // Data written from a byte[] first stays in write buffer, and must land before the
+            // data written through file descriptor
+            final byte[] head = new byte[188 * 10];
+            assertEquals(head.length, source.write(head, 0, head.length));
+            writer.write(head, 0, head.length);
+            int n;
+            long time = 0;
+            while ((n = writer.write(source, 188 * 37)) > 0) {
+                writer.writeTimeOffsetIndex(time, writer.size(), 90000 + time * 90);
+                time += 100;
+            }
+        }
+        writer.close();
+        assertArrayEquals(data, Files.readAllBytes(new File(prefix + "-0000.ts").toPath()));
+        final JDvrSegment reader = new JDvrSegment(prefix, 0, 1, 0);
+        assertEquals(data.length, reader.size());
+        assertEquals(data.length, reader.getIndexedSize());
+        reader.close();
+    }
+
+    @Test
+    public void mappedReadsMoveWindowAlongFile() throws Exception {
+        final String prefix = mFolder.getRoot().getPath() + "/rec";
+        // Larger than a few mapping windows and not a multiple of page size
+        final byte[] data = new byte[188 * 4096 * 9 + 188 * 5];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(i * 31 + i / 4093);
+        }
+        final JDvrSegment writer = new JDvrSegment(prefix, 0, 0, 0);
+        writer.write(data, 0, data.length);
+        writer.writeTimeStreamIndex(0, START_TIME, streams(0x100, 0x101));
+        writer.writeTimeOffsetIndex(0, 0, 90000);
+        writer.writeTimeOffsetIndex(1000, data.length, 180000);
+        writer.close();
+        final JDvrSegment reader = new JDvrSegment(prefix, 0, 1, 0);
+        reader.setReadMode(JDvrCommon.JDvrReadMode.READ_MODE_MMAP);
+        reader.seal();
+        // Sequential reads of odd size, crossing window boundaries
+        final byte[] buf = new byte[188 * 1000 + 7];
+        final byte[] all = new byte[data.length];
+        int total = 0;
+        int n;
+        while ((n = reader.read(buf, 0, buf.length)) > 0) {
+            System.arraycopy(buf, 0, all, total, n);
+            total += n;
+        }
+        assertEquals(-1, n);
+        assertArrayEquals(data, all);
+        // Seeking backward and forward remaps
+        for (long pos : new long[]{data.length - 100, 5, 188 * 4096 * 4 - 3, 188 * 4096 * 8}) {
+            reader.seek(pos);
+            n = reader.read(buf, 0, buf.length);
+            assertEquals(Math.min(buf.length, data.length - pos), n);
+            for (int i = 0; i < n; i++) {
+                assertEquals(data[(int)pos + i], buf[i]);
+            }
+        }
+        reader.unmap();
+        reader.seek(1);
+        assertEquals(10, reader.read(buf, 0, 10));
+        assertEquals(data[1], buf[0]);
+        reader.close();
+    }
+
+    @Test
+    public void preallocatedSegmentIsReadableUpToLatestIndexEntry() throws Exception {
+        final String prefix = mFolder.getRoot().getPath() + "/rec";
+        final JDvrSegment writer = new JDvrSegment(prefix, 0, 0, 0);
+        writer.setIndexFormat(JDvrIndexFormat.INDEX_FORMAT_BINARY);
+        writer.setPreallocation(true);
+        writer.setWriteBufferSize(JDvrSegment.WRITE_ALIGNMENT);
+        writer.precreate(true);
+        assertTrue(writer.publish());
+        final File ts = new File(prefix + "-0000.ts");
+        assertEquals(JDvrSegment.getMaxSegmentSize(), ts.length());
+        writer.writeTimeStreamIndex(0, START_TIME, streams(0x100, 0x101));
+        writer.writeTimeOffsetIndex(0, 0, 90000);
+        // Far less than write buffer, so it would stay there without the index entry covering it
+        final byte[] data = new byte[188 * 10];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)((i % 188 == 0) ? 0x47 : i);
+        }
+        writer.write(data, 0, data.length);
+        writer.writeTimeOffsetIndex(100, data.length, 99000);
+        writer.write(data, 0, 188);
+        final JDvrSegment reader = new JDvrSegment(prefix, 0, 1, 0);
+        reader.setPreallocation(true);
+        reader.setLastSegment(true);
+        assertEquals(data.length, reader.size());
+        final byte[] buf = new byte[data.length * 2];
+        assertEquals(data.length, reader.read(buf, 0, buf.length));
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], buf[i]);
+        }
+        assertEquals(-1, reader.read(buf, 0, buf.length));
+        reader.close();
+        // Preallocated space is cut off once the segment is finished
+        writer.close();
+        assertEquals(data.length + 188, ts.length());
+    }
+
+    @Test
+    public void segmentWrittenWithoutPrecreateIsNotPreallocated() throws Exception {
+        final String prefix = mFolder.getRoot().getPath() + "/rec";
+        final JDvrSegment writer = new JDvrSegment(prefix, 0, 0, 0);
+        writer.setPreallocation(true);
+        writer.write(new byte[188], 0, 188);
+        assertEquals(188, new File(prefix + "-0000.ts").length());
+        writer.close();
+    }
+
+    @Test
+    public void writeBufferIsHandedOnToNextSegment() throws Exception {
+        final String prefix = mFolder.getRoot().getPath() + "/rec";
+        final JDvrSegment first = new JDvrSegment(prefix, 0, 0, 0);
+        first.setWriteBufferSize(JDvrSegment.WRITE_ALIGNMENT);
+        first.write(new byte[188 * 10], 0, 188 * 10);
+        assertEquals(0, new File(prefix + "-0000.ts").length());
+        final byte[] buffer = first.takeWriteBuffer();
+        assertEquals(JDvrSegment.WRITE_ALIGNMENT, buffer.length);
+        // Pending data is written out before the buffer is given up
+        assertEquals(188 * 10, new File(prefix + "-0000.ts").length());
+        first.seal();
+        first.close();
+        final JDvrSegment second = new JDvrSegment(prefix, 1, 0, 0);
+        second.setWriteBufferSize(JDvrSegment.WRITE_ALIGNMENT, buffer);
+        second.write(new byte[188], 0, 188);
+        second.seal();
+        // A sealed segment no longer holds it
+        assertEquals(null, second.takeWriteBuffer());
+        assertEquals(188, new File(prefix + "-0001.ts").length());
+        second.close();
+    }
+
+    // Private functions
+    private String writeSegment(int format, int entries) {
+        final String prefix = mFolder.getRoot().getPath() + "/rec";
+        final JDvrSegment writer = new JDvrSegment(prefix, 0, 0, 0);
+        writer.setIndexFormat(format);
+        writer.write(new byte[0], 0, 0);
+        writer.writeTimeStreamIndex(0, START_TIME, streams(0x100, 0x101));
+        for (int i = 0; i < entries; i++) {
+            // Every entry but the first has a key frame half way back to the previous entry
+            final long keyOffset = (i == 0) ? -1 : i * 18800L - 9400L;
+            writer.writeTimeOffsetIndex(i * 300L, i * 18800L, 90000 + i * 27000L, keyOffset);
+        }
+        writer.close();
+        return prefix;
+    }
+    private static void checkLookups(String prefix) {
+        final JDvrSegment reader = new JDvrSegment(prefix, 0, 1, 0);
+        reader.setLastSegment(true);
+        assertEquals((ENTRIES - 1) * 300L, reader.duration());
+        assertEquals(START_TIME, reader.getStartTime());
+        assertEquals(0x100, reader.getVideoPid());
+        assertEquals(0x101, reader.getAudioPID());
+        // Lookups take the latest entry at or before the given time or offset
+        assertEquals(18800L * 3, reader.getOffsetOf(1000));
+        assertEquals(90000 + 27000L * 3, reader.getPtsOf(1000));
+        assertEquals(1500, reader.getTimeOffsetOf(18800L * 5 + 1));
+        assertEquals(18800L * 5 - 9400L, reader.getKeyFrameOffsetOf(1500));
+        assertEquals(0L, reader.getKeyFrameOffsetOf(0));
+        assertEquals(3000, reader.findPtsFrom(90000 + 27000L * 10 + 5, 0));
+        assertEquals(-1, reader.findPtsFrom(1, 0));
+        assertEquals(18800L * (ENTRIES - 1), reader.getIndexedSize());
+        reader.close();
+    }
+    private static ArrayList<JDvrStreamInfo> streams(int videoPid, int audioPid) {
+        final ArrayList<JDvrStreamInfo> ret = new ArrayList<>();
+        ret.add(new JDvrStreamInfo(videoPid, JDvrStreamType.STREAM_TYPE_VIDEO, 2));
+        ret.add(new JDvrStreamInfo(audioPid, JDvrStreamType.STREAM_TYPE_AUDIO, 3));
+        return ret;
+    }
+}
@@ -2,6 +2,7 @@
 #include "JDvrLibJNI.h"
 #include "Loader.h"
 
+#include <stdlib.h>
 #include <vector>
 #include <algorithm>
 
@@ -742,3 +743,35 @@ AmDvr_deleteRecord (const char *path_prefix)
     return ret ? JDVRLIB_JNI_OK : JDVRLIB_JNI_ERR;
 }
 
+am_dvr_result
+AmDvr_listRecordings (
+        const char *dir_path,
+        am_dvr_recording_info **pinfos,
+        int *pcount)
+{
+    ALOGI("%s, enter",__func__);
+    if (dir_path == nullptr || pinfos == nullptr || pcount == nullptr) {
+        return JDVRLIB_JNI_ERR;
+    }
+    JNIEnv *env = Loader::getOrAttachJNIEnvironment();
+    if (env == nullptr) {
+        ALOGE("Failed to get JNIEnv* at %s:%d",__func__,__LINE__);
+        return JDVRLIB_JNI_ERR;
+    }
+    jstring jDirPath = env->NewStringUTF(dir_path);
+    const int count = JDvrCatalog::list(jDirPath, pinfos);
+    env->DeleteLocalRef(jDirPath);
+    if (count < 0) {
+        return JDVRLIB_JNI_ERR;
+    }
+    *pcount = count;
+    ALOGI("%s, path:%s, count:%d",__func__,dir_path,count);
+    return JDVRLIB_JNI_OK;
+}
+
+am_dvr_result
+AmDvr_freeRecordings (am_dvr_recording_info *infos)
+{
+    free(infos);
+    return JDVRLIB_JNI_OK;
+}
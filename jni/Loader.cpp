@@ -1,4 +1,6 @@
 #include <assert.h>
+#include <stdlib.h>
+#include <string.h>
 #include <unistd.h>
 #include <vector>
 #include <algorithm>
@@ -53,6 +55,32 @@ struct jdvr_player_t {
     jmethodID setSpeedMID;
 };
 
+struct jdvr_catalog_t {
+    jmethodID list2MID;
+};
+
+struct recording_info_t {
+    jfieldID pathPrefixField;
+    jfieldID sizeField;
+    jfieldID durationField;
+    jfieldID firstSegmentIdField;
+    jfieldID lastSegmentIdField;
+    jfieldID limitSizeField;
+    jfieldID limitDurationField;
+    jfieldID streamsField;
+};
+
+struct stream_info_t {
+    jfieldID pidField;
+    jfieldID typeField;
+    jfieldID formatField;
+};
+
+struct list_t {
+    jmethodID sizeMID;
+    jmethodID getMID;
+};
+
 struct message_t {
     jfieldID whatField;
     jfieldID arg1Field;
@@ -95,6 +123,18 @@ static jdvr_recorder_t gJDvrRecorderCtx;
 static jclass gJDvrPlayerCls;
 static jdvr_player_t gJDvrPlayerCtx;
 
+static jclass gJDvrCatalogCls;
+static jdvr_catalog_t gJDvrCatalogCtx;
+
+static jclass gRecordingInfoCls;
+static recording_info_t gRecordingInfoCtx;
+
+static jclass gStreamInfoCls;
+static stream_info_t gStreamInfoCtx;
+
+static jclass gListCls;
+static list_t gListCtx;
+
 static jclass gMessageCls;
 static message_t gMessageCtx;
 
@@ -253,6 +293,41 @@ bool Loader::initJDvrLibJNI(JNIEnv *jniEnv) {
     gJDvrPlayerCtx.seekMID = GetMethodIDOrDie(env, gJDvrPlayerCls, "seek", "(I)Z");
     gJDvrPlayerCtx.setSpeedMID = GetMethodIDOrDie(env, gJDvrPlayerCls, "setSpeed", "(D)Z");
 
+    // JDvrCatalog
+    jclass jdvrcatalogCls = env->FindClass("com/droidlogic/jdvrlib/JDvrCatalog");
+    gJDvrCatalogCls = static_cast<jclass>(env->NewGlobalRef(jdvrcatalogCls));
+    env->DeleteLocalRef(jdvrcatalogCls);
+    gJDvrCatalogCtx.list2MID = GetStaticMethodIDOrDie(env, gJDvrCatalogCls, "list2",
+            "(Ljava/lang/String;)[Lcom/droidlogic/jdvrlib/JDvrCatalog$JDvrRecordingInfo;");
+
+    // JDvrRecordingInfo
+    jclass recordinginfoCls = env->FindClass("com/droidlogic/jdvrlib/JDvrCatalog$JDvrRecordingInfo");
+    gRecordingInfoCls = static_cast<jclass>(env->NewGlobalRef(recordinginfoCls));
+    env->DeleteLocalRef(recordinginfoCls);
+    gRecordingInfoCtx.pathPrefixField = GetFieldIDOrDie(env, gRecordingInfoCls, "pathPrefix", "Ljava/lang/String;");
+    gRecordingInfoCtx.sizeField = GetFieldIDOrDie(env, gRecordingInfoCls, "size", "J");
+    gRecordingInfoCtx.durationField = GetFieldIDOrDie(env, gRecordingInfoCls, "duration", "J");
+    gRecordingInfoCtx.firstSegmentIdField = GetFieldIDOrDie(env, gRecordingInfoCls, "firstSegmentId", "I");
+    gRecordingInfoCtx.lastSegmentIdField = GetFieldIDOrDie(env, gRecordingInfoCls, "lastSegmentId", "I");
+    gRecordingInfoCtx.limitSizeField = GetFieldIDOrDie(env, gRecordingInfoCls, "limitSize", "J");
+    gRecordingInfoCtx.limitDurationField = GetFieldIDOrDie(env, gRecordingInfoCls, "limitDuration", "I");
+    gRecordingInfoCtx.streamsField = GetFieldIDOrDie(env, gRecordingInfoCls, "streams", "Ljava/util/ArrayList;");
+
+    // JDvrStreamInfo
+    jclass streaminfoCls = env->FindClass("com/droidlogic/jdvrlib/JDvrRecorder$JDvrStreamInfo");
+    gStreamInfoCls = static_cast<jclass>(env->NewGlobalRef(streaminfoCls));
+    env->DeleteLocalRef(streaminfoCls);
+    gStreamInfoCtx.pidField = GetFieldIDOrDie(env, gStreamInfoCls, "pid", "I");
+    gStreamInfoCtx.typeField = GetFieldIDOrDie(env, gStreamInfoCls, "type", "I");
+    gStreamInfoCtx.formatField = GetFieldIDOrDie(env, gStreamInfoCls, "format", "I");
+
+    // ArrayList
+    jclass listCls = env->FindClass("java/util/ArrayList");
+    gListCls = static_cast<jclass>(env->NewGlobalRef(listCls));
+    env->DeleteLocalRef(listCls);
+    gListCtx.sizeMID = GetMethodIDOrDie(env, gListCls, "size", "()I");
+    gListCtx.getMID = GetMethodIDOrDie(env, gListCls, "get", "(I)Ljava/lang/Object;");
+
     // Message
     jclass messageCls = env->FindClass("android/os/Message");
     gMessageCls = static_cast<jclass>(env->NewGlobalRef(messageCls));
@@ -787,3 +862,82 @@ bool JDvrPlayer::setSpeed(double speed)
     return (bool)result;
 }
 
+// JDvrCatalog
+int JDvrCatalog::list(jstring dir_path, am_dvr_recording_info** pinfos)
+{
+    JNIEnv* env = Loader::getOrAttachJNIEnvironment();
+    if (env == nullptr) {
+        ALOGE("Failed to get JNIEnv* at %s:%d",__func__,__LINE__);
+        return -1;
+    }
+    jobjectArray jInfos = (jobjectArray)env->CallStaticObjectMethod(gJDvrCatalogCls,gJDvrCatalogCtx.list2MID,dir_path);
+    if (env->ExceptionCheck()) {
+        // A pending exception must not be left to whatever JNI call comes next
+        jthrowable e = env->ExceptionOccurred();
+        env->ExceptionClear();
+        jclass eClass = env->GetObjectClass(e);
+        jmethodID toString = env->GetMethodID(eClass, "toString", "()Ljava/lang/String;");
+        jstring message = (jstring)env->CallObjectMethod(e, toString);
+        const char* cMessage = env->GetStringUTFChars(message, NULL);
+        ALOGE("A java exception happens while calling %s, message: %s",__func__,cMessage);
+        env->ReleaseStringUTFChars(message, cMessage);
+        env->DeleteLocalRef(message);
+        env->DeleteLocalRef(eClass);
+        env->DeleteLocalRef(e);
+        if (jInfos != nullptr) {
+            env->DeleteLocalRef(jInfos);
+        }
+        return -1;
+    }
+    if (jInfos == nullptr) {
+        return -1;
+    }
+    const jsize count = env->GetArrayLength(jInfos);
+    am_dvr_recording_info* infos = (am_dvr_recording_info*)calloc((count > 0) ? count : 1, sizeof(am_dvr_recording_info));
+    if (infos == nullptr) {
+        ALOGE("Failed to allocate %d recording infos at %s:%d",count,__func__,__LINE__);
+        env->DeleteLocalRef(jInfos);
+        return -1;
+    }
+    for (jsize i = 0; i < count; i++) {
+        jobject jInfo = env->GetObjectArrayElement(jInfos, i);
+        am_dvr_recording_info* info = &infos[i];
+        jstring jPathPrefix = (jstring)env->GetObjectField(jInfo, gRecordingInfoCtx.pathPrefixField);
+        const char* pathPrefix = env->GetStringUTFChars(jPathPrefix, nullptr);
+        strncpy(info->pathPrefix, pathPrefix, sizeof(info->pathPrefix) - 1);
+        env->ReleaseStringUTFChars(jPathPrefix, pathPrefix);
+        env->DeleteLocalRef(jPathPrefix);
+        info->size = env->GetLongField(jInfo, gRecordingInfoCtx.sizeField);
+        info->duration = env->GetLongField(jInfo, gRecordingInfoCtx.durationField);
+        info->firstSegmentId = env->GetIntField(jInfo, gRecordingInfoCtx.firstSegmentIdField);
+        info->lastSegmentId = env->GetIntField(jInfo, gRecordingInfoCtx.lastSegmentIdField);
+        info->limitSize = env->GetLongField(jInfo, gRecordingInfoCtx.limitSizeField);
+        info->limitDuration = env->GetIntField(jInfo, gRecordingInfoCtx.limitDurationField);
+        jobject jStreams = env->GetObjectField(jInfo, gRecordingInfoCtx.streamsField);
+        jint numberOfStreams = env->CallIntMethod(jStreams, gListCtx.sizeMID);
+        if (env->ExceptionCheck()) {
+            ALOGE("Failed to get streams of %s at %s:%d",info->pathPrefix,__func__,__LINE__);
+            env->ExceptionClear();
+            numberOfStreams = 0;
+        }
+        for (jint j = 0; j < numberOfStreams && j < AM_DVR_MAX_STREAMS; j++) {
+            jobject jStream = env->CallObjectMethod(jStreams, gListCtx.getMID, j);
+            if (env->ExceptionCheck() || jStream == nullptr) {
+                // Streams of this recording are left as far as they have been taken
+                ALOGE("Failed to get stream %d of %s at %s:%d",j,info->pathPrefix,__func__,__LINE__);
+                env->ExceptionClear();
+                break;
+            }
+            info->streams[j].pid = env->GetIntField(jStream, gStreamInfoCtx.pidField);
+            info->streams[j].type = env->GetIntField(jStream, gStreamInfoCtx.typeField);
+            info->streams[j].format = env->GetIntField(jStream, gStreamInfoCtx.formatField);
+            info->numberOfStreams = j + 1;
+            env->DeleteLocalRef(jStream);
+        }
+        env->DeleteLocalRef(jStreams);
+        env->DeleteLocalRef(jInfo);
+    }
+    env->DeleteLocalRef(jInfos);
+    *pinfos = infos;
+    return (int)count;
+}
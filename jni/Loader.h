@@ -106,3 +106,10 @@ private:
     on_player_event_callback mCallback;
 };
 
+class JDvrCatalog
+{
+public:
+    /** returns the number of recordings, or -1 if any error. *pinfos should be freed by caller. */
+    static int list(jstring dir_path, am_dvr_recording_info** pinfos);
+};
+
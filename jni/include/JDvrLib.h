@@ -83,6 +83,29 @@ typedef struct {
     int         numberOfSegments;
 } am_dvr_playback_progress;
 
+#define AM_DVR_MAX_PATH_LEN     256
+#define AM_DVR_MAX_STREAMS      16
+
+/**Stream information of a recording*/
+typedef struct {
+    int         pid;
+    int         type;
+    int         format;
+} am_dvr_stream_info;
+
+/**Recording information. It is provided by AmDvr_listRecordings*/
+typedef struct {
+    char        pathPrefix[AM_DVR_MAX_PATH_LEN];
+    long long   size;           // in bytes
+    long long   duration;       // in ms
+    int         firstSegmentId;
+    int         lastSegmentId;
+    long long   limitSize;      // in bytes, 0 if not limited
+    int         limitDuration;  // in seconds, 0 if not limited
+    int         numberOfStreams;
+    am_dvr_stream_info streams[AM_DVR_MAX_STREAMS];
+} am_dvr_recording_info;
+
 #ifdef __cplusplus
 };
 #endif
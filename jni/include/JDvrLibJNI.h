@@ -457,6 +457,30 @@ AmDvr_Player_setSpeed (
 am_dvr_result
 AmDvr_deleteRecord (const char *path_prefix);
 
+/**
+ * @brief   List all recordings in a directory in one call.
+ *          Recording information is cached, so listing a directory again only
+ *          reads recordings that have changed since.
+ * @param   dir_path: The directory where recordings are.
+ * @param[out]  pinfos: A pointer to the returned array of recording information.
+ *          It should be released by AmDvr_freeRecordings.
+ * @param[out]  pcount: A pointer to the returned number of recordings.
+ * @retval  JDVRLIB_JNI_OK if function succeeds, or JDVRLIB_JNI_ERR if any error.
+ */
+am_dvr_result
+AmDvr_listRecordings (
+        const char *dir_path,
+        am_dvr_recording_info **pinfos,
+        int *pcount);
+
+/**
+ * @brief   Release recording information returned by AmDvr_listRecordings.
+ * @param   infos: The array of recording information.
+ * @retval  JDVRLIB_JNI_OK if function succeeds, or JDVRLIB_JNI_ERR if any error.
+ */
+am_dvr_result
+AmDvr_freeRecordings (am_dvr_recording_info *infos);
+
 #ifdef __cplusplus
 };
 #endif